@@ -13,11 +13,12 @@ use log::info;
 use std::ffi::c_void;
 use std::fs::File;
 use std::process::{Command, Stdio};
-use std::sync::atomic::{AtomicBool, Ordering};
+use std::sync::atomic::{AtomicBool, AtomicI32, Ordering};
 use std::sync::Mutex;
 use std::thread;
 use once_cell::sync::Lazy;
 
+use crate::frame_stats;
 use crate::input;
 use crate::renderer_bindings;
 use crate::renderer_new;
@@ -34,6 +35,9 @@ pub enum RendererType {
 /// Global renderer type setting
 static RENDERER_TYPE: Lazy<Mutex<RendererType>> = Lazy::new(|| Mutex::new(RendererType::Old));
 
+/// Frame rate the renderer is currently asked to run at
+static TARGET_FPS: AtomicI32 = AtomicI32::new(0);
+
 /// Global debug renderer setting
 static DEBUG_RENDERER: AtomicBool = AtomicBool::new(false);
 
@@ -64,6 +68,12 @@ pub fn set_debug_renderer(debug_enabled: bool) {
     renderer_new::set_debug_mode(debug_enabled);
 }
 
+/// Keep one of every `rate` debug trace records
+pub fn set_trace_sampling(rate: i32) {
+    info!("[CORE] Debug trace sampling: 1/{}", rate);
+    renderer_new::trace::set_sample_rate(rate.max(1) as u32);
+}
+
 /// Set the debug log directory
 pub fn set_debug_log_dir(log_dir: String) {
     let mut dir = DEBUG_LOG_DIR.lock().unwrap();
@@ -97,6 +107,12 @@ pub fn init_renderer(
     info!("[CORE] Using renderer: {:?}", renderer_type);
     info!("[CORE] ========================================");
 
+    // a rate set through set_target_fps wins over the initial one
+    let fps = match TARGET_FPS.compare_exchange(0, fps, Ordering::Relaxed, Ordering::Relaxed) {
+        Ok(_) => fps,
+        Err(current) => current,
+    };
+
     if RENDERER_STARTED
         .compare_exchange(false, true, Ordering::Acquire, Ordering::Relaxed)
         .is_err()
@@ -141,6 +157,7 @@ pub fn init_renderer(
         info!("[CORE] First time initialization");
         // First time initialization
         input::start_input_system(virtual_width, virtual_height);
+        frame_stats::reset(renderer_type == RendererType::New);
 
         // Convert raw pointer to usize for safe transfer between threads
         let window_addr = window as usize;
@@ -183,6 +200,39 @@ pub fn init_renderer(
     }
 }
 
+/// Frame rate the renderer currently targets, 0 before it is started
+pub fn target_fps() -> i32 {
+    TARGET_FPS.load(Ordering::Relaxed)
+}
+
+/// Change the target frame rate at runtime
+pub fn set_target_fps(fps: i32) {
+    if fps <= 0 {
+        return;
+    }
+    let previous = TARGET_FPS.swap(fps, Ordering::Relaxed);
+    if previous == fps {
+        return;
+    }
+    info!("[CORE] Target FPS: {} -> {}", previous, fps);
+
+    if !RENDERER_STARTED.load(Ordering::Acquire) {
+        // picked up by init_renderer
+        return;
+    }
+
+    let renderer_type = *RENDERER_TYPE.lock().unwrap();
+    match renderer_type {
+        RendererType::Old => {
+            // libOpenglRender.so only takes the rate in startOpenGLRenderer
+            info!("[CORE] Old renderer cannot change FPS at runtime, display rate only");
+        },
+        RendererType::New => {
+            renderer_new::set_target_fps(fps);
+        }
+    }
+}
+
 /// Reset window parameters
 pub fn reset_window(
     window: *mut c_void,
@@ -0,0 +1,151 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, You can obtain one at https://mozilla.org/MPL/2.0/.
+
+//! Per-frame render statistics
+//!
+//! Renderers call `record_frame` once per presented frame. The last
+//! `RING_SIZE` frames are kept in a fixed-size ring buffer together with
+//! running totals, and `snapshot` copies them out for `Renderer.getFrameStats`.
+//! The old renderer swaps inside libOpenglRender.so, which has no hook around
+//! its present, so it records nothing and `snapshot` reports `UNSUPPORTED`.
+//!
+//! Snapshot layout, all values i64:
+//!
+//! - header (`HEADER_LEN` values): renderer (0 old, 1 new), total frames,
+//!   total missed vsyncs, target fps, number of samples that follow
+//! - samples (`SAMPLE_LEN` values each, oldest first): timestamp (monotonic ns),
+//!   frame interval (ns), swap duration (ns), missed vsyncs, buffers queued
+
+use std::sync::Mutex;
+use once_cell::sync::Lazy;
+
+pub const RING_SIZE: usize = 256;
+pub const HEADER_LEN: usize = 5;
+pub const SAMPLE_LEN: usize = 5;
+/// Returned by `snapshot` while the old renderer runs, after the header
+pub const UNSUPPORTED: i32 = -2;
+
+#[derive(Clone, Copy, Default)]
+struct FrameSample {
+    timestamp_ns: i64,
+    interval_ns: i64,
+    swap_ns: i64,
+    missed_vsyncs: i64,
+    buffers_queued: i64,
+}
+
+struct FrameRing {
+    samples: [FrameSample; RING_SIZE],
+    // index of the next slot to write
+    head: usize,
+    len: usize,
+    last_frame_ns: i64,
+    total_frames: i64,
+    total_missed: i64,
+    renderer: i64,
+    started: bool,
+}
+
+static FRAME_RING: Lazy<Mutex<FrameRing>> = Lazy::new(|| {
+    Mutex::new(FrameRing {
+        samples: [FrameSample::default(); RING_SIZE],
+        head: 0,
+        len: 0,
+        last_frame_ns: 0,
+        total_frames: 0,
+        total_missed: 0,
+        renderer: 0,
+        started: false,
+    })
+});
+
+/// Clear all statistics, called when a renderer starts
+pub fn reset(use_new_renderer: bool) {
+    let mut ring = FRAME_RING.lock().unwrap();
+    ring.head = 0;
+    ring.len = 0;
+    ring.last_frame_ns = 0;
+    ring.total_frames = 0;
+    ring.total_missed = 0;
+    ring.renderer = use_new_renderer as i64;
+    ring.started = true;
+}
+
+/// Record one presented frame.
+///
+/// `swap_start_ns` and `swap_end_ns` bracket the present call (monotonic ns),
+/// `buffers_queued` is the number of buffers handed to the display for it.
+pub fn record_frame(swap_start_ns: i64, swap_end_ns: i64, buffers_queued: i64) {
+    let fps = crate::core::target_fps();
+
+    let mut ring = FRAME_RING.lock().unwrap();
+    let interval_ns = if ring.last_frame_ns > 0 {
+        swap_end_ns - ring.last_frame_ns
+    } else {
+        0
+    };
+    ring.last_frame_ns = swap_end_ns;
+
+    // every whole vsync period beyond the first one is a frame we did not make
+    let missed_vsyncs = if fps > 0 && interval_ns > 0 {
+        let period_ns = 1_000_000_000 / fps as i64;
+        ((interval_ns + period_ns / 2) / period_ns - 1).max(0)
+    } else {
+        0
+    };
+
+    let head = ring.head;
+    ring.samples[head] = FrameSample {
+        timestamp_ns: swap_end_ns,
+        interval_ns,
+        swap_ns: swap_end_ns - swap_start_ns,
+        missed_vsyncs,
+        buffers_queued,
+    };
+    ring.head = (head + 1) % RING_SIZE;
+    ring.len = (ring.len + 1).min(RING_SIZE);
+    ring.total_frames += 1;
+    ring.total_missed += missed_vsyncs;
+}
+
+/// Copy the header and as many of the most recent samples as fit into `out`.
+/// Returns the number of samples written, -1 if `out` cannot hold the header,
+/// or `UNSUPPORTED` with only the header written if the old renderer runs.
+pub fn snapshot(out: &mut [i64]) -> i32 {
+    if out.len() < HEADER_LEN {
+        return -1;
+    }
+
+    let ring = FRAME_RING.lock().unwrap();
+    let count = ring.len.min((out.len() - HEADER_LEN) / SAMPLE_LEN);
+
+    out[0] = ring.renderer;
+    out[1] = ring.total_frames;
+    out[2] = ring.total_missed;
+    out[3] = crate::core::target_fps() as i64;
+    out[4] = count as i64;
+
+    if ring.started && ring.renderer == 0 {
+        return UNSUPPORTED;
+    }
+
+    let first = (ring.head + RING_SIZE - count) % RING_SIZE;
+    for i in 0..count {
+        let sample = &ring.samples[(first + i) % RING_SIZE];
+        let base = HEADER_LEN + i * SAMPLE_LEN;
+        out[base] = sample.timestamp_ns;
+        out[base + 1] = sample.interval_ns;
+        out[base + 2] = sample.swap_ns;
+        out[base + 3] = sample.missed_vsyncs;
+        out[base + 4] = sample.buffers_queued;
+    }
+    count as i32
+}
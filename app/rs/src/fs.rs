@@ -0,0 +1,89 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, You can obtain one at https://mozilla.org/MPL/2.0/.
+
+//! File cloning for the profile cloner
+//!
+//! `FICLONE` makes the target share the extents of the source, the data is
+//! only copied when one of them is written. Only some filesystems support it
+//! (btrfs, xfs, bcachefs); f2fs and ext4 answer `EOPNOTSUPP` and the Java
+//! side falls back to a channel transfer.
+
+use std::ffi::CString;
+use std::io;
+
+/// `_IOW(0x94, 9, int)`
+const FICLONE: u32 = 0x4004_9409;
+
+fn errno() -> i32 {
+    io::Error::last_os_error().raw_os_error().unwrap_or(libc::EIO)
+}
+
+/// Create `target` as a reflink of `source`
+///
+/// Returns 0 or a negative errno; `target` does not exist after a failure.
+pub fn clone_file(source: &str, target: &str) -> i32 {
+    let (source, target) = match (CString::new(source), CString::new(target)) {
+        (Ok(source), Ok(target)) => (source, target),
+        _ => return -libc::EINVAL,
+    };
+
+    unsafe {
+        let in_fd = libc::open(source.as_ptr(), libc::O_RDONLY | libc::O_CLOEXEC);
+        if in_fd < 0 {
+            return -errno();
+        }
+        let out_fd = libc::open(
+            target.as_ptr(),
+            libc::O_WRONLY | libc::O_CREAT | libc::O_EXCL | libc::O_CLOEXEC,
+            0o600 as libc::c_uint,
+        );
+        if out_fd < 0 {
+            let err = errno();
+            libc::close(in_fd);
+            return -err;
+        }
+
+        let result = if libc::ioctl(out_fd, FICLONE as _, in_fd) < 0 { -errno() } else { 0 };
+        libc::close(out_fd);
+        libc::close(in_fd);
+        if result != 0 {
+            libc::unlink(target.as_ptr());
+        }
+        result
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn missing_source() {
+        assert_eq!(clone_file("/nonexistent/source", "/nonexistent/target"), -libc::ENOENT);
+    }
+
+    #[test]
+    fn clone_or_clean_failure() {
+        let dir = std::env::temp_dir().join(format!("twoyi-clone-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).unwrap();
+        let source = dir.join("source");
+        let target = dir.join("target");
+        std::fs::write(&source, b"twoyi").unwrap();
+
+        let result = clone_file(source.to_str().unwrap(), target.to_str().unwrap());
+        if result == 0 {
+            assert_eq!(std::fs::read(&target).unwrap(), b"twoyi");
+        } else {
+            assert!(!target.exists());
+        }
+        std::fs::remove_dir_all(&dir).unwrap();
+    }
+}
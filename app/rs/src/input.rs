@@ -6,6 +6,7 @@ use libc::*;
 use libc::{c_char, c_int};
 use ndk::event::{MotionAction, MotionEvent};
 use std::mem;
+use std::os::unix::io::{AsRawFd, FromRawFd, RawFd};
 use std::thread;
 use std::{io::Write};
 use uinput_sys::*;
@@ -16,6 +17,8 @@ use once_cell::sync::Lazy;
 
 use log::info;
 
+use crate::latency;
+
 const FF_MAX: u16 = 0x7f;
 
 const TOUCH_PATH: &'static str = "/data/data/io.twoyi/rootfs/dev/input/touch";
@@ -61,9 +64,106 @@ fn copy_to_cstr<const COUNT: usize>(data: &str, arr: &mut [u8; COUNT]) {
 
 const MAX_POINTERS: usize = 5;
 
-static INPUT_SENDER: Lazy<Mutex<Option<Sender<input_event>>>> = Lazy::new(|| { Mutex::new(None)});
+// Android MotionEvent action codes, as written by io.twoyi.TouchBatcher
+const ACTION_DOWN: i32 = 0;
+const ACTION_UP: i32 = 1;
+const ACTION_MOVE: i32 = 2;
+const ACTION_CANCEL: i32 = 3;
+const ACTION_POINTER_DOWN: i32 = 5;
+const ACTION_POINTER_UP: i32 = 6;
+
+/// Size of one record in a touch batch, in i32 words.
+///
+/// A batch is a flat sequence of frames. Each frame starts with a header
+/// record `[action, action_pointer_id, pointer_count, 0]` followed by
+/// `pointer_count` pointer records `[pointer_id, x, y, pressure]`, with the
+/// coordinates already scaled to the virtual display.
+pub const TOUCH_RECORD_INTS: usize = 4;
+const TOUCH_RECORD_BYTES: usize = TOUCH_RECORD_INTS * 4;
+
+/// Upper bound of pointers read from a single MotionEvent.
+const MAX_EVENT_POINTERS: usize = 16;
+
+/// Worst case events in one frame: SLOT/X/Y/PRESSURE for every slot plus
+/// TRACKING_ID, BTN_TOUCH, BTN_TOOL_FINGER and the closing SYN_REPORT.
+const MAX_FRAME_EVENTS: usize = MAX_POINTERS * 4 + 4;
+
+/// Frames gathered into a single writev by the touch writer thread.
+const MAX_FRAMES_PER_WRITE: usize = 8;
+
+static G_INPUT_MT: Lazy<Mutex<[i32; MAX_POINTERS]>> = Lazy::new(|| Mutex::new([0i32; MAX_POINTERS]));
+
+static INPUT_SENDER: Lazy<Mutex<Option<Sender<TouchFrame>>>> = Lazy::new(|| { Mutex::new(None)});
 static KEY_SENDER: Lazy<Mutex<Option<Sender<input_event>>>> = Lazy::new(|| { Mutex::new(None)});
 
+#[derive(Clone, Copy, Default)]
+struct TouchPointer {
+    id: i32,
+    x: i32,
+    y: i32,
+    pressure: i32,
+}
+
+/// A complete multitouch frame terminated by one `SYN_REPORT`.
+///
+/// Events live in a fixed array so building a frame never allocates, and all
+/// of them share the timestamp taken when the frame was started.
+struct TouchFrame {
+    events: [input_event; MAX_FRAME_EVENTS],
+    len: usize,
+    time: timeval,
+    // MotionEvent time of the sample, 0 if unknown
+    origin_ns: i64,
+    queued_ns: i64,
+}
+
+impl TouchFrame {
+    fn new(origin_ns: i64) -> Self {
+        let queued_ns = latency::now_ns();
+        TouchFrame {
+            events: unsafe { mem::zeroed() },
+            len: 0,
+            time: timeval {
+                tv_sec: (queued_ns / 1_000_000_000) as time_t,
+                tv_usec: ((queued_ns % 1_000_000_000) / 1000) as suseconds_t,
+            },
+            origin_ns,
+            queued_ns,
+        }
+    }
+
+    fn push(&mut self, kind: i32, code: i32, val: i32) {
+        if self.len >= MAX_FRAME_EVENTS {
+            return;
+        }
+        self.events[self.len] = input_event {
+            kind: kind as u16,
+            code: code as u16,
+            value: val,
+            time: self.time,
+        };
+        self.len += 1;
+    }
+
+    /// Close the frame. Returns false if nothing but the SYN would be sent.
+    fn finish(&mut self) -> bool {
+        if self.len == 0 {
+            return false;
+        }
+        self.push(EV_SYN, SYN_REPORT, SYN_REPORT);
+        true
+    }
+
+    fn as_bytes(&self) -> &[u8] {
+        unsafe {
+            std::slice::from_raw_parts(
+                self.events.as_ptr() as *const u8,
+                self.len * mem::size_of::<input_event>(),
+            )
+        }
+    }
+}
+
 pub fn start_input_system(width: i32, height: i32) {
     thread::spawn(move || {
         touch_server(width, height);
@@ -95,104 +195,208 @@ pub fn input_event_write(
     let _ = tx.send(ev);
 }
 
-pub fn handle_touch(ev: MotionEvent) {
-    let opt = INPUT_SENDER.lock().unwrap();
-    if let Some(ref fd) = *opt {
+fn valid_slot(id: i32) -> bool {
+    id >= 0 && (id as usize) < MAX_POINTERS
+}
 
-        let action = ev.action();
-        let pointer_index = ev.pointer_index();
-        let pointer = ev.pointer_at_index(pointer_index);
-        let pointer_id = pointer.pointer_id();
-        let pressure = pointer.pressure();
+/// Translate one MotionEvent-shaped sample into a single evdev frame and
+/// queue it for the touch socket.
+fn emit_touch_frame(
+    tx: &Sender<TouchFrame>,
+    mt: &mut [i32; MAX_POINTERS],
+    origin_ns: i64,
+    action: i32,
+    action_id: i32,
+    pointers: &[TouchPointer],
+) {
+    let mut frame = TouchFrame::new(origin_ns);
 
-        // info!("action: {:#?}, pointer_index: {}", action, pointer_index);
+    match action {
+        ACTION_DOWN | ACTION_POINTER_DOWN => {
+            if !valid_slot(action_id) {
+                return;
+            }
+            if let Some(p) = pointers.iter().find(|p| p.id == action_id) {
+                mt[action_id as usize] = 1;
+
+                frame.push(EV_ABS, ABS_MT_SLOT, action_id);
+                frame.push(EV_ABS, ABS_MT_TRACKING_ID, action_id + 1);
 
-        static G_INPUT_MT: Lazy<Mutex<[i32;MAX_POINTERS]>> = Lazy::new(|| {std::sync::Mutex::new([0i32;MAX_POINTERS])});
+                if action == ACTION_DOWN {
+                    frame.push(EV_KEY, BTN_TOUCH, 108);
+                    frame.push(EV_KEY, BTN_TOOL_FINGER, 108);
+                }
+
+                frame.push(EV_ABS, ABS_MT_POSITION_X, p.x);
+                frame.push(EV_ABS, ABS_MT_POSITION_Y, p.y);
+                frame.push(EV_ABS, ABS_MT_PRESSURE, p.pressure);
+            }
+        }
+        ACTION_MOVE => {
+            for p in pointers {
+                if !valid_slot(p.id) || mt[p.id as usize] == 0 {
+                    continue;
+                }
+                frame.push(EV_ABS, ABS_MT_SLOT, p.id);
+                frame.push(EV_ABS, ABS_MT_POSITION_X, p.x);
+                frame.push(EV_ABS, ABS_MT_POSITION_Y, p.y);
+                frame.push(EV_ABS, ABS_MT_PRESSURE, p.pressure);
+            }
+        }
+        ACTION_UP => {
+            for slot in 0..MAX_POINTERS {
+                if mt[slot] != 0 {
+                    mt[slot] = 0;
+                    frame.push(EV_ABS, ABS_MT_SLOT, slot as i32);
+                    frame.push(EV_ABS, ABS_MT_TRACKING_ID, -1);
+                }
+            }
+        }
+        ACTION_CANCEL | ACTION_POINTER_UP => {
+            if !valid_slot(action_id) || mt[action_id as usize] == 0 {
+                return;
+            }
+            mt[action_id as usize] = 0;
+            frame.push(EV_ABS, ABS_MT_SLOT, action_id);
+            frame.push(EV_ABS, ABS_MT_TRACKING_ID, -1);
+        }
+        _ => {}
+    }
 
-        match action {
-            MotionAction::Down | MotionAction::PointerDown => {
-                let x = pointer.x();
-                let y = pointer.y();
+    if frame.finish() {
+        let _ = tx.send(frame);
+    }
+}
 
-                let mut mt = G_INPUT_MT.lock().unwrap();
-                mt[pointer_id as usize] = 1;
+pub fn handle_touch(ev: MotionEvent) {
+    let opt = INPUT_SENDER.lock().unwrap();
+    if let Some(ref fd) = *opt {
 
-                let mut index = 0;
-                while index < MAX_POINTERS {
-                    if mt[index] != 0 {
-                        input_event_write(fd, EV_ABS, ABS_MT_SLOT, pointer_id);
-                        input_event_write(fd, EV_ABS, ABS_MT_TRACKING_ID, pointer_id + 1);
+        let action = match ev.action() {
+            MotionAction::Down => ACTION_DOWN,
+            MotionAction::Up => ACTION_UP,
+            MotionAction::Move => ACTION_MOVE,
+            MotionAction::Cancel => ACTION_CANCEL,
+            MotionAction::PointerDown => ACTION_POINTER_DOWN,
+            MotionAction::PointerUp => ACTION_POINTER_UP,
+            _ => return,
+        };
+        let action_id = ev.pointer_at_index(ev.pointer_index()).pointer_id();
 
-                        if index == 0 {
-                            input_event_write(fd, EV_KEY, BTN_TOUCH, 108);
-                            input_event_write(fd, EV_KEY, BTN_TOOL_FINGER, 108);
-                        }
+        // info!("action: {:#?}, pointer_index: {}", action, pointer_index);
 
-                        input_event_write(fd, EV_ABS, ABS_MT_POSITION_X, x as i32);
-                        input_event_write(fd, EV_ABS, ABS_MT_POSITION_Y, y as i32);
+        let mut pointers = [TouchPointer::default(); MAX_EVENT_POINTERS];
+        let count = ev.pointer_count().min(MAX_EVENT_POINTERS);
+        for (i, slot) in pointers.iter_mut().take(count).enumerate() {
+            let pointer = ev.pointer_at_index(i);
+            *slot = TouchPointer {
+                id: pointer.pointer_id(),
+                x: pointer.x() as i32,
+                y: pointer.y() as i32,
+                pressure: pointer.pressure() as i32,
+            };
+        }
 
-                        input_event_write(fd, EV_ABS, ABS_MT_PRESSURE, pressure as i32);
+        let mut mt = G_INPUT_MT.lock().unwrap();
+        emit_touch_frame(fd, &mut mt, ev.event_time(), action, action_id, &pointers[..count]);
+    }
+}
 
-                        input_event_write(fd, EV_SYN, SYN_REPORT, SYN_REPORT);
-                    }
-                    index = index + 1;
-                }
-            }
-            MotionAction::Up => {
-                // let x = pointer.x();
-                // let y = pointer.y();
-
-                let mut index = 0;
-                while index != MAX_POINTERS {
-                    let mut mt = G_INPUT_MT.lock().unwrap();
-                    if mt[index] != 0 {
-                        mt[index] = 0;
-                        input_event_write(fd, EV_ABS, ABS_MT_SLOT, index.try_into().unwrap());
-                        input_event_write(fd, EV_ABS, ABS_MT_TRACKING_ID, -1);
-                        input_event_write(fd, EV_SYN, SYN_REPORT, SYN_REPORT);
-                    }
-                    index = index + 1;
-                }
-            }
-            MotionAction::Move => {
-                let mut index = 0;
+fn read_touch_record(bytes: &[u8], index: usize) -> [i32; TOUCH_RECORD_INTS] {
+    let mut record = [0i32; TOUCH_RECORD_INTS];
+    let base = index * TOUCH_RECORD_BYTES;
+    for (i, value) in record.iter_mut().enumerate() {
+        let off = base + i * 4;
+        *value = i32::from_ne_bytes([bytes[off], bytes[off + 1], bytes[off + 2], bytes[off + 3]]);
+    }
+    record
+}
 
-                while index != MAX_POINTERS {
-                    let mt = G_INPUT_MT.lock().unwrap();
-                    if mt[index] != 0 {
-                        let x = pointer.x();
-                        let y = pointer.y();
-                        let pressure = pointer.pressure();
+/// Handle a batch of pre-scaled touch frames written by the Java side.
+///
+/// `bytes` holds `count` records in the layout described at
+/// `TOUCH_RECORD_INTS`. Both input locks are taken once for the whole batch,
+/// so a MotionEvent carrying many historical samples costs a single JNI
+/// crossing and a single lock round-trip.
+///
+/// `event_ns` is the MotionEvent time and `receipt_ns` the time the UI thread
+/// got it, both monotonic nanoseconds; 0 means unknown.
+pub fn handle_touch_batch(bytes: &[u8], count: usize, event_ns: i64, receipt_ns: i64) {
+    let entry_ns = latency::now_ns();
+    latency::record(latency::STAGE_DISPATCH, event_ns, receipt_ns);
+    latency::record(latency::STAGE_JNI, receipt_ns, entry_ns);
+
+    let count = count.min(bytes.len() / TOUCH_RECORD_BYTES);
 
-                        input_event_write(fd, EV_ABS, ABS_MT_SLOT, index.try_into().unwrap());
-                        input_event_write(fd, EV_ABS, ABS_MT_POSITION_X, x as i32);
-                        input_event_write(fd, EV_ABS, ABS_MT_POSITION_Y, y as i32);
+    let opt = INPUT_SENDER.lock().unwrap();
+    let fd = match *opt {
+        Some(ref fd) => fd,
+        None => return,
+    };
+    let mut mt = G_INPUT_MT.lock().unwrap();
+
+    let mut pointers = [TouchPointer::default(); MAX_EVENT_POINTERS];
+    let mut index = 0;
+    while index < count {
+        let [action, action_id, pointer_count, _] = read_touch_record(bytes, index);
+        let pointer_count = (pointer_count.max(0) as usize).min(count - index - 1);
+        let first = index + 1;
+        index = first + pointer_count;
+
+        let n = pointer_count.min(MAX_EVENT_POINTERS);
+        for (i, slot) in pointers.iter_mut().take(n).enumerate() {
+            let [id, x, y, pressure] = read_touch_record(bytes, first + i);
+            *slot = TouchPointer { id, x, y, pressure };
+        }
 
-                        input_event_write(fd, EV_ABS, ABS_MT_PRESSURE, pressure as i32);
+        emit_touch_frame(fd, &mut mt, event_ns, action, action_id, &pointers[..n]);
+    }
+}
 
-                        input_event_write(fd, EV_SYN, SYN_REPORT, SYN_REPORT);
-                    }
+/// Write a batch of frames to the touch socket with a single `writev`.
+///
+/// A short write falls back to `write_all` for the remainder so frames are
+/// never torn on the guest side.
+fn write_touch_frames(fd: RawFd, frames: &[TouchFrame]) -> std::io::Result<()> {
+    let count = frames.len().min(MAX_FRAMES_PER_WRITE);
+    let frames = &frames[..count];
+
+    let mut iov: [libc::iovec; MAX_FRAMES_PER_WRITE] = unsafe { mem::zeroed() };
+    let mut total = 0;
+    for (i, frame) in frames.iter().enumerate() {
+        let bytes = frame.as_bytes();
+        iov[i].iov_base = bytes.as_ptr() as *mut libc::c_void;
+        iov[i].iov_len = bytes.len();
+        total += bytes.len();
+    }
 
-                    index = index + 1;
-                }
-            }
-            MotionAction::Cancel | MotionAction::PointerUp => {
-                // let x = pointer.x();
-                // let y = pointer.y();
+    let written = unsafe { libc::writev(fd, iov.as_ptr(), count as c_int) };
+    if written < 0 {
+        return Err(std::io::Error::last_os_error());
+    }
 
-                let mut mt = G_INPUT_MT.lock().unwrap();
-                if mt[pointer_id as usize] == 0 {
-                    return;
-                }
+    let done_ns = latency::now_ns();
+    for frame in frames {
+        latency::record(latency::STAGE_CHANNEL, frame.queued_ns, done_ns);
+        latency::record(latency::STAGE_TOTAL, frame.origin_ns, done_ns);
+    }
 
-                mt[pointer_id as usize] = 0;
-                input_event_write(fd, EV_ABS, ABS_MT_SLOT, pointer_id);
-                input_event_write(fd, EV_ABS, ABS_MT_TRACKING_ID, -1);
-                input_event_write(fd, EV_SYN, SYN_REPORT, SYN_REPORT);
+    // short write: push out the remainder frame by frame
+    let mut skip = written as usize;
+    if skip < total {
+        // the socket stays owned by the caller
+        let mut stream = mem::ManuallyDrop::new(unsafe { std::fs::File::from_raw_fd(fd) });
+        for frame in frames {
+            let bytes = frame.as_bytes();
+            if skip >= bytes.len() {
+                skip -= bytes.len();
+                continue;
             }
-            _ => {}
+            stream.write_all(&bytes[skip..])?;
+            skip = 0;
         }
     }
+    Ok(())
 }
 
 fn generate_touch_device(width: i32, height: i32) -> device_info {
@@ -255,17 +459,33 @@ fn touch_server(width: i32, height: i32) {
             Ok(mut stream) => {
                 info!("touch client connected!");
 
+                // a new guest client starts a new latency session
+                latency::log_summary();
+                latency::reset();
+
                 let _ = stream.write_all(unsafe { any_as_u8_slice(&device) });
 
-                let (tx, rx) = channel::<input_event>();
+                let (tx, rx) = channel::<TouchFrame>();
                 *INPUT_SENDER.lock().unwrap() = Some(tx);
 
-                thread::spawn(move || loop {
-                    let ret = rx.recv();
-                    if let Ok(ev) = ret {
-                        let data = unsafe { any_as_u8_slice(&ev) };
-                        let _ = stream.write_all(data);
+                thread::spawn(move || {
+                    let fd = stream.as_raw_fd();
+                    let mut frames: Vec<TouchFrame> = Vec::with_capacity(MAX_FRAMES_PER_WRITE);
+                    while let Ok(frame) = rx.recv() {
+                        // gather whatever queued up behind the first frame
+                        frames.push(frame);
+                        while frames.len() < MAX_FRAMES_PER_WRITE {
+                            match rx.try_recv() {
+                                Ok(frame) => frames.push(frame),
+                                Err(_) => break,
+                            }
+                        }
+                        if let Err(e) = write_touch_frames(fd, &frames) {
+                            info!("touch client write failed: {}", e);
+                        }
+                        frames.clear();
                     }
+                    drop(stream);
                 });
             }
             Err(_) => {
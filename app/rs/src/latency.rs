@@ -0,0 +1,196 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, You can obtain one at https://mozilla.org/MPL/2.0/.
+
+//! Input latency histograms
+//!
+//! Touch latency is split into stages along the delivery path:
+//!
+//! - `STAGE_DISPATCH`: `MotionEvent.getEventTime()` to receipt in `onTouch`
+//! - `STAGE_JNI`: receipt in `onTouch` to native entry
+//! - `STAGE_CHANNEL`: frame enqueue to the write on the touch socket
+//! - `STAGE_TOTAL`: `MotionEvent.getEventTime()` to the write on the touch socket
+//!
+//! Each stage is a log-linear histogram of atomic counters, so recording
+//! from the UI thread and the socket writer thread never takes a lock. All
+//! timestamps are `CLOCK_MONOTONIC`, which is what both `SystemClock.uptimeMillis`
+//! and `System.nanoTime` use on Android.
+
+use std::sync::atomic::{AtomicU64, Ordering};
+
+use log::info;
+
+pub const STAGE_DISPATCH: usize = 0;
+pub const STAGE_JNI: usize = 1;
+pub const STAGE_CHANNEL: usize = 2;
+pub const STAGE_TOTAL: usize = 3;
+pub const STAGE_COUNT: usize = 4;
+
+const STAGE_NAMES: [&str; STAGE_COUNT] = ["dispatch", "jni", "channel", "total"];
+
+/// Values exported per stage: count, p50, p95, p99, max (latencies in microseconds)
+pub const VALUES_PER_STAGE: usize = 5;
+
+// values below LINEAR_LIMIT us get their own bucket, above that every power
+// of two is split into SUB_BUCKETS buckets (about 25% resolution)
+const LINEAR_LIMIT: u64 = 8;
+const SUB_BUCKET_BITS: u32 = 2;
+const SUB_BUCKETS: usize = 1 << SUB_BUCKET_BITS;
+// enough to cover a bit more than 4 seconds
+const BUCKETS: usize = LINEAR_LIMIT as usize + 20 * SUB_BUCKETS;
+
+#[allow(clippy::declare_interior_mutable_const)]
+const ZERO: AtomicU64 = AtomicU64::new(0);
+
+struct Histogram {
+    buckets: [AtomicU64; BUCKETS],
+    max: AtomicU64,
+}
+
+#[allow(clippy::declare_interior_mutable_const)]
+const EMPTY_HISTOGRAM: Histogram = Histogram {
+    buckets: [ZERO; BUCKETS],
+    max: ZERO,
+};
+
+static HISTOGRAMS: [Histogram; STAGE_COUNT] = [EMPTY_HISTOGRAM; STAGE_COUNT];
+
+fn bucket_index(us: u64) -> usize {
+    if us < LINEAR_LIMIT {
+        return us as usize;
+    }
+    let exp = 63 - us.leading_zeros();
+    let sub = ((us >> (exp - SUB_BUCKET_BITS)) as usize) & (SUB_BUCKETS - 1);
+    let index = LINEAR_LIMIT as usize + (exp - LINEAR_LIMIT.trailing_zeros()) as usize * SUB_BUCKETS + sub;
+    index.min(BUCKETS - 1)
+}
+
+/// Largest value that falls into the bucket
+fn bucket_upper_bound(index: usize) -> u64 {
+    if index < LINEAR_LIMIT as usize {
+        return index as u64;
+    }
+    let offset = index - LINEAR_LIMIT as usize;
+    let exp = (offset / SUB_BUCKETS) as u32 + LINEAR_LIMIT.trailing_zeros();
+    let sub = (offset % SUB_BUCKETS) as u64;
+    let width = 1u64 << (exp - SUB_BUCKET_BITS);
+    ((SUB_BUCKETS as u64 + sub) << (exp - SUB_BUCKET_BITS)) + width - 1
+}
+
+impl Histogram {
+    fn record(&self, us: u64) {
+        self.buckets[bucket_index(us)].fetch_add(1, Ordering::Relaxed);
+        self.max.fetch_max(us, Ordering::Relaxed);
+    }
+
+    fn reset(&self) {
+        for bucket in self.buckets.iter() {
+            bucket.store(0, Ordering::Relaxed);
+        }
+        self.max.store(0, Ordering::Relaxed);
+    }
+
+    /// Percentile in microseconds, `p` in percent
+    fn percentile(&self, counts: &[u64; BUCKETS], total: u64, p: u64) -> u64 {
+        if total == 0 {
+            return 0;
+        }
+        let rank = ((total * p + 99) / 100).max(1);
+        let mut seen = 0;
+        for (index, count) in counts.iter().enumerate() {
+            seen += count;
+            if seen >= rank {
+                return bucket_upper_bound(index).min(self.max.load(Ordering::Relaxed));
+            }
+        }
+        self.max.load(Ordering::Relaxed)
+    }
+
+    fn summary(&self) -> [u64; VALUES_PER_STAGE] {
+        let mut counts = [0u64; BUCKETS];
+        for (dst, bucket) in counts.iter_mut().zip(self.buckets.iter()) {
+            *dst = bucket.load(Ordering::Relaxed);
+        }
+        let total: u64 = counts.iter().sum();
+        [
+            total,
+            self.percentile(&counts, total, 50),
+            self.percentile(&counts, total, 95),
+            self.percentile(&counts, total, 99),
+            self.max.load(Ordering::Relaxed),
+        ]
+    }
+}
+
+/// Current `CLOCK_MONOTONIC` time in nanoseconds
+pub fn now_ns() -> i64 {
+    let mut tp = libc::timespec { tv_sec: 0, tv_nsec: 0 };
+    let _ = unsafe { libc::clock_gettime(libc::CLOCK_MONOTONIC, &mut tp) };
+    tp.tv_sec as i64 * 1_000_000_000 + tp.tv_nsec as i64
+}
+
+/// Record the time between two monotonic timestamps for a stage.
+/// Missing (zero) or out of order timestamps are ignored.
+pub fn record(stage: usize, start_ns: i64, end_ns: i64) {
+    if stage >= STAGE_COUNT || start_ns <= 0 || end_ns < start_ns {
+        return;
+    }
+    HISTOGRAMS[stage].record(((end_ns - start_ns) / 1000) as u64);
+}
+
+/// Start a new session, dropping everything recorded so far
+pub fn reset() {
+    for histogram in HISTOGRAMS.iter() {
+        histogram.reset();
+    }
+}
+
+/// Fill `out` with `VALUES_PER_STAGE` values per stage, stage after stage.
+/// Returns the number of stages written.
+pub fn snapshot(out: &mut [i64]) -> usize {
+    let stages = (out.len() / VALUES_PER_STAGE).min(STAGE_COUNT);
+    for stage in 0..stages {
+        let summary = HISTOGRAMS[stage].summary();
+        for (i, value) in summary.iter().enumerate() {
+            out[stage * VALUES_PER_STAGE + i] = *value as i64;
+        }
+    }
+    stages
+}
+
+/// Dump the current session to the log
+pub fn log_summary() {
+    for (stage, name) in STAGE_NAMES.iter().enumerate() {
+        let [count, p50, p95, p99, max] = HISTOGRAMS[stage].summary();
+        if count == 0 {
+            continue;
+        }
+        info!(
+            "[INPUT_LATENCY] {}: n={} p50={}us p95={}us p99={}us max={}us",
+            name, count, p50, p95, p99, max
+        );
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_bucket_bounds_cover_value() {
+        for &us in [0u64, 1, 7, 8, 9, 15, 16, 100, 1000, 12345, 1_000_000].iter() {
+            let index = bucket_index(us);
+            assert!(bucket_upper_bound(index) >= us, "{} -> {}", us, index);
+            if index > 0 {
+                assert!(bucket_upper_bound(index - 1) < us, "{} -> {}", us, index);
+            }
+        }
+    }
+}
@@ -2,8 +2,8 @@
 // License, v. 2.0. If a copy of the MPL was not distributed with this
 // file, You can obtain one at https://mozilla.org/MPL/2.0/.
 
-use jni::objects::JValue;
-use jni::sys::{jclass, jfloat, jint, jobject, JNI_ERR, jstring};
+use jni::objects::{JByteBuffer, JObject, JValue};
+use jni::sys::{jclass, jfloat, jint, jlong, jlongArray, jobject, jobjectArray, JNI_ERR, jstring};
 use jni::JNIEnv;
 use jni::{JavaVM, NativeMethod};
 use log::{debug, error, info, Level};
@@ -12,7 +12,10 @@ use std::ffi::c_void;
 
 use android_logger::Config;
 
+mod frame_stats;
+mod fs;
 mod input;
+mod latency;
 mod renderer_bindings;
 mod renderer_new;
 mod core;
@@ -109,6 +112,16 @@ pub fn set_debug_renderer(
     core::set_debug_renderer(debug_enabled != 0);
 }
 
+#[no_mangle]
+pub fn set_trace_sampling(
+    _env: JNIEnv,
+    _clz: jclass,
+    rate: jint,
+) {
+    debug!("set_trace_sampling: {}", rate);
+    core::set_trace_sampling(rate);
+}
+
 #[no_mangle]
 pub fn set_debug_log_dir(
     env: JNIEnv,
@@ -165,12 +178,153 @@ pub fn handle_touch(env: JNIEnv, _clz: jclass, event: jobject) {
     }
 }
 
+#[no_mangle]
+pub fn handle_touch_batch(
+    env: JNIEnv,
+    _clz: jclass,
+    buffer: jobject,
+    count: jint,
+    event_time_nanos: jlong,
+    receipt_nanos: jlong,
+) {
+    if count <= 0 {
+        return;
+    }
+
+    match env.get_direct_buffer_address(JByteBuffer::from(buffer)) {
+        Ok(bytes) => input::handle_touch_batch(bytes, count as usize, event_time_nanos, receipt_nanos),
+        Err(e) => error!("handle_touch_batch: not a direct buffer: {:?}", e),
+    }
+}
+
+#[no_mangle]
+pub fn get_input_latency(env: JNIEnv, _clz: jclass, out: jlongArray) -> jint {
+    let len = match env.get_array_length(out) {
+        Ok(len) => len.max(0) as usize,
+        Err(e) => {
+            error!("get_input_latency: {:?}", e);
+            return 0;
+        }
+    };
+
+    let mut values = [0i64; latency::STAGE_COUNT * latency::VALUES_PER_STAGE];
+    let n = len.min(values.len());
+    let stages = latency::snapshot(&mut values[..n]);
+    let written = stages * latency::VALUES_PER_STAGE;
+    if let Err(e) = env.set_long_array_region(out, 0, &values[..written]) {
+        error!("get_input_latency: {:?}", e);
+        return 0;
+    }
+    stages as jint
+}
+
+#[no_mangle]
+pub fn get_frame_stats(env: JNIEnv, _clz: jclass, out: jlongArray) -> jint {
+    let len = match env.get_array_length(out) {
+        Ok(len) => len.max(0) as usize,
+        Err(e) => {
+            error!("get_frame_stats: {:?}", e);
+            return -1;
+        }
+    };
+
+    let max_len = frame_stats::HEADER_LEN + frame_stats::RING_SIZE * frame_stats::SAMPLE_LEN;
+    let mut values = vec![0i64; len.min(max_len)];
+    let count = frame_stats::snapshot(&mut values);
+    if count == -1 {
+        return -1;
+    }
+
+    // the header is still copied when the renderer records no frames
+    let written = frame_stats::HEADER_LEN + count.max(0) as usize * frame_stats::SAMPLE_LEN;
+    if let Err(e) = env.set_long_array_region(out, 0, &values[..written]) {
+        error!("get_frame_stats: {:?}", e);
+        return -1;
+    }
+    count
+}
+
+#[no_mangle]
+pub fn get_socket_stats(env: JNIEnv, _clz: jclass, out: jlongArray) -> jint {
+    let len = match env.get_array_length(out) {
+        Ok(len) => len.max(0) as usize,
+        Err(e) => {
+            error!("get_socket_stats: {:?}", e);
+            return -1;
+        }
+    };
+
+    let max_len = renderer_new::socket_monitor::socket_paths().len() * renderer_new::socket_monitor::STAT_LEN;
+    let mut values = vec![0i64; len.min(max_len)];
+    let count = renderer_new::socket_monitor::snapshot(&mut values);
+
+    let written = count as usize * renderer_new::socket_monitor::STAT_LEN;
+    if let Err(e) = env.set_long_array_region(out, 0, &values[..written]) {
+        error!("get_socket_stats: {:?}", e);
+        return -1;
+    }
+    count
+}
+
+#[no_mangle]
+pub fn get_monitored_sockets(env: JNIEnv, _clz: jclass) -> jobjectArray {
+    let paths = renderer_new::socket_monitor::socket_paths();
+    let array = match env.new_object_array(paths.len() as jint, "java/lang/String", JObject::null()) {
+        Ok(array) => array,
+        Err(e) => {
+            error!("get_monitored_sockets: {:?}", e);
+            return std::ptr::null_mut();
+        }
+    };
+    for (i, path) in paths.iter().enumerate() {
+        let result = env
+            .new_string(*path)
+            .and_then(|s| env.set_object_array_element(array, i as jint, s));
+        if let Err(e) = result {
+            error!("get_monitored_sockets: {:?}", e);
+            return std::ptr::null_mut();
+        }
+    }
+    array
+}
+
+#[no_mangle]
+pub fn reset_input_latency(_env: JNIEnv, _clz: jclass) {
+    latency::log_summary();
+    latency::reset();
+}
+
+#[no_mangle]
+pub fn set_target_fps(_env: JNIEnv, _clz: jclass, fps: jint) {
+    debug!("set_target_fps: {}", fps);
+    core::set_target_fps(fps);
+}
+
 #[no_mangle]
 pub fn send_key_code(_env: JNIEnv, _clz: jclass, keycode: jint) {
     debug!("send key code!");
     input::send_key_code(keycode);
 }
 
+#[no_mangle]
+pub fn clone_file(env: JNIEnv, _clz: jclass, source: jstring, target: jstring) -> jint {
+    let source: String = match env.get_string(source.into()) {
+        Ok(s) => s.into(),
+        Err(e) => {
+            error!("clone_file: {:?}", e);
+            return -libc::EINVAL;
+        }
+    };
+    let target: String = match env.get_string(target.into()) {
+        Ok(s) => s.into(),
+        Err(e) => {
+            error!("clone_file: {:?}", e);
+            return -libc::EINVAL;
+        }
+    };
+    fs::clone_file(&source, &target)
+}
+
 unsafe fn register_natives(jvm: &JavaVM, class_name: &str, methods: &[NativeMethod]) -> jint {
     // Try to get env - if this fails, we can't continue
     let env: JNIEnv = match jvm.get_env() {
@@ -247,10 +401,19 @@ unsafe fn JNI_OnLoad(jvm: JavaVM, _reserved: *mut c_void) -> jint {
             "(Landroid/view/Surface;)V"
         ),
         jni_method!(handleTouch, handle_touch, "(Landroid/view/MotionEvent;)V"),
+        jni_method!(handleTouchBatch, handle_touch_batch, "(Ljava/nio/ByteBuffer;IJJ)V"),
+        jni_method!(getInputLatency, get_input_latency, "([J)I"),
+        jni_method!(resetInputLatency, reset_input_latency, "()V"),
+        jni_method!(getFrameStats, get_frame_stats, "([J)I"),
         jni_method!(sendKeycode, send_key_code, "(I)V"),
+        jni_method!(setTargetFps, set_target_fps, "(I)V"),
         jni_method!(setRendererType, set_renderer_type, "(I)V"),
         jni_method!(setDebugRenderer, set_debug_renderer, "(I)V"),
         jni_method!(setDebugLogDir, set_debug_log_dir, "(Ljava/lang/String;)V"),
+        jni_method!(setTraceSampling, set_trace_sampling, "(I)V"),
+        jni_method!(getSocketStats, get_socket_stats, "([J)I"),
+        jni_method!(getMonitoredSockets, get_monitored_sockets, "()[Ljava/lang/String;"),
+        jni_method!(cloneFile, clone_file, "(Ljava/lang/String;Ljava/lang/String;)I"),
     ];
 
     let result = register_natives(&jvm, class_name, jni_methods.as_ref());
@@ -23,6 +23,8 @@ use ndk_sys::{
     ANativeWindow_lock, ANativeWindow_unlockAndPost,
 };
 
+use super::trace;
+
 /// Gralloc buffer manager
 ///
 /// This structure manages graphics buffers using Android's native window
@@ -32,6 +34,7 @@ pub struct GrallocManager {
     width: i32,
     height: i32,
     format: i32,
+    trace_channel: u32,
 }
 
 // ANativeWindow is thread-safe when properly reference counted
@@ -68,6 +71,7 @@ impl GrallocManager {
             width,
             height,
             format,
+            trace_channel: trace::register_channel("gralloc"),
         };
         
         // Configure buffer geometry
@@ -141,10 +145,8 @@ impl GrallocManager {
         debug!("[NEW_RENDERER][GRALLOC] Buffer: {}x{}, stride: {}, format: {}",
                buffer.width, buffer.height, buffer.stride, buffer.format);
         
-        // Dump buffer info to debug log
-        if super::is_debug_mode() {
-            self.dump_buffer_info("lock", &buffer);
-        }
+        // Trace buffer info in debug mode
+        self.dump_buffer_info(&buffer);
         
         Ok(buffer)
     }
@@ -156,10 +158,8 @@ impl GrallocManager {
     pub fn unlock_and_post(&self) -> io::Result<()> {
         debug!("[NEW_RENDERER][GRALLOC] Unlocking buffer and posting for display");
         
-        // Dump unlock event to debug log
-        if super::is_debug_mode() {
-            self.dump_gralloc_event("unlock_and_post");
-        }
+        // Trace unlock event in debug mode
+        self.dump_gralloc_event("unlock_and_post");
         
         let result = unsafe {
             ANativeWindow_unlockAndPost(self.window)
@@ -177,6 +177,16 @@ impl GrallocManager {
         Ok(())
     }
     
+    /// Present one frame through a lock/unlockAndPost cycle.
+    /// Returns the number of buffers queued to the display.
+    pub fn present(&mut self) -> io::Result<i64> {
+        let buffer = self.lock_buffer()?;
+        debug!("[NEW_RENDERER][GRALLOC] Buffer locked: {}x{}, stride: {}",
+               buffer.width, buffer.height, buffer.stride);
+        self.unlock_and_post()?;
+        Ok(1)
+    }
+
     /// Get the current window dimensions
     pub fn get_size(&self) -> (i32, i32) {
         (self.width, self.height)
@@ -188,53 +198,19 @@ impl GrallocManager {
         self.format
     }
     
-    /// Dump buffer info to debug log
-    fn dump_buffer_info(&self, event: &str, buffer: &ANativeWindow_Buffer) {
-        use std::fs::OpenOptions;
-        use std::io::Write;
-        use std::time::{SystemTime, UNIX_EPOCH};
-        
-        let timestamp = SystemTime::now()
-            .duration_since(UNIX_EPOCH)
-            .unwrap()
-            .as_millis();
-        
-        let log_dir = super::get_debug_log_dir();
-        let _ = std::fs::create_dir_all(&log_dir);
-        let log_path = format!("{}/gralloc_buffers.log", log_dir);
-        
-        if let Ok(mut file) = OpenOptions::new()
-            .create(true)
-            .append(true)
-            .open(&log_path)
-        {
-            let _ = writeln!(file, "[{}] BUFFER_{}: width={}, height={}, stride={}, format={}", 
-                            timestamp, event.to_uppercase(), buffer.width, buffer.height, buffer.stride, buffer.format);
-        }
+    /// Trace the geometry of a locked buffer in debug mode
+    fn dump_buffer_info(&self, buffer: &ANativeWindow_Buffer) {
+        let mut info = [0u8; 16];
+        info[0..4].copy_from_slice(&buffer.width.to_le_bytes());
+        info[4..8].copy_from_slice(&buffer.height.to_le_bytes());
+        info[8..12].copy_from_slice(&buffer.stride.to_le_bytes());
+        info[12..16].copy_from_slice(&buffer.format.to_le_bytes());
+        trace::record(trace::KIND_GRALLOC_BUFFER, self.trace_channel, &info);
     }
-    
-    /// Dump gralloc event to debug log
+
+    /// Trace a gralloc event in debug mode
     fn dump_gralloc_event(&self, event: &str) {
-        use std::fs::OpenOptions;
-        use std::io::Write;
-        use std::time::{SystemTime, UNIX_EPOCH};
-        
-        let timestamp = SystemTime::now()
-            .duration_since(UNIX_EPOCH)
-            .unwrap()
-            .as_millis();
-        
-        let log_dir = super::get_debug_log_dir();
-        let _ = std::fs::create_dir_all(&log_dir);
-        let log_path = format!("{}/gralloc_events.log", log_dir);
-        
-        if let Ok(mut file) = OpenOptions::new()
-            .create(true)
-            .append(true)
-            .open(&log_path)
-        {
-            let _ = writeln!(file, "[{}] {}", timestamp, event.to_uppercase());
-        }
+        trace::record(trace::KIND_GRALLOC_EVENT, self.trace_channel, event.as_bytes());
     }
 }
 
@@ -27,16 +27,19 @@ pub static DEBUG_MODE: AtomicBool = AtomicBool::new(false);
 pub static DEBUG_LOG_DIR: Lazy<Mutex<String>> = Lazy::new(|| Mutex::new(String::from("twoyi_renderer_debug")));
 
 pub mod pipe;
+pub mod ring;
 pub mod opengles;
 pub mod gralloc;
 pub mod renderer;
 pub mod socket_monitor;
+pub mod trace;
 
 pub use renderer::{
     start_renderer,
     reset_window,
     remove_window,
     set_native_window,
+    set_target_fps,
 };
 
 /// Set the debug mode for the renderer
@@ -51,6 +54,9 @@ pub fn set_debug_mode(enabled: bool) {
     if enabled {
         log::info!("[NEW_RENDERER] Starting socket monitoring for debug mode");
         socket_monitor::start_socket_monitoring();
+    } else {
+        socket_monitor::stop_socket_monitoring();
+        trace::stop_writer();
     }
 }
 
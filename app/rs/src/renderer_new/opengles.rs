@@ -16,6 +16,7 @@
 
 use log::{debug, info, warn};
 use super::pipe::PipeConnection;
+use super::trace;
 use std::io;
 
 /// OpenGL ES command types
@@ -29,6 +30,7 @@ pub enum GLCommand {
     MakeCurrent = 0x1003,
     Destroy = 0x1004,
     Repaint = 0x1005,
+    SetFrameRate = 0x1006,
 }
 
 /// OpenGL ES context state
@@ -37,6 +39,7 @@ pub struct GLContext {
     width: i32,
     height: i32,
     initialized: bool,
+    trace_channel: u32,
 }
 
 impl GLContext {
@@ -61,34 +64,24 @@ impl GLContext {
             width: 0,
             height: 0,
             initialized: false,
+            trace_channel: trace::register_channel("opengles"),
         })
     }
     
-    /// Dump command info to debug log if debug mode is enabled
-    fn dump_command(&self, cmd: GLCommand, params: &str) {
-        if super::is_debug_mode() {
-            use std::fs::OpenOptions;
-            use std::io::Write;
-            use std::time::{SystemTime, UNIX_EPOCH};
-            
-            let timestamp = SystemTime::now()
-                .duration_since(UNIX_EPOCH)
-                .unwrap()
-                .as_millis();
-            
-            let log_dir = super::get_debug_log_dir();
-            let _ = std::fs::create_dir_all(&log_dir);
-            let log_path = format!("{}/opengles_commands.log", log_dir);
-            
-            if let Ok(mut file) = OpenOptions::new()
-                .create(true)
-                .append(true)
-                .open(&log_path)
-            {
-                let _ = writeln!(file, "[{}] {:?} (0x{:04x}): {}", 
-                                timestamp, cmd, cmd as u32, params);
-            }
+    /// Trace a command and its parameters if debug mode is enabled
+    fn dump_command(&self, cmd: GLCommand, params: &[i32]) {
+        if !super::is_debug_mode() {
+            return;
+        }
+
+        // command word followed by the raw parameters, decoded off-device
+        let mut data = [0u8; 4 * 8];
+        data[..4].copy_from_slice(&(cmd as u32).to_le_bytes());
+        let count = params.len().min(7);
+        for (i, param) in params[..count].iter().enumerate() {
+            data[4 + i * 4..8 + i * 4].copy_from_slice(&param.to_le_bytes());
         }
+        trace::record(trace::KIND_GL_COMMAND, self.trace_channel, &data[..4 + count * 4]);
     }
     
     /// Initialize the OpenGL ES context
@@ -97,8 +90,7 @@ impl GLContext {
               width, height, xdpi, ydpi, fps);
         
         // Dump command to debug log
-        self.dump_command(GLCommand::Initialize, 
-                         &format!("width={}, height={}, xdpi={}, ydpi={}, fps={}", width, height, xdpi, ydpi, fps));
+        self.dump_command(GLCommand::Initialize, &[width, height, xdpi, ydpi, fps]);
         
         // Send initialization command
         let cmd = GLCommand::Initialize as u32;
@@ -136,8 +128,7 @@ impl GLContext {
               width, height, fb_width, fb_height);
         
         // Dump command to debug log
-        self.dump_command(GLCommand::SetWindowSize, 
-                         &format!("width={}, height={}, fb_width={}, fb_height={}", width, height, fb_width, fb_height));
+        self.dump_command(GLCommand::SetWindowSize, &[width, height, fb_width, fb_height]);
         
         let cmd = GLCommand::SetWindowSize as u32;
         debug!("[NEW_RENDERER] Sending SetWindowSize command: 0x{:04x}", cmd);
@@ -163,11 +154,28 @@ impl GLContext {
         Ok(())
     }
     
+    /// Change the composition rate of the backend at runtime
+    pub fn set_frame_rate(&mut self, fps: i32) -> io::Result<()> {
+        info!("[NEW_RENDERER] Setting frame rate: {}", fps);
+
+        self.dump_command(GLCommand::SetFrameRate, &[fps]);
+
+        let cmd = GLCommand::SetFrameRate as u32;
+        debug!("[NEW_RENDERER] Sending SetFrameRate command: 0x{:04x}", cmd);
+
+        self.pipe.write_all(&cmd.to_le_bytes())?;
+        self.pipe.write_all(&fps.to_le_bytes())?;
+        self.pipe.flush()?;
+
+        info!("[NEW_RENDERER] Frame rate updated successfully");
+        Ok(())
+    }
+
     /// Swap buffers to display rendered content
     #[allow(dead_code)]
     pub fn swap_buffers(&mut self) -> io::Result<()> {
         debug!("[NEW_RENDERER] Swapping buffers");
-        self.dump_command(GLCommand::SwapBuffers, "");
+        self.dump_command(GLCommand::SwapBuffers, &[]);
         let cmd = GLCommand::SwapBuffers as u32;
         self.pipe.write_all(&cmd.to_le_bytes())?;
         self.pipe.flush()?;
@@ -179,7 +187,7 @@ impl GLContext {
     #[allow(dead_code)]
     pub fn repaint(&mut self) -> io::Result<()> {
         debug!("[NEW_RENDERER] Repainting display");
-        self.dump_command(GLCommand::Repaint, "");
+        self.dump_command(GLCommand::Repaint, &[]);
         let cmd = GLCommand::Repaint as u32;
         self.pipe.write_all(&cmd.to_le_bytes())?;
         self.pipe.flush()?;
@@ -191,7 +199,7 @@ impl GLContext {
     pub fn destroy(&mut self) -> io::Result<()> {
         info!("[NEW_RENDERER] Destroying GL context");
         
-        self.dump_command(GLCommand::Destroy, "");
+        self.dump_command(GLCommand::Destroy, &[]);
         
         let cmd = GLCommand::Destroy as u32;
         debug!("[NEW_RENDERER] Sending Destroy command: 0x{:04x}", cmd);
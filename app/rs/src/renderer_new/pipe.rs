@@ -13,12 +13,25 @@
 //! 
 //! This module implements the QEMU pipe protocol for communication with the
 //! container's OpenGL ES endpoints, similar to Anbox's pipe_connection_creator.
+//!
+//! Once pipelining is started, writes no longer touch the pipe on the
+//! renderer thread: encoded commands are appended to a lock-free SPSC ring
+//! and a dedicated I/O thread drains everything queued with one `writev`.
+//! Only a read, i.e. a command that needs a reply, waits for the ring to
+//! drain first.
 
-use log::{debug, info, warn};
+use log::{debug, error, info, warn};
 use std::fs::{File, OpenOptions};
 use std::io::{self, Read, Write};
 use std::os::unix::io::{AsRawFd, RawFd};
 use std::path::Path;
+use std::sync::atomic::{AtomicBool, Ordering};
+use std::sync::{Arc, Mutex};
+use std::thread::{self, JoinHandle, Thread};
+use std::time::Duration;
+
+use super::ring::ByteRing;
+use super::trace;
 
 /// QEMU pipe service names for OpenGL ES
 pub const OPENGLES_PIPE: &str = "/opengles";
@@ -28,10 +41,160 @@ pub const OPENGLES3_PIPE: &str = "/opengles3";
 /// Default pipe device path
 const PIPE_DEVICE: &str = "/dev/qemu_pipe";
 
+/// Size of the command ring between the renderer and the I/O thread
+const PIPELINE_RING_SIZE: usize = 1 << 20;
+
+/// Wake the I/O thread without waiting for a flush once this much is queued
+const PIPELINE_KICK_THRESHOLD: usize = PIPELINE_RING_SIZE / 4;
+
+/// State shared between the renderer thread and the pipe I/O thread
+struct PipelineShared {
+    ring: ByteRing,
+    stop: AtomicBool,
+    failed: AtomicBool,
+    error: Mutex<Option<String>>,
+}
+
+/// The I/O thread owning the write side of a pipelined connection
+struct Pipeline {
+    shared: Arc<PipelineShared>,
+    io_thread: Thread,
+    handle: Option<JoinHandle<()>>,
+}
+
+impl Pipeline {
+    fn start(file: File, service_name: &str) -> io::Result<Self> {
+        let shared = Arc::new(PipelineShared {
+            ring: ByteRing::new(PIPELINE_RING_SIZE),
+            stop: AtomicBool::new(false),
+            failed: AtomicBool::new(false),
+            error: Mutex::new(None),
+        });
+
+        let thread_shared = shared.clone();
+        let handle = thread::Builder::new()
+            .name(format!("pipe-io{}", service_name.replace("/", "-")))
+            .spawn(move || pipeline_io_loop(file, thread_shared))?;
+
+        Ok(Pipeline {
+            shared,
+            io_thread: handle.thread().clone(),
+            handle: Some(handle),
+        })
+    }
+
+    fn check_error(&self) -> io::Result<()> {
+        if self.shared.failed.load(Ordering::Acquire) {
+            let message = self.shared.error.lock().unwrap().clone().unwrap_or_default();
+            return Err(io::Error::new(io::ErrorKind::BrokenPipe, message));
+        }
+        Ok(())
+    }
+
+    /// Queue `data`, waiting for room if the ring is full
+    fn submit(&self, data: &[u8]) -> io::Result<()> {
+        let ring = &self.shared.ring;
+        if data.len() > ring.capacity() {
+            // larger than the whole ring: let it through in pieces
+            for chunk in data.chunks(ring.capacity()) {
+                self.submit(chunk)?;
+            }
+            return Ok(());
+        }
+
+        while !ring.push(data) {
+            self.check_error()?;
+            self.kick();
+            thread::park_timeout(Duration::from_micros(50));
+        }
+
+        if ring.len() >= PIPELINE_KICK_THRESHOLD {
+            self.kick();
+        }
+        self.check_error()
+    }
+
+    /// Let the I/O thread write whatever is queued
+    fn kick(&self) {
+        self.io_thread.unpark();
+    }
+
+    /// Wait until everything queued so far has reached the pipe
+    fn drain(&self) -> io::Result<()> {
+        self.kick();
+        while !self.shared.ring.is_empty() {
+            self.check_error()?;
+            thread::park_timeout(Duration::from_micros(50));
+        }
+        self.check_error()
+    }
+}
+
+impl Drop for Pipeline {
+    fn drop(&mut self) {
+        // flush what is left before the thread goes away
+        let _ = self.drain();
+        self.shared.stop.store(true, Ordering::Release);
+        self.kick();
+        if let Some(handle) = self.handle.take() {
+            let _ = handle.join();
+        }
+    }
+}
+
+fn pipeline_io_loop(file: File, shared: Arc<PipelineShared>) {
+    let fd = file.as_raw_fd();
+    info!("[NEW_RENDERER][PIPE] I/O thread started");
+
+    loop {
+        let (first, second) = shared.ring.readable();
+        let pending = first.len() + second.len();
+        if pending == 0 {
+            if shared.stop.load(Ordering::Acquire) {
+                break;
+            }
+            thread::park();
+            continue;
+        }
+
+        // everything queued since the last wakeup goes out in one syscall
+        let iov = [
+            libc::iovec { iov_base: first.as_ptr() as *mut libc::c_void, iov_len: first.len() },
+            libc::iovec { iov_base: second.as_ptr() as *mut libc::c_void, iov_len: second.len() },
+        ];
+        let iov_count = if second.is_empty() { 1 } else { 2 };
+        let written = unsafe { libc::writev(fd, iov.as_ptr(), iov_count) };
+
+        if written < 0 {
+            let err = io::Error::last_os_error();
+            if err.kind() == io::ErrorKind::Interrupted {
+                continue;
+            }
+            error!("[NEW_RENDERER][PIPE] Pipelined write failed: {}", err);
+            *shared.error.lock().unwrap() = Some(err.to_string());
+            shared.failed.store(true, Ordering::Release);
+            // drop everything so waiting producers see the failure
+            shared.ring.consume(pending);
+            if shared.stop.load(Ordering::Acquire) {
+                break;
+            }
+            thread::park();
+            continue;
+        }
+
+        debug!("[NEW_RENDERER][PIPE] Pipelined write: {} of {} bytes", written, pending);
+        shared.ring.consume(written as usize);
+    }
+
+    info!("[NEW_RENDERER][PIPE] I/O thread stopped");
+}
+
 /// Represents a connection to a QEMU pipe
 pub struct PipeConnection {
     file: File,
     service_name: String,
+    pipeline: Option<Pipeline>,
+    trace_channel: u32,
 }
 
 impl PipeConnection {
@@ -62,6 +225,8 @@ impl PipeConnection {
         let mut connection = PipeConnection {
             file,
             service_name: service_name.to_string(),
+            pipeline: None,
+            trace_channel: trace::register_channel(&format!("pipe:{}", service_name)),
         };
         
         // Send the service name to establish connection
@@ -99,9 +264,35 @@ impl PipeConnection {
         Ok(())
     }
     
+    /// Move writes to a dedicated I/O thread
+    ///
+    /// After this, `write_all` only queues, `flush` hands the queue to the
+    /// I/O thread without waiting and reads wait for the queue to drain.
+    pub fn start_pipeline(&mut self) -> io::Result<()> {
+        if self.pipeline.is_some() {
+            return Ok(());
+        }
+        let file = self.file.try_clone()?;
+        self.pipeline = Some(Pipeline::start(file, &self.service_name)?);
+        info!("[NEW_RENDERER][PIPE] Pipelining enabled for {}", self.service_name);
+        Ok(())
+    }
+
+    /// Wait until every queued write has reached the pipe
+    pub fn sync(&mut self) -> io::Result<()> {
+        match self.pipeline {
+            Some(ref pipeline) => pipeline.drain(),
+            None => self.file.flush(),
+        }
+    }
+
     /// Write data to the pipe
     #[allow(dead_code)]
     pub fn write(&mut self, data: &[u8]) -> io::Result<usize> {
+        if let Some(ref pipeline) = self.pipeline {
+            pipeline.submit(data)?;
+            return Ok(data.len());
+        }
         self.file.write(data)
     }
     
@@ -109,12 +300,15 @@ impl PipeConnection {
     pub fn write_all(&mut self, data: &[u8]) -> io::Result<()> {
         debug!("[NEW_RENDERER] Writing {} bytes to pipe", data.len());
         
-        // Debug mode: dump data to log file
-        if super::is_debug_mode() {
-            self.dump_data_to_file("write", data);
-        }
+        // Debug mode: trace the data without blocking
+        trace::record(trace::KIND_PIPE_WRITE, self.trace_channel, data);
         
-        match self.file.write_all(data) {
+        let result = match self.pipeline {
+            Some(ref pipeline) => pipeline.submit(data),
+            None => self.file.write_all(data),
+        };
+
+        match result {
             Ok(_) => {
                 debug!("[NEW_RENDERER] Successfully wrote data to pipe");
                 Ok(())
@@ -129,13 +323,13 @@ impl PipeConnection {
     /// Read data from the pipe
     #[allow(dead_code)]
     pub fn read(&mut self, buf: &mut [u8]) -> io::Result<usize> {
+        // a reply can only come after the request went out
+        self.sync()?;
         let result = self.file.read(buf);
         
-        // Debug mode: dump data to log file
-        if super::is_debug_mode() {
-            if let Ok(size) = result {
-                self.dump_data_to_file("read", &buf[..size]);
-            }
+        // Debug mode: trace the data without blocking
+        if let Ok(size) = result {
+            trace::record(trace::KIND_PIPE_READ, self.trace_channel, &buf[..size]);
         }
         
         result
@@ -144,22 +338,29 @@ impl PipeConnection {
     /// Read exact amount of data from the pipe
     #[allow(dead_code)]
     pub fn read_exact(&mut self, buf: &mut [u8]) -> io::Result<()> {
+        self.sync()?;
         let result = self.file.read_exact(buf);
         
-        // Debug mode: dump data to log file
-        if super::is_debug_mode() {
-            if result.is_ok() {
-                self.dump_data_to_file("read", buf);
-            }
+        // Debug mode: trace the data without blocking
+        if result.is_ok() {
+            trace::record(trace::KIND_PIPE_READ, self.trace_channel, buf);
         }
         
         result
     }
     
     /// Flush the pipe
+    ///
+    /// When pipelined this only wakes the I/O thread, use `sync` to wait.
     pub fn flush(&mut self) -> io::Result<()> {
         debug!("[NEW_RENDERER] Flushing pipe");
-        self.file.flush()
+        match self.pipeline {
+            Some(ref pipeline) => {
+                pipeline.kick();
+                pipeline.check_error()
+            }
+            None => self.file.flush(),
+        }
     }
     
     /// Get the raw file descriptor
@@ -167,62 +368,6 @@ impl PipeConnection {
     pub fn as_raw_fd(&self) -> RawFd {
         self.file.as_raw_fd()
     }
-    
-    /// Dump data to a debug log file
-    fn dump_data_to_file(&self, direction: &str, data: &[u8]) {
-        use std::fs::OpenOptions;
-        use std::io::Write;
-        use std::time::{SystemTime, UNIX_EPOCH};
-        
-        // Create a debug log file path
-        let timestamp = SystemTime::now()
-            .duration_since(UNIX_EPOCH)
-            .unwrap()
-            .as_millis();
-        
-        let log_dir = super::get_debug_log_dir();
-        
-        // Create directory and log any errors
-        if let Err(e) = std::fs::create_dir_all(&log_dir) {
-            log::error!("[NEW_RENDERER][PIPE] Failed to create log directory {}: {}", log_dir, e);
-            return;
-        }
-        
-        let service_name = self.service_name.replace("/", "_");
-        let log_path = format!("{}/pipe_{}_{}.log", log_dir, service_name, direction);
-        
-        log::debug!("[NEW_RENDERER][PIPE] Writing {} bytes to {}", data.len(), log_path);
-        
-        match OpenOptions::new()
-            .create(true)
-            .append(true)
-            .open(&log_path)
-        {
-            Ok(mut file) => {
-                let _ = writeln!(file, "\n[{}] {} {} bytes:", timestamp, direction.to_uppercase(), data.len());
-                let _ = writeln!(file, "Hex: {:02x?}", data);
-                
-                // Also write as ASCII if printable
-                let ascii: String = data.iter()
-                    .map(|&b| if b.is_ascii_graphic() || b == b' ' { b as char } else { '.' })
-                    .collect();
-                let _ = writeln!(file, "ASCII: {}", ascii);
-                
-                // Log integers if data is 4-byte aligned
-                if data.len() >= 4 && data.len() % 4 == 0 {
-                    let _ = write!(file, "i32: [");
-                    for chunk in data.chunks_exact(4) {
-                        let value = i32::from_le_bytes([chunk[0], chunk[1], chunk[2], chunk[3]]);
-                        let _ = write!(file, "{}, ", value);
-                    }
-                    let _ = writeln!(file, "]");
-                }
-            }
-            Err(e) => {
-                log::error!("[NEW_RENDERER][PIPE] Failed to open log file {}: {}", log_path, e);
-            }
-        }
-    }
 }
 
 /// Check if QEMU pipe device is available
@@ -232,6 +377,15 @@ pub fn is_pipe_available() -> bool {
     available
 }
 
+/// Switch a fresh connection to pipelined writes, keeping it blocking if
+/// the I/O thread cannot be started
+fn pipelined(mut conn: PipeConnection) -> io::Result<PipeConnection> {
+    if let Err(e) = conn.start_pipeline() {
+        warn!("[NEW_RENDERER][PIPE] Failed to start pipelining, using blocking writes: {}", e);
+    }
+    Ok(conn)
+}
+
 /// Try to create a connection with automatic fallback
 /// 
 /// Tries to connect to OpenGL ES 3, then 2, then 1 if earlier versions fail
@@ -242,7 +396,7 @@ pub fn create_opengles_connection() -> io::Result<PipeConnection> {
     debug!("[NEW_RENDERER] Trying OpenGL ES 3.x");
     if let Ok(conn) = PipeConnection::new(OPENGLES3_PIPE) {
         info!("[NEW_RENDERER] Using OpenGL ES 3.x");
-        return Ok(conn);
+        return pipelined(conn);
     }
     debug!("[NEW_RENDERER] OpenGL ES 3.x not available, trying ES 2.x");
     
@@ -250,7 +404,7 @@ pub fn create_opengles_connection() -> io::Result<PipeConnection> {
     debug!("[NEW_RENDERER] Trying OpenGL ES 2.x");
     if let Ok(conn) = PipeConnection::new(OPENGLES2_PIPE) {
         info!("[NEW_RENDERER] Using OpenGL ES 2.x");
-        return Ok(conn);
+        return pipelined(conn);
     }
     debug!("[NEW_RENDERER] OpenGL ES 2.x not available, trying ES 1.x");
     
@@ -258,7 +412,7 @@ pub fn create_opengles_connection() -> io::Result<PipeConnection> {
     debug!("[NEW_RENDERER] Trying OpenGL ES 1.x");
     if let Ok(conn) = PipeConnection::new(OPENGLES_PIPE) {
         info!("[NEW_RENDERER] Using OpenGL ES 1.x");
-        return Ok(conn);
+        return pipelined(conn);
     }
     
     warn!("[NEW_RENDERER] Failed to connect to any OpenGL ES pipe service");
@@ -193,6 +193,25 @@ pub fn reset_window(
     }
 }
 
+/// Change the target frame rate of a running renderer
+///
+/// The old renderer has no equivalent, its rate is fixed at start
+pub fn set_target_fps(fps: i32) -> i32 {
+    info!("[NEW_RENDERER] Setting target FPS: {}", fps);
+
+    let mut renderer = RENDERER.lock().unwrap();
+    if let Some(state) = renderer.as_mut() {
+        if let Err(e) = state.gl_context.set_frame_rate(fps) {
+            error!("[NEW_RENDERER] Failed to set frame rate: {}", e);
+            return -1;
+        }
+        0
+    } else {
+        warn!("[NEW_RENDERER] Renderer not initialized");
+        -1
+    }
+}
+
 /// Remove subwindow
 /// 
 /// This function mimics the old `removeSubWindow` API
@@ -241,23 +260,16 @@ pub fn repaint_display() {
     
     let mut renderer = RENDERER.lock().unwrap();
     if let Some(state) = renderer.as_mut() {
-        // Demonstrate gralloc buffer management (lock/unlock cycle)
-        if let Some(ref gralloc) = state.gralloc_manager {
-            debug!("[NEW_RENDERER] Using gralloc buffer management for repaint");
-            
-            // Lock buffer for potential CPU access
-            match gralloc.lock_buffer() {
-                Ok(buffer) => {
-                    debug!("[NEW_RENDERER] Buffer locked: {}x{}, stride: {}", 
-                           buffer.width, buffer.height, buffer.stride);
-                    
-                    // Unlock and post the buffer for display
-                    if let Err(e) = gralloc.unlock_and_post() {
-                        error!("[NEW_RENDERER] Failed to unlock/post buffer: {}", e);
-                    }
-                },
+        let swap_start_ns = crate::latency::now_ns();
+        let mut buffers_queued = 0;
+
+        // Post the frame through gralloc on the selected path
+        if let Some(ref mut gralloc) = state.gralloc_manager {
+            debug!("[NEW_RENDERER] Presenting through gralloc");
+            match gralloc.present() {
+                Ok(queued) => buffers_queued += queued,
                 Err(e) => {
-                    warn!("[NEW_RENDERER] Failed to lock buffer: {}", e);
+                    warn!("[NEW_RENDERER] Failed to present buffer: {}", e);
                 }
             }
         }
@@ -268,6 +280,8 @@ pub fn repaint_display() {
         } else {
             debug!("[NEW_RENDERER] Display repainted successfully");
         }
+
+        crate::frame_stats::record_frame(swap_start_ns, crate::latency::now_ns(), buffers_queued);
     } else {
         warn!("[NEW_RENDERER] Renderer not initialized - cannot repaint");
     }
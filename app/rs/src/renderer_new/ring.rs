@@ -0,0 +1,127 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, You can obtain one at https://mozilla.org/MPL/2.0/.
+
+//! Lock-free single-producer single-consumer byte ring
+//!
+//! The renderer thread appends encoded GL commands and the pipe I/O thread
+//! drains them. `head` and `tail` are free-running byte counters: only the
+//! producer stores `head`, only the consumer stores `tail`, so a pair of
+//! acquire/release operations is all the synchronisation needed.
+
+use std::cell::UnsafeCell;
+use std::sync::atomic::{AtomicUsize, Ordering};
+
+pub struct ByteRing {
+    buf: Box<[UnsafeCell<u8>]>,
+    mask: usize,
+    // total bytes ever pushed, written by the producer only
+    head: AtomicUsize,
+    // total bytes ever consumed, written by the consumer only
+    tail: AtomicUsize,
+}
+
+// the producer and the consumer never touch the same bytes at the same time
+unsafe impl Sync for ByteRing {}
+unsafe impl Send for ByteRing {}
+
+impl ByteRing {
+    /// Create a ring, `capacity` is rounded up to a power of two
+    pub fn new(capacity: usize) -> Self {
+        let capacity = capacity.next_power_of_two();
+        let buf: Vec<UnsafeCell<u8>> = (0..capacity).map(|_| UnsafeCell::new(0)).collect();
+        ByteRing {
+            buf: buf.into_boxed_slice(),
+            mask: capacity - 1,
+            head: AtomicUsize::new(0),
+            tail: AtomicUsize::new(0),
+        }
+    }
+
+    pub fn capacity(&self) -> usize {
+        self.mask + 1
+    }
+
+    /// Bytes waiting to be consumed
+    pub fn len(&self) -> usize {
+        self.head.load(Ordering::Acquire).wrapping_sub(self.tail.load(Ordering::Acquire))
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.len() == 0
+    }
+
+    fn ptr(&self, pos: usize) -> *mut u8 {
+        self.buf[pos & self.mask].get()
+    }
+
+    /// Producer: append all of `data` or nothing. Returns false if it does not fit.
+    pub fn push(&self, data: &[u8]) -> bool {
+        let head = self.head.load(Ordering::Relaxed);
+        let tail = self.tail.load(Ordering::Acquire);
+        let free = self.capacity() - head.wrapping_sub(tail);
+        if data.len() > free {
+            return false;
+        }
+
+        let start = head & self.mask;
+        let first = data.len().min(self.capacity() - start);
+        unsafe {
+            std::ptr::copy_nonoverlapping(data.as_ptr(), self.ptr(head), first);
+            std::ptr::copy_nonoverlapping(data[first..].as_ptr(), self.ptr(0), data.len() - first);
+        }
+
+        self.head.store(head.wrapping_add(data.len()), Ordering::Release);
+        true
+    }
+
+    /// Consumer: the readable bytes as at most two slices, in order
+    pub fn readable(&self) -> (&[u8], &[u8]) {
+        let tail = self.tail.load(Ordering::Relaxed);
+        let head = self.head.load(Ordering::Acquire);
+        let len = head.wrapping_sub(tail);
+
+        let start = tail & self.mask;
+        let first = len.min(self.capacity() - start);
+        unsafe {
+            (
+                std::slice::from_raw_parts(self.ptr(tail), first),
+                std::slice::from_raw_parts(self.ptr(0), len - first),
+            )
+        }
+    }
+
+    /// Consumer: release `n` bytes returned by `readable`
+    pub fn consume(&self, n: usize) {
+        let tail = self.tail.load(Ordering::Relaxed);
+        self.tail.store(tail.wrapping_add(n), Ordering::Release);
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn test_push_wraps_around() {
+        let ring = ByteRing::new(8);
+        assert!(ring.push(&[1, 2, 3, 4, 5, 6]));
+        ring.consume(4);
+        assert!(ring.push(&[7, 8, 9, 10, 11]));
+        assert!(!ring.push(&[12, 13]));
+
+        let (a, b) = ring.readable();
+        let all: Vec<u8> = a.iter().chain(b.iter()).copied().collect();
+        assert_eq!(all, vec![5, 6, 7, 8, 9, 10, 11]);
+
+        ring.consume(all.len());
+        assert!(ring.is_empty());
+    }
+}
@@ -11,17 +11,25 @@
 
 //! Socket monitoring module for debug renderer
 //! 
-//! This module monitors and dumps data from various container sockets when
+//! This module monitors and traces data from various container sockets when
 //! debug mode is enabled, including input sockets, service sockets, binder
 //! sockets, and OpenGL ES sockets.
+//!
+//! A single thread waits on one epoll set holding every connected socket and
+//! an eventfd used to stop it, so an idle container costs no wakeups. Per
+//! socket byte and message counters are kept in atomics and copied out by
+//! `snapshot` for `Renderer.getSocketStats`.
 
 use log::{debug, error, info, warn};
-use std::fs::OpenOptions;
-use std::io::{self, Read, Write};
+use once_cell::sync::Lazy;
+use std::io::{self, Read};
+use std::os::unix::io::AsRawFd;
 use std::os::unix::net::UnixStream;
 use std::path::Path;
+use std::sync::atomic::{AtomicBool, AtomicI32, AtomicI64, Ordering};
 use std::thread;
-use std::time::{Duration, SystemTime, UNIX_EPOCH};
+use std::time::{Duration, Instant};
+use super::trace;
 
 /// List of sockets to monitor in the container
 const SOCKET_PATHS: &[&str] = &[
@@ -65,130 +73,276 @@ const SOCKET_PATHS: &[&str] = &[
     "/data/system/ndebugsocket",
 ];
 
+
+/// Values per socket in a snapshot: state, bytes read, messages read,
+/// last activity (monotonic ns). A message is one read returning data.
+pub const STAT_LEN: usize = 4;
+
+/// Not connected yet, the socket is missing or refused the connection
+pub const STATE_IDLE: i32 = 0;
+pub const STATE_CONNECTED: i32 = 1;
+pub const STATE_CLOSED: i32 = 2;
+
+/// Sockets missing at start or closed later are retried at this interval,
+/// for up to `MAX_RETRIES` rounds (2 minutes) while the container (re)boots
+const RETRY_INTERVAL: Duration = Duration::from_millis(5000);
+const MAX_RETRIES: u32 = 24;
+
+const READ_BUFFER_SIZE: usize = 4096;
+const MAX_EVENTS: usize = 16;
+
+/// epoll token of the stop eventfd, sockets use their index in `SOCKET_PATHS`
+const STOP_TOKEN: u64 = u64::MAX;
+
+const SOCKET_COUNT: usize = SOCKET_PATHS.len();
+
+struct SocketCounters {
+    state: AtomicI32,
+    bytes: AtomicI64,
+    messages: AtomicI64,
+    last_activity_ns: AtomicI64,
+}
+
+impl SocketCounters {
+    fn reset(&self) {
+        self.state.store(STATE_IDLE, Ordering::Relaxed);
+        self.bytes.store(0, Ordering::Relaxed);
+        self.messages.store(0, Ordering::Relaxed);
+        self.last_activity_ns.store(0, Ordering::Relaxed);
+    }
+}
+
+#[allow(clippy::declare_interior_mutable_const)]
+const COUNTERS_INIT: SocketCounters = SocketCounters {
+    state: AtomicI32::new(STATE_IDLE),
+    bytes: AtomicI64::new(0),
+    messages: AtomicI64::new(0),
+    last_activity_ns: AtomicI64::new(0),
+};
+
+static COUNTERS: [SocketCounters; SOCKET_COUNT] = [COUNTERS_INIT; SOCKET_COUNT];
+
+static RUNNING: AtomicBool = AtomicBool::new(false);
+
+/// eventfd waking the monitor thread to stop, created once and reused so a
+/// late `stop_socket_monitoring` can never write to a recycled descriptor
+static STOP_EVENT: Lazy<i32> = Lazy::new(|| unsafe {
+    libc::eventfd(0, libc::EFD_CLOEXEC | libc::EFD_NONBLOCK)
+});
+
 /// Start monitoring all container sockets
 pub fn start_socket_monitoring() {
     if !super::is_debug_mode() {
         debug!("[SOCKET_MONITOR] Debug mode not enabled, skipping socket monitoring");
         return;
     }
-    
-    info!("[SOCKET_MONITOR] Starting socket monitoring for debug renderer");
-    
-    // Create debug log directory
-    let log_dir = super::get_debug_log_dir();
-    if let Err(e) = std::fs::create_dir_all(&log_dir) {
-        error!("[SOCKET_MONITOR] Failed to create log directory: {}", e);
+
+    let stop_fd = *STOP_EVENT;
+    if stop_fd < 0 {
+        error!("[SOCKET_MONITOR] Failed to create stop event: {}", io::Error::last_os_error());
         return;
     }
-    
-    // Spawn monitoring threads for each socket
-    // Note: Threads will naturally terminate when sockets close or fail to connect.
-    // They use timeouts and non-blocking I/O to avoid hanging indefinitely.
-    // The OS will clean up all threads when the process terminates.
-    for socket_path in SOCKET_PATHS {
-        let path = socket_path.to_string();
-        thread::spawn(move || {
-            monitor_socket(&path);
+
+    if RUNNING
+        .compare_exchange(false, true, Ordering::AcqRel, Ordering::Acquire)
+        .is_err()
+    {
+        debug!("[SOCKET_MONITOR] Socket monitoring already running");
+        return;
+    }
+
+    info!("[SOCKET_MONITOR] Starting socket monitoring for debug renderer");
+    for counters in COUNTERS.iter() {
+        counters.reset();
+    }
+
+    let spawned = thread::Builder::new()
+        .name("socket-monitor".to_string())
+        .spawn(move || {
+            monitor_loop(stop_fd);
+            // clear a pending stop request so the next start is not stopped at once
+            let mut value = 0u64;
+            unsafe { libc::read(stop_fd, &mut value as *mut u64 as *mut libc::c_void, 8) };
+            RUNNING.store(false, Ordering::Release);
+            info!("[SOCKET_MONITOR] Socket monitoring stopped");
         });
+    if let Err(e) = spawned {
+        error!("[SOCKET_MONITOR] Failed to start monitor thread: {}", e);
+        RUNNING.store(false, Ordering::Release);
     }
-    
-    info!("[SOCKET_MONITOR] Socket monitoring threads started");
 }
 
-/// Monitor a single socket and dump its data
-fn monitor_socket(socket_path: &str) {
-    debug!("[SOCKET_MONITOR] Starting monitor for socket: {}", socket_path);
-    
-    // Check if socket exists
-    if !Path::new(socket_path).exists() {
-        debug!("[SOCKET_MONITOR] Socket does not exist: {}", socket_path);
+/// Stop the monitor thread, it closes every socket it holds
+pub fn stop_socket_monitoring() {
+    if !RUNNING.load(Ordering::Acquire) {
         return;
     }
-    
-    // Try to connect to the socket
-    match UnixStream::connect(socket_path) {
-        Ok(mut stream) => {
-            info!("[SOCKET_MONITOR] Connected to socket: {}", socket_path);
-            
-            // Set non-blocking mode with timeout
-            if let Err(e) = stream.set_read_timeout(Some(Duration::from_millis(100))) {
-                warn!("[SOCKET_MONITOR] Failed to set read timeout: {}", e);
-            }
-            
-            let socket_name = socket_path.replace("/", "_");
-            let log_dir = super::get_debug_log_dir();
-            let log_path = format!("{}/socket_{}.log", log_dir, socket_name);
-            
-            // Read and dump data from socket
-            let mut buffer = vec![0u8; 4096];
-            loop {
-                match stream.read(&mut buffer) {
-                    Ok(0) => {
-                        debug!("[SOCKET_MONITOR] Socket closed: {}", socket_path);
-                        break;
-                    }
-                    Ok(n) => {
-                        dump_socket_data(socket_path, &log_path, "READ", &buffer[..n]);
-                    }
-                    Err(ref e) if e.kind() == io::ErrorKind::WouldBlock => {
-                        // Timeout, continue monitoring
-                        thread::sleep(Duration::from_millis(50));
-                        continue;
-                    }
-                    Err(e) => {
-                        warn!("[SOCKET_MONITOR] Error reading from socket {}: {}", socket_path, e);
-                        break;
-                    }
-                }
-            }
-        }
+    info!("[SOCKET_MONITOR] Socket monitoring stop requested");
+    let value = 1u64;
+    unsafe { libc::write(*STOP_EVENT, &value as *const u64 as *const libc::c_void, 8) };
+}
+
+/// Paths of the monitored sockets, in snapshot order
+pub fn socket_paths() -> &'static [&'static str] {
+    SOCKET_PATHS
+}
+
+/// Copy the counters of as many sockets as fit into `out`, `STAT_LEN` values each.
+/// Returns the number of sockets written.
+pub fn snapshot(out: &mut [i64]) -> i32 {
+    let count = SOCKET_COUNT.min(out.len() / STAT_LEN);
+    for (i, counters) in COUNTERS.iter().take(count).enumerate() {
+        let base = i * STAT_LEN;
+        out[base] = counters.state.load(Ordering::Relaxed) as i64;
+        out[base + 1] = counters.bytes.load(Ordering::Relaxed);
+        out[base + 2] = counters.messages.load(Ordering::Relaxed);
+        out[base + 3] = counters.last_activity_ns.load(Ordering::Relaxed);
+    }
+    count as i32
+}
+
+fn epoll_add(epoll: i32, fd: i32, token: u64) -> io::Result<()> {
+    let mut event = libc::epoll_event {
+        events: (libc::EPOLLIN | libc::EPOLLRDHUP) as u32,
+        u64: token,
+    };
+    if unsafe { libc::epoll_ctl(epoll, libc::EPOLL_CTL_ADD, fd, &mut event) } < 0 {
+        return Err(io::Error::last_os_error());
+    }
+    Ok(())
+}
+
+/// Connect to a socket and add it to the epoll set, false if it is not available yet
+fn connect_socket(epoll: i32, index: usize, streams: &mut [Option<UnixStream>]) -> bool {
+    let socket_path = SOCKET_PATHS[index];
+    if !Path::new(socket_path).exists() {
+        return false;
+    }
+
+    let stream = match UnixStream::connect(socket_path) {
+        Ok(stream) => stream,
         Err(e) => {
             debug!("[SOCKET_MONITOR] Failed to connect to socket {}: {}", socket_path, e);
+            return false;
         }
+    };
+    if let Err(e) = stream.set_nonblocking(true) {
+        warn!("[SOCKET_MONITOR] Failed to set non-blocking mode on {}: {}", socket_path, e);
+        return false;
+    }
+    if let Err(e) = epoll_add(epoll, stream.as_raw_fd(), index as u64) {
+        warn!("[SOCKET_MONITOR] Failed to watch socket {}: {}", socket_path, e);
+        return false;
     }
+
+    info!("[SOCKET_MONITOR] Connected to socket: {}", socket_path);
+    COUNTERS[index].state.store(STATE_CONNECTED, Ordering::Relaxed);
+    streams[index] = Some(stream);
+    true
 }
 
-/// Dump socket data to a log file
-fn dump_socket_data(socket_path: &str, log_path: &str, direction: &str, data: &[u8]) {
-    let timestamp = SystemTime::now()
-        .duration_since(UNIX_EPOCH)
-        .unwrap()
-        .as_millis();
-    
-    if let Ok(mut file) = OpenOptions::new()
-        .create(true)
-        .append(true)
-        .open(log_path)
-    {
-        let _ = writeln!(file, "\n[{}] {} {} bytes from {}:", 
-                        timestamp, direction, data.len(), socket_path);
-        let _ = writeln!(file, "Hex: {:02x?}", data);
-        
-        // Try to interpret as ASCII
-        let ascii: String = data.iter()
-            .map(|&b| if b.is_ascii_graphic() || b == b' ' || b == b'\n' || b == b'\r' { 
-                b as char 
-            } else { 
-                '.' 
-            })
-            .collect();
-        let _ = writeln!(file, "ASCII: {}", ascii);
-        
-        // If data is 4-byte aligned, also show as integers
-        if data.len() >= 4 && data.len() % 4 == 0 {
-            let _ = write!(file, "i32: [");
-            for chunk in data.chunks_exact(4) {
-                let value = i32::from_le_bytes([chunk[0], chunk[1], chunk[2], chunk[3]]);
-                let _ = write!(file, "{}, ", value);
+/// Read everything available on a socket, false once it is closed or failed
+fn drain_socket(index: usize, stream: &mut UnixStream, channel: u32, buffer: &mut [u8]) -> bool {
+    let counters = &COUNTERS[index];
+    loop {
+        match stream.read(buffer) {
+            Ok(0) => {
+                debug!("[SOCKET_MONITOR] Socket closed: {}", SOCKET_PATHS[index]);
+                return false;
+            }
+            Ok(n) => {
+                counters.bytes.fetch_add(n as i64, Ordering::Relaxed);
+                counters.messages.fetch_add(1, Ordering::Relaxed);
+                counters.last_activity_ns.store(crate::latency::now_ns(), Ordering::Relaxed);
+                trace::record(trace::KIND_SOCKET_READ, channel, &buffer[..n]);
+            }
+            Err(ref e) if e.kind() == io::ErrorKind::WouldBlock => return true,
+            Err(ref e) if e.kind() == io::ErrorKind::Interrupted => continue,
+            Err(e) => {
+                warn!("[SOCKET_MONITOR] Error reading from socket {}: {}", SOCKET_PATHS[index], e);
+                return false;
             }
-            let _ = writeln!(file, "]");
         }
     }
 }
 
-/// Stop socket monitoring (currently monitors run until socket closes or process ends)
-#[allow(dead_code)]
-pub fn stop_socket_monitoring() {
-    info!("[SOCKET_MONITOR] Socket monitoring stop requested");
-    // Individual monitor threads will terminate when sockets close
+/// Wait on every socket at once until stopped
+fn monitor_loop(stop_fd: i32) {
+    let epoll = unsafe { libc::epoll_create1(libc::EPOLL_CLOEXEC) };
+    if epoll < 0 {
+        error!("[SOCKET_MONITOR] epoll_create1 failed: {}", io::Error::last_os_error());
+        return;
+    }
+    if let Err(e) = epoll_add(epoll, stop_fd, STOP_TOKEN) {
+        error!("[SOCKET_MONITOR] Failed to watch stop event: {}", e);
+        unsafe { libc::close(epoll) };
+        return;
+    }
+
+    let channels: Vec<u32> = SOCKET_PATHS
+        .iter()
+        .map(|path| trace::register_channel(&format!("socket:{}", path)))
+        .collect();
+    let mut streams: Vec<Option<UnixStream>> = (0..SOCKET_COUNT).map(|_| None).collect();
+    let mut pending: Vec<usize> = (0..SOCKET_COUNT).collect();
+    let mut retries = 0;
+    let mut next_retry = Instant::now();
+    let mut buffer = vec![0u8; READ_BUFFER_SIZE];
+    let mut events = [libc::epoll_event { events: 0, u64: 0 }; MAX_EVENTS];
+
+    'outer: loop {
+        let retrying = !pending.is_empty() && retries < MAX_RETRIES;
+        // socket traffic wakes the loop too, only a passed deadline is a retry round
+        if retrying && Instant::now() >= next_retry {
+            pending.retain(|&index| !connect_socket(epoll, index, &mut streams));
+            retries += 1;
+            next_retry = Instant::now() + RETRY_INTERVAL;
+            if retries == 1 {
+                info!("[SOCKET_MONITOR] Watching {} sockets, {} not available yet",
+                      SOCKET_COUNT - pending.len(), pending.len());
+            }
+        }
+
+        // block without a timeout once there is nothing left to retry
+        let timeout = if pending.is_empty() || retries >= MAX_RETRIES {
+            -1
+        } else {
+            let remaining = next_retry.saturating_duration_since(Instant::now());
+            // round up, waking a little early would spin until the deadline
+            ((remaining.as_micros() + 999) / 1000) as i32
+        };
+        let n = unsafe { libc::epoll_wait(epoll, events.as_mut_ptr(), MAX_EVENTS as i32, timeout) };
+        if n < 0 {
+            let err = io::Error::last_os_error();
+            if err.kind() == io::ErrorKind::Interrupted {
+                continue;
+            }
+            error!("[SOCKET_MONITOR] epoll_wait failed: {}", err);
+            break;
+        }
+
+        for event in events.iter().take(n as usize) {
+            let token = event.u64;
+            if token == STOP_TOKEN {
+                break 'outer;
+            }
+
+            let index = token as usize;
+            let open = match streams[index].as_mut() {
+                Some(stream) => drain_socket(index, stream, channels[index], &mut buffer),
+                None => continue,
+            };
+            if !open {
+                // dropping the stream closes it, which also removes it from the epoll set
+                streams[index] = None;
+                COUNTERS[index].state.store(STATE_CLOSED, Ordering::Relaxed);
+                // the service may come back (a restarted container), retry it with a fresh budget
+                pending.push(index);
+                retries = 0;
+                next_retry = Instant::now() + RETRY_INTERVAL;
+            }
+        }
+    }
+
+    unsafe { libc::close(epoll) };
 }
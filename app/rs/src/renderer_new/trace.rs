@@ -0,0 +1,452 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, You can obtain one at https://mozilla.org/MPL/2.0/.
+
+//! Asynchronous binary trace for debug renderer mode
+//!
+//! Producers (renderer, pipe, gralloc and socket monitor) copy a record into
+//! one of `QUEUE_SLOTS` preallocated fixed-size slots of a lock-free bounded
+//! queue and return immediately; a full queue drops the record and counts it.
+//! A single writer thread appends the records to a memory-mapped trace file
+//! in the debug log directory and rotates to a new file when it is full,
+//! keeping the last `MAX_TRACE_FILES`. The writer starts with the first
+//! record and `stop_writer` drains the queue and joins it when debug mode
+//! is turned off.
+//!
+//! File format, little endian, decoded by `io.twoyi.utils.RendererTrace`:
+//!
+//! - file header: magic `TYTRACE1`, u32 version, u32 header length
+//! - records: u64 monotonic timestamp (ns), u32 original payload length,
+//!   u32 channel, u16 kind, u16 stored payload length, payload padded to 4 bytes
+//! - a record with kind 0 (the zero fill of the file) marks the end
+//!
+//! Channel names are written as `KIND_CHANNEL` records at the start of every
+//! file and whenever a new channel is registered, so each file stands alone.
+
+use log::{error, info, warn};
+use once_cell::sync::Lazy;
+use std::cell::UnsafeCell;
+use std::fs::{File, OpenOptions};
+use std::os::unix::io::AsRawFd;
+use std::sync::atomic::{AtomicBool, AtomicU32, AtomicU64, AtomicUsize, Ordering};
+use std::sync::Mutex;
+use std::thread::{self, JoinHandle};
+use std::time::Duration;
+
+pub const KIND_CHANNEL: u16 = 1;
+pub const KIND_PIPE_WRITE: u16 = 2;
+pub const KIND_PIPE_READ: u16 = 3;
+pub const KIND_GRALLOC_BUFFER: u16 = 4;
+pub const KIND_GRALLOC_EVENT: u16 = 5;
+pub const KIND_SOCKET_READ: u16 = 6;
+pub const KIND_GL_COMMAND: u16 = 7;
+pub const KIND_DROPPED: u16 = 8;
+
+const FILE_MAGIC: &[u8; 8] = b"TYTRACE1";
+const FILE_VERSION: u32 = 1;
+const FILE_HEADER_LEN: usize = 16;
+const RECORD_HEADER_LEN: usize = 20;
+
+const TRACE_FILE_SIZE: usize = 16 << 20;
+const MAX_TRACE_FILES: u32 = 4;
+
+/// Bytes of payload kept per record, the original length is still recorded
+const SLOT_PAYLOAD: usize = 240;
+const QUEUE_SLOTS: usize = 4096;
+
+const WRITER_INTERVAL: Duration = Duration::from_millis(10);
+
+#[derive(Clone, Copy)]
+struct RecordData {
+    timestamp_ns: u64,
+    orig_len: u32,
+    channel: u32,
+    kind: u16,
+    len: u16,
+    payload: [u8; SLOT_PAYLOAD],
+}
+
+struct Slot {
+    // Vyukov bounded queue sequence: equals the position when free for it,
+    // position + 1 once written
+    seq: AtomicUsize,
+    data: UnsafeCell<RecordData>,
+}
+
+/// Bounded multi-producer single-consumer queue of preallocated slots
+struct TraceQueue {
+    slots: Box<[Slot]>,
+    mask: usize,
+    enqueue_pos: AtomicUsize,
+    dequeue_pos: AtomicUsize,
+}
+
+// a slot is only accessed by the thread that claimed it through `seq`
+unsafe impl Sync for TraceQueue {}
+
+impl TraceQueue {
+    fn new(capacity: usize) -> Self {
+        let slots: Vec<Slot> = (0..capacity)
+            .map(|i| Slot {
+                seq: AtomicUsize::new(i),
+                data: UnsafeCell::new(RecordData {
+                    timestamp_ns: 0,
+                    orig_len: 0,
+                    channel: 0,
+                    kind: 0,
+                    len: 0,
+                    payload: [0; SLOT_PAYLOAD],
+                }),
+            })
+            .collect();
+        TraceQueue {
+            slots: slots.into_boxed_slice(),
+            mask: capacity - 1,
+            enqueue_pos: AtomicUsize::new(0),
+            dequeue_pos: AtomicUsize::new(0),
+        }
+    }
+
+    /// Claim a slot and fill it, false if the queue is full
+    fn push(&self, kind: u16, channel: u32, data: &[u8]) -> bool {
+        let mut pos = self.enqueue_pos.load(Ordering::Relaxed);
+        loop {
+            let slot = &self.slots[pos & self.mask];
+            let seq = slot.seq.load(Ordering::Acquire);
+            let diff = seq as isize - pos as isize;
+            if diff == 0 {
+                match self.enqueue_pos.compare_exchange_weak(
+                    pos,
+                    pos + 1,
+                    Ordering::Relaxed,
+                    Ordering::Relaxed,
+                ) {
+                    Ok(_) => {
+                        let len = data.len().min(SLOT_PAYLOAD);
+                        unsafe {
+                            let record = &mut *slot.data.get();
+                            record.timestamp_ns = crate::latency::now_ns() as u64;
+                            record.orig_len = data.len() as u32;
+                            record.channel = channel;
+                            record.kind = kind;
+                            record.len = len as u16;
+                            record.payload[..len].copy_from_slice(&data[..len]);
+                        }
+                        slot.seq.store(pos + 1, Ordering::Release);
+                        return true;
+                    }
+                    Err(current) => pos = current,
+                }
+            } else if diff < 0 {
+                return false;
+            } else {
+                pos = self.enqueue_pos.load(Ordering::Relaxed);
+            }
+        }
+    }
+
+    /// Single consumer: take the oldest record if one is ready
+    fn pop(&self, out: &mut RecordData) -> bool {
+        let pos = self.dequeue_pos.load(Ordering::Relaxed);
+        let slot = &self.slots[pos & self.mask];
+        let seq = slot.seq.load(Ordering::Acquire);
+        if seq != pos + 1 {
+            return false;
+        }
+        *out = unsafe { *slot.data.get() };
+        slot.seq.store(pos + self.mask + 1, Ordering::Release);
+        self.dequeue_pos.store(pos + 1, Ordering::Relaxed);
+        true
+    }
+}
+
+static QUEUE: Lazy<TraceQueue> = Lazy::new(|| TraceQueue::new(QUEUE_SLOTS));
+static CHANNELS: Lazy<Mutex<Vec<String>>> = Lazy::new(|| Mutex::new(Vec::new()));
+static WRITER_STARTED: AtomicBool = AtomicBool::new(false);
+static WRITER_STOP: AtomicBool = AtomicBool::new(false);
+static WRITER: Lazy<Mutex<Option<JoinHandle<()>>>> = Lazy::new(|| Mutex::new(None));
+static SAMPLE_RATE: AtomicU32 = AtomicU32::new(1);
+static SAMPLE_COUNTER: AtomicU32 = AtomicU32::new(0);
+static DROPPED: AtomicU64 = AtomicU64::new(0);
+
+/// Register a named channel (pipe service, socket path...), returns its id.
+/// Registering the same name twice returns the same id.
+pub fn register_channel(name: &str) -> u32 {
+    let mut channels = CHANNELS.lock().unwrap();
+    if let Some(id) = channels.iter().position(|c| c == name) {
+        return id as u32;
+    }
+    channels.push(name.to_string());
+    (channels.len() - 1) as u32
+}
+
+/// Keep one of every `rate` records, 1 keeps everything
+pub fn set_sample_rate(rate: u32) {
+    SAMPLE_RATE.store(rate.max(1), Ordering::Relaxed);
+    info!("[NEW_RENDERER][TRACE] Sample rate set to 1/{}", rate.max(1));
+}
+
+/// Queue a record, a no-op unless debug mode is enabled
+pub fn record(kind: u16, channel: u32, data: &[u8]) {
+    if !super::is_debug_mode() {
+        return;
+    }
+
+    let rate = SAMPLE_RATE.load(Ordering::Relaxed);
+    if rate > 1 && SAMPLE_COUNTER.fetch_add(1, Ordering::Relaxed) % rate != 0 {
+        return;
+    }
+
+    if !WRITER_STARTED.load(Ordering::Acquire) {
+        start_writer();
+    }
+
+    if !QUEUE.push(kind, channel, data) {
+        DROPPED.fetch_add(1, Ordering::Relaxed);
+    }
+}
+
+fn start_writer() {
+    let mut writer = WRITER.lock().unwrap();
+    if WRITER_STARTED.load(Ordering::Acquire) || !super::is_debug_mode() {
+        // started by another producer, or debug mode was turned off meanwhile
+        return;
+    }
+
+    WRITER_STOP.store(false, Ordering::Release);
+    match thread::Builder::new()
+        .name("renderer-trace".to_string())
+        .spawn(writer_loop)
+    {
+        Ok(handle) => *writer = Some(handle),
+        // not retried for every record, only after the next stop
+        Err(e) => error!("[NEW_RENDERER][TRACE] Failed to start trace writer: {}", e),
+    }
+    WRITER_STARTED.store(true, Ordering::Release);
+}
+
+/// Write out the queued records and join the writer thread, the next
+/// record starts a new one
+pub fn stop_writer() {
+    let mut writer = WRITER.lock().unwrap();
+    if let Some(handle) = writer.take() {
+        WRITER_STOP.store(true, Ordering::Release);
+        if handle.join().is_err() {
+            error!("[NEW_RENDERER][TRACE] Trace writer panicked");
+        }
+        info!("[NEW_RENDERER][TRACE] Trace writer stopped");
+    }
+    WRITER_STARTED.store(false, Ordering::Release);
+}
+
+/// A memory-mapped trace file being appended to
+struct TraceFile {
+    _file: File,
+    map: *mut u8,
+    offset: usize,
+}
+
+impl TraceFile {
+    fn create(path: &str) -> std::io::Result<Self> {
+        let file = OpenOptions::new()
+            .read(true)
+            .write(true)
+            .create(true)
+            .truncate(true)
+            .open(path)?;
+        file.set_len(TRACE_FILE_SIZE as u64)?;
+
+        let map = unsafe {
+            libc::mmap(
+                std::ptr::null_mut(),
+                TRACE_FILE_SIZE,
+                libc::PROT_READ | libc::PROT_WRITE,
+                libc::MAP_SHARED,
+                file.as_raw_fd(),
+                0,
+            )
+        };
+        if map == libc::MAP_FAILED {
+            return Err(std::io::Error::last_os_error());
+        }
+
+        let mut trace = TraceFile {
+            _file: file,
+            map: map as *mut u8,
+            offset: 0,
+        };
+        let mut header = [0u8; FILE_HEADER_LEN];
+        header[..8].copy_from_slice(FILE_MAGIC);
+        header[8..12].copy_from_slice(&FILE_VERSION.to_le_bytes());
+        header[12..16].copy_from_slice(&(FILE_HEADER_LEN as u32).to_le_bytes());
+        trace.put(&header);
+        Ok(trace)
+    }
+
+    fn put(&mut self, bytes: &[u8]) {
+        unsafe {
+            std::ptr::copy_nonoverlapping(bytes.as_ptr(), self.map.add(self.offset), bytes.len());
+        }
+        self.offset += bytes.len();
+    }
+
+    /// Append a record, false if it does not fit anymore
+    fn append(&mut self, kind: u16, channel: u32, timestamp_ns: u64, orig_len: u32, payload: &[u8]) -> bool {
+        let padded = (payload.len() + 3) & !3;
+        // keep room for an all-zero end marker
+        if self.offset + RECORD_HEADER_LEN + padded + RECORD_HEADER_LEN > TRACE_FILE_SIZE {
+            return false;
+        }
+
+        let mut header = [0u8; RECORD_HEADER_LEN];
+        header[0..8].copy_from_slice(&timestamp_ns.to_le_bytes());
+        header[8..12].copy_from_slice(&orig_len.to_le_bytes());
+        header[12..16].copy_from_slice(&channel.to_le_bytes());
+        header[16..18].copy_from_slice(&kind.to_le_bytes());
+        header[18..20].copy_from_slice(&(payload.len() as u16).to_le_bytes());
+        self.put(&header);
+        self.put(payload);
+        // the file is zero filled, padding only needs skipping
+        self.offset += padded - payload.len();
+        true
+    }
+}
+
+impl Drop for TraceFile {
+    fn drop(&mut self) {
+        unsafe {
+            libc::munmap(self.map as *mut libc::c_void, TRACE_FILE_SIZE);
+        }
+    }
+}
+
+/// Owns the current trace file and rotates it
+struct TraceWriter {
+    dir: String,
+    index: u32,
+    file: Option<TraceFile>,
+    channels_written: usize,
+}
+
+impl TraceWriter {
+    fn open_next(&mut self) {
+        self.file = None;
+        self.index += 1;
+
+        if let Err(e) = std::fs::create_dir_all(&self.dir) {
+            error!("[NEW_RENDERER][TRACE] Failed to create {}: {}", self.dir, e);
+            return;
+        }
+        if self.index > MAX_TRACE_FILES {
+            let _ = std::fs::remove_file(format!("{}/trace_{}.bin", self.dir, self.index - MAX_TRACE_FILES));
+        }
+
+        let path = format!("{}/trace_{}.bin", self.dir, self.index);
+        match TraceFile::create(&path) {
+            Ok(file) => {
+                info!("[NEW_RENDERER][TRACE] Writing trace to {}", path);
+                self.file = Some(file);
+                self.channels_written = 0;
+                self.write_channels();
+            }
+            Err(e) => error!("[NEW_RENDERER][TRACE] Failed to create {}: {}", path, e),
+        }
+    }
+
+    fn write_channels(&mut self) {
+        let channels = CHANNELS.lock().unwrap().clone();
+        let now = crate::latency::now_ns() as u64;
+        for (id, name) in channels.iter().enumerate().skip(self.channels_written) {
+            self.write(KIND_CHANNEL, id as u32, now, name.len() as u32, name.as_bytes());
+        }
+        self.channels_written = channels.len();
+    }
+
+    fn write(&mut self, kind: u16, channel: u32, timestamp_ns: u64, orig_len: u32, payload: &[u8]) {
+        let fits = match self.file {
+            Some(ref mut file) => file.append(kind, channel, timestamp_ns, orig_len, payload),
+            None => return,
+        };
+        if !fits {
+            self.open_next();
+            if let Some(ref mut file) = self.file {
+                file.append(kind, channel, timestamp_ns, orig_len, payload);
+            }
+        }
+    }
+}
+
+/// Remove the trace files of an earlier session
+fn remove_old_traces(dir: &str) {
+    if let Ok(entries) = std::fs::read_dir(dir) {
+        for entry in entries.flatten() {
+            let name = entry.file_name();
+            let name = name.to_string_lossy();
+            if name.starts_with("trace_") && name.ends_with(".bin") {
+                let _ = std::fs::remove_file(entry.path());
+            }
+        }
+    }
+}
+
+fn writer_loop() {
+    remove_old_traces(&super::get_debug_log_dir());
+
+    let mut writer = TraceWriter {
+        dir: super::get_debug_log_dir(),
+        index: 0,
+        file: None,
+        channels_written: 0,
+    };
+    writer.open_next();
+    if writer.file.is_none() {
+        warn!("[NEW_RENDERER][TRACE] No trace file, records will be discarded");
+    }
+
+    let mut record = RecordData {
+        timestamp_ns: 0,
+        orig_len: 0,
+        channel: 0,
+        kind: 0,
+        len: 0,
+        payload: [0; SLOT_PAYLOAD],
+    };
+    loop {
+        if writer.channels_written < CHANNELS.lock().unwrap().len() {
+            writer.write_channels();
+        }
+
+        let dropped = DROPPED.swap(0, Ordering::Relaxed);
+        if dropped > 0 {
+            let now = crate::latency::now_ns() as u64;
+            writer.write(KIND_DROPPED, 0, now, 8, &dropped.to_le_bytes());
+        }
+
+        let mut drained = false;
+        while QUEUE.pop(&mut record) {
+            drained = true;
+            writer.write(
+                record.kind,
+                record.channel,
+                record.timestamp_ns,
+                record.orig_len,
+                &record.payload[..record.len as usize],
+            );
+        }
+
+        if !drained {
+            // the queue is empty, nothing is lost by stopping now
+            if WRITER_STOP.load(Ordering::Acquire) {
+                break;
+            }
+            thread::sleep(WRITER_INTERVAL);
+        }
+    }
+}
@@ -152,6 +152,7 @@ public class BootLogTexture extends TextureView implements TextureView.SurfaceTe
                     synchronized (mLogMessages) {
                         mLogMessages.add(s);
                     }
+                    BootTracker.getInstance().onLogLine(s);
                 }
             };
 
@@ -0,0 +1,261 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import io.twoyi.utils.DalvikCacheValidator;
+import io.twoyi.utils.ProfileSettings;
+
+/**
+ * Boot progress of the container as a forward-only state machine.
+ *
+ * Stages are reached through guest messages ({@link TwoyiProtocol#MSG_BOOT_STAGE},
+ * {@code BOOT_COMPLETED}) and markers in the boot log. The time of every
+ * stage is kept per profile, and the boot watchdog derives its timeouts from
+ * that history: a boot fails only when no new stage is reached in time,
+ * so a slow but healthy boot is not killed.
+ */
+public final class BootTracker {
+
+    private static final String TAG = "BootTracker";
+
+    public static final int STAGE_NONE = 0;
+    public static final int STAGE_LOADER_EXEC = 1;
+    public static final int STAGE_INIT = 2;
+    public static final int STAGE_ZYGOTE = 3;
+    public static final int STAGE_SYSTEM_SERVER = 4;
+    public static final int STAGE_LAUNCHER_READY = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "none", "loader_exec", "init", "zygote", "system_server", "launcher_ready",
+    };
+    private static final int STAGE_COUNT = STAGE_NAMES.length;
+
+    /** Timeout of a stage without history */
+    private static final long DEFAULT_STAGE_TIMEOUT_MS = 15_000;
+    private static final long MIN_STAGE_TIMEOUT_MS = 10_000;
+    /** A stage may take this many times its slowest recorded duration */
+    private static final int STAGE_TIMEOUT_FACTOR = 3;
+    /** Upper bound of a whole boot, however it progresses */
+    private static final long MAX_BOOT_MS = 5 * 60_000;
+    /** Boots of history kept per profile */
+    private static final int MAX_HISTORY = 8;
+
+    private static final BootTracker INSTANCE = new BootTracker();
+
+    private Context mContext;
+    private long mStartTime;
+    private int mStage = STAGE_NONE;
+    // offset of each stage from mStartTime in ms, -1 if not reached
+    private final long[] mStageTimes = new long[STAGE_COUNT];
+    // slowest recorded duration of each stage
+    private final long[] mStageBudgets = new long[STAGE_COUNT];
+
+    private BootTracker() {
+    }
+
+    public static BootTracker getInstance() {
+        return INSTANCE;
+    }
+
+    public static String stageName(int stage) {
+        return stage >= 0 && stage < STAGE_COUNT ? STAGE_NAMES[stage] : "stage_" + stage;
+    }
+
+    /**
+     * Start tracking a new boot of the active profile
+     */
+    public synchronized void start(Context context) {
+        mContext = context.getApplicationContext();
+        mStartTime = SystemClock.elapsedRealtime();
+        mStage = STAGE_NONE;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageTimes[i] = -1;
+        }
+        mStageTimes[STAGE_NONE] = 0;
+        loadBudgets();
+        notifyAll();
+    }
+
+    /**
+     * Move to a later stage; earlier or repeated stages are ignored
+     */
+    public synchronized void advance(int stage) {
+        if (stage <= mStage || stage >= STAGE_COUNT || mContext == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime() - mStartTime;
+        // stages the markers missed are reached at the same time
+        for (int i = mStage + 1; i <= stage; i++) {
+            mStageTimes[i] = now;
+        }
+        mStage = stage;
+        Log.i(TAG, "boot stage " + stageName(stage) + " at " + now + "ms");
+
+        if (stage == STAGE_LAUNCHER_READY) {
+            saveHistory();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Look for stage markers in a line of the boot log, brief format ("I/tag( pid): message")
+     */
+    public void onLogLine(String line) {
+        int stage;
+        Context context;
+        synchronized (this) {
+            stage = mStage;
+            context = mContext;
+        }
+        if (context != null) {
+            DalvikCacheValidator.onLogLine(context, line);
+        }
+        if (stage >= STAGE_SYSTEM_SERVER || line.length() < 3) {
+            return;
+        }
+
+        if (line.startsWith("SystemServer", 2)) {
+            advance(STAGE_SYSTEM_SERVER);
+        } else if (stage < STAGE_ZYGOTE && (line.startsWith("Zygote", 2) || line.startsWith("zygote", 2))) {
+            advance(STAGE_ZYGOTE);
+        } else if (stage < STAGE_INIT && line.startsWith("init", 2)) {
+            advance(STAGE_INIT);
+        }
+    }
+
+    public synchronized int getStage() {
+        return mStage;
+    }
+
+    /**
+     * Wait until the launcher is ready.
+     *
+     * @return false when a stage took longer than its adaptive timeout
+     */
+    public synchronized boolean waitBoot() throws InterruptedException {
+        while (mStage < STAGE_LAUNCHER_READY) {
+            long now = SystemClock.elapsedRealtime() - mStartTime;
+            long deadline = Math.min(mStageTimes[mStage] + stageTimeout(mStage + 1), MAX_BOOT_MS);
+            if (now >= deadline) {
+                Log.w(TAG, "boot stalled after " + stageName(mStage) + ": " + describe());
+                if (mStage >= STAGE_ZYGOTE) {
+                    // what a stale OAT file looks like when its crash is not logged
+                    DalvikCacheValidator.requestWipe(mContext);
+                }
+                return false;
+            }
+            wait(deadline - now);
+        }
+        return true;
+    }
+
+    private long stageTimeout(int stage) {
+        long budget = mStageBudgets[stage];
+        if (budget <= 0) {
+            return DEFAULT_STAGE_TIMEOUT_MS;
+        }
+        return Math.max(MIN_STAGE_TIMEOUT_MS, budget * STAGE_TIMEOUT_FACTOR);
+    }
+
+    /**
+     * Stages reached so far with their time since the boot started
+     */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = STAGE_LOADER_EXEC; i < STAGE_COUNT; i++) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(STAGE_NAMES[i]).append('=');
+            sb.append(mStageTimes[i] >= 0 ? mStageTimes[i] + "ms" : "-");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stage times of the recorded boots of the active profile, newest last
+     */
+    public synchronized List<long[]> getHistory() {
+        return mContext == null ? new ArrayList<>() : parseHistory(ProfileSettings.getBootTimings(mContext));
+    }
+
+    private void loadBudgets() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageBudgets[i] = 0;
+        }
+        for (long[] boot : parseHistory(ProfileSettings.getBootTimings(mContext))) {
+            for (int i = 1; i < STAGE_COUNT; i++) {
+                mStageBudgets[i] = Math.max(mStageBudgets[i], boot[i] - boot[i - 1]);
+            }
+        }
+    }
+
+    private void saveHistory() {
+        List<long[]> history = parseHistory(ProfileSettings.getBootTimings(mContext));
+        history.add(mStageTimes.clone());
+        while (history.size() > MAX_HISTORY) {
+            history.remove(0);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (long[] boot : history) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(boot[i]);
+            }
+        }
+        ProfileSettings.setBootTimings(mContext, sb.toString());
+        Log.i(TAG, String.format(Locale.US, "boot completed in %dms: %s",
+                mStageTimes[STAGE_LAUNCHER_READY], describe()));
+    }
+
+    // boots separated by ';', stage times by ','
+    private static List<long[]> parseHistory(String value) {
+        List<long[]> history = new ArrayList<>();
+        if (TextUtils.isEmpty(value)) {
+            return history;
+        }
+        for (String entry : value.split(";")) {
+            String[] fields = entry.split(",");
+            if (fields.length != STAGE_COUNT) {
+                continue;
+            }
+            long[] boot = new long[STAGE_COUNT];
+            try {
+                for (int i = 0; i < STAGE_COUNT; i++) {
+                    boot[i] = Long.parseLong(fields[i]);
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            history.add(boot);
+        }
+        return history;
+    }
+}
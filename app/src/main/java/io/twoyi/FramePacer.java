@@ -0,0 +1,177 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Display;
+import android.view.Surface;
+
+import io.twoyi.utils.ProfileSettings;
+
+/**
+ * Chooses the display mode and renderer frame rate for a frame rate policy,
+ * see {@link ProfileSettings#getFrameRatePolicy}.
+ *
+ * <ul>
+ * <li>fixed: the historical 45 fps, never changed at runtime</li>
+ * <li>max: the highest refresh rate the panel supports</li>
+ * <li>adaptive: the highest refresh rate while the user interacts, {@link #IDLE_FPS} once idle</li>
+ * <li>battery: {@link #BATTERY_FPS} on the lowest refresh rate mode, {@link #IDLE_FPS} once idle</li>
+ * </ul>
+ *
+ * The guest does not report damage, so "idle" means no touch or key input
+ * for {@link #IDLE_TIMEOUT_MS}. Must only be used from the UI thread.
+ */
+final class FramePacer {
+
+    private static final String TAG = "FramePacer";
+
+    static final int FIXED_FPS = 45;
+    static final int BATTERY_FPS = 30;
+    static final int IDLE_FPS = 20;
+    static final long IDLE_TIMEOUT_MS = 5000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mIdleRunnable = this::enterIdle;
+
+    private final String mPolicy;
+    private final Display.Mode mMode;
+    private final int mActiveFps;
+
+    private Surface mSurface;
+    private int mCurrentFps;
+
+    FramePacer(Display display, String policy) {
+        mPolicy = policy;
+        mMode = pickMode(display, policy);
+
+        switch (policy) {
+            case ProfileSettings.FRAME_RATE_MAX:
+            case ProfileSettings.FRAME_RATE_ADAPTIVE:
+                mActiveFps = Math.round(mMode.getRefreshRate());
+                break;
+            case ProfileSettings.FRAME_RATE_BATTERY:
+                mActiveFps = Math.min(BATTERY_FPS, Math.round(mMode.getRefreshRate()));
+                break;
+            default:
+                mActiveFps = FIXED_FPS;
+                break;
+        }
+        mCurrentFps = mActiveFps;
+
+        Log.i(TAG, "policy: " + policy + ", mode: " + mMode.getModeId() + " @ " + mMode.getRefreshRate()
+                + "Hz, active fps: " + mActiveFps);
+    }
+
+    /**
+     * Display mode to request for the window, 0 to leave the system default
+     */
+    int getPreferredDisplayModeId() {
+        return isFixed() ? 0 : mMode.getModeId();
+    }
+
+    /**
+     * Frame rate to start the renderer with
+     */
+    int getInitialFps() {
+        return mCurrentFps;
+    }
+
+    /**
+     * Attach to the rendering surface once the renderer runs on it
+     */
+    void start(Surface surface) {
+        mSurface = surface;
+        applySurfaceFrameRate(mCurrentFps);
+        onUserActivity();
+    }
+
+    void stop() {
+        mHandler.removeCallbacks(mIdleRunnable);
+        mSurface = null;
+    }
+
+    /**
+     * Called on every touch or key event
+     */
+    void onUserActivity() {
+        if (!isAdaptive() || mSurface == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mIdleRunnable);
+        mHandler.postDelayed(mIdleRunnable, IDLE_TIMEOUT_MS);
+        setFps(mActiveFps);
+    }
+
+    private void enterIdle() {
+        setFps(Math.min(IDLE_FPS, mActiveFps));
+    }
+
+    private void setFps(int fps) {
+        if (fps == mCurrentFps) {
+            return;
+        }
+        Log.d(TAG, "fps: " + mCurrentFps + " -> " + fps);
+        mCurrentFps = fps;
+        Renderer.setTargetFps(fps);
+        applySurfaceFrameRate(fps);
+    }
+
+    private void applySurfaceFrameRate(int fps) {
+        if (isFixed() || mSurface == null || !mSurface.isValid()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                mSurface.setFrameRate(fps, Surface.FRAME_RATE_COMPATIBILITY_DEFAULT);
+            } catch (Throwable e) {
+                Log.w(TAG, "setFrameRate failed", e);
+            }
+        }
+    }
+
+    private boolean isFixed() {
+        return ProfileSettings.FRAME_RATE_FIXED.equals(mPolicy);
+    }
+
+    private boolean isAdaptive() {
+        return ProfileSettings.FRAME_RATE_ADAPTIVE.equals(mPolicy)
+                || ProfileSettings.FRAME_RATE_BATTERY.equals(mPolicy);
+    }
+
+    /**
+     * Among the modes with the current resolution, the fastest one, or the
+     * slowest one for the battery policy
+     */
+    private static Display.Mode pickMode(Display display, String policy) {
+        Display.Mode current = display.getMode();
+        boolean lowest = ProfileSettings.FRAME_RATE_BATTERY.equals(policy);
+
+        Display.Mode best = current;
+        for (Display.Mode mode : display.getSupportedModes()) {
+            if (mode.getPhysicalWidth() != current.getPhysicalWidth()
+                    || mode.getPhysicalHeight() != current.getPhysicalHeight()) {
+                continue;
+            }
+            float rate = mode.getRefreshRate();
+            if (lowest ? rate < best.getRefreshRate() : rate > best.getRefreshRate()) {
+                best = mode;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import java.util.Locale;
+
+/**
+ * Decoder for {@link Renderer#getFrameStats(long[])}.
+ *
+ * The array starts with a header: renderer (0 old, 1 new), total frames,
+ * total missed vsyncs, target fps and the number of samples that follow.
+ * Each sample is: timestamp (monotonic ns), frame interval (ns),
+ * swap duration (ns), missed vsyncs and buffers queued, oldest first.
+ * The old renderer presents inside its closed library and records no frames.
+ */
+public final class FrameStats {
+
+    public static final int HEADER_LEN = 5;
+    public static final int SAMPLE_LEN = 5;
+    /** Size of the native ring buffer */
+    public static final int MAX_SAMPLES = 256;
+
+    public static final int HEADER_RENDERER = 0;
+    public static final int HEADER_TOTAL_FRAMES = 1;
+    public static final int HEADER_TOTAL_MISSED = 2;
+    public static final int HEADER_TARGET_FPS = 3;
+    public static final int HEADER_SAMPLES = 4;
+
+    public static final int SAMPLE_TIMESTAMP = 0;
+    public static final int SAMPLE_INTERVAL = 1;
+    public static final int SAMPLE_SWAP = 2;
+    public static final int SAMPLE_MISSED = 3;
+    public static final int SAMPLE_QUEUED = 4;
+
+    /** Returned by {@link Renderer#getFrameStats(long[])} while the old renderer runs */
+    public static final int UNSUPPORTED = -2;
+
+    private FrameStats() {
+    }
+
+    /**
+     * Fetch the header and every sample currently held natively
+     * @return null if the running renderer does not record frames
+     */
+    public static long[] snapshot() {
+        long[] out = new long[HEADER_LEN + MAX_SAMPLES * SAMPLE_LEN];
+        if (Renderer.getFrameStats(out) == UNSUPPORTED) {
+            return null;
+        }
+        return out;
+    }
+
+    /**
+     * Value of a field of the given sample
+     */
+    public static long sample(long[] stats, int index, int field) {
+        return stats[HEADER_LEN + index * SAMPLE_LEN + field];
+    }
+
+    /**
+     * Summarize the recent frames on one line
+     */
+    public static String dump() {
+        long[] stats = snapshot();
+        if (stats == null) {
+            return "frame stats: not recorded by the old renderer";
+        }
+        int count = (int) stats[HEADER_SAMPLES];
+
+        long intervalSum = 0;
+        long intervalMax = 0;
+        long swapSum = 0;
+        long swapMax = 0;
+        int janky = 0;
+        for (int i = 0; i < count; i++) {
+            long interval = sample(stats, i, SAMPLE_INTERVAL);
+            long swap = sample(stats, i, SAMPLE_SWAP);
+            intervalSum += interval;
+            intervalMax = Math.max(intervalMax, interval);
+            swapSum += swap;
+            swapMax = Math.max(swapMax, swap);
+            if (sample(stats, i, SAMPLE_MISSED) > 0) {
+                janky++;
+            }
+        }
+
+        long intervalAvg = count > 0 ? intervalSum / count : 0;
+        long swapAvg = count > 0 ? swapSum / count : 0;
+        return String.format(Locale.US,
+                "frame stats (%s renderer, %d fps target): frames=%d missed vsyncs=%d, last %d frames: "
+                        + "interval avg=%.2fms max=%.2fms, swap avg=%.2fms max=%.2fms, janky=%d",
+                stats[HEADER_RENDERER] == 1 ? "new" : "old", stats[HEADER_TARGET_FPS],
+                stats[HEADER_TOTAL_FRAMES], stats[HEADER_TOTAL_MISSED], count,
+                intervalAvg / 1e6, intervalMax / 1e6, swapAvg / 1e6, swapMax / 1e6, janky);
+    }
+}
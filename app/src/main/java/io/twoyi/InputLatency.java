@@ -0,0 +1,57 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import java.util.Locale;
+
+/**
+ * Readable view of the native input latency histograms.
+ *
+ * Stages, in the order native code reports them:
+ * dispatch (event time to onTouch), jni (onTouch to native entry),
+ * channel (frame enqueue to touch socket write) and total (event time to socket write).
+ */
+public final class InputLatency {
+
+    static final String[] STAGE_NAMES = {"dispatch", "jni", "channel", "total"};
+    static final int VALUES_PER_STAGE = 5;
+
+    private InputLatency() {
+    }
+
+    /**
+     * Fetch the current session, {@code VALUES_PER_STAGE} values per stage:
+     * count, p50, p95, p99, max (microseconds)
+     */
+    public static long[] snapshot() {
+        long[] out = new long[STAGE_NAMES.length * VALUES_PER_STAGE];
+        Renderer.getInputLatency(out);
+        return out;
+    }
+
+    /**
+     * Format the current session, one line per stage
+     */
+    public static String dump() {
+        long[] values = snapshot();
+        StringBuilder sb = new StringBuilder("input latency (us):");
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            int base = stage * VALUES_PER_STAGE;
+            sb.append(String.format(Locale.US, "\n%-8s n=%d p50=%d p95=%d p99=%d max=%d",
+                    STAGE_NAMES[stage], values[base], values[base + 1], values[base + 2],
+                    values[base + 3], values[base + 4]));
+        }
+        return sb.toString();
+    }
+}
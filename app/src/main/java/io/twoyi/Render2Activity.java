@@ -20,7 +20,6 @@ package io.twoyi;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -45,18 +44,15 @@ import androidx.annotation.NonNull;
 import com.cleveroad.androidmanimation.LoadingAnimationView;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.twoyi.utils.AppKV;
 import io.twoyi.utils.LogEvents;
 import io.twoyi.utils.NavUtils;
-import io.twoyi.utils.ProfileManager;
 import io.twoyi.utils.ProfileSettings;
+import io.twoyi.utils.RomImporter;
 import io.twoyi.utils.RomManager;
+import io.twoyi.utils.TwoyiExecutors;
 import io.twoyi.utils.UIHelper;
 
 /**
@@ -87,10 +83,23 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
     private final AtomicBoolean mIsExtracting = new AtomicBoolean(false);
 
+    private final TouchBatcher mTouchBatcher = new TouchBatcher();
+
+    private FramePacer mFramePacer;
+
     private final SurfaceHolder.Callback mSurfaceCallback = new SurfaceHolder.Callback() {
         @Override
         public void surfaceCreated(@NonNull SurfaceHolder holder) {
-            Surface surface = holder.getSurface();
+            StartupPipeline.mark("surface_created");
+            // the container must not start before its boot files are prepared
+            StartupPipeline.whenReady(() -> {
+                if (holder.getSurface().isValid() && !isFinishing()) {
+                    initRenderer(holder.getSurface());
+                }
+            });
+        }
+
+        private void initRenderer(Surface surface) {
             
             // Set renderer type before initializing
             boolean useNewRenderer = ProfileSettings.useNewRenderer(getApplicationContext());
@@ -104,6 +113,7 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
                 File debugLogDir = new File(getFilesDir(), "twoyi_renderer_debug");
                 Renderer.setDebugLogDir(debugLogDir.getAbsolutePath());
                 Log.i(TAG, "Debug renderer log directory: " + debugLogDir.getAbsolutePath());
+                Renderer.setTraceSampling(ProfileSettings.getTraceSampleRate(getApplicationContext()));
                 
                 // Now enable debug mode
                 Renderer.setDebugRenderer(1);
@@ -129,7 +139,10 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
             float ydpi = displayMetrics.ydpi * scaleY * mVirtualDisplayDpi / displayMetrics.densityDpi;
 
             Renderer.init(surface, RomManager.getLoaderPath(getApplicationContext()), 
-                    mVirtualDisplayWidth, mVirtualDisplayHeight, xdpi, ydpi, (int) getBestFps());
+                    mVirtualDisplayWidth, mVirtualDisplayHeight, xdpi, ydpi, mFramePacer.getInitialFps());
+            BootTracker.getInstance().advance(BootTracker.STAGE_LOADER_EXEC);
+            StartupPipeline.mark("renderer_init");
+            mFramePacer.start(surface);
 
             Log.i(TAG, "surfaceCreated with virtual display: " + mVirtualDisplayWidth + "x" + mVirtualDisplayHeight + 
                     " @ " + mVirtualDisplayDpi + " DPI, calculated xdpi=" + xdpi + ", ydpi=" + ydpi);
@@ -137,14 +150,22 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
         @Override
         public void surfaceChanged(@NonNull SurfaceHolder holder, int format, int width, int height) {
-            Surface surface = holder.getSurface();
-            // Pass both physical surface dimensions and virtual framebuffer dimensions
-            Renderer.resetWindow(surface, 0, 0, width, height, mVirtualDisplayWidth, mVirtualDisplayHeight);
+            // queued behind initRenderer while the startup is still running
+            StartupPipeline.whenReady(() -> {
+                Surface surface = holder.getSurface();
+                if (!surface.isValid()) {
+                    return;
+                }
+                // Pass both physical surface dimensions and virtual framebuffer dimensions
+                Renderer.resetWindow(surface, 0, 0, width, height, mVirtualDisplayWidth, mVirtualDisplayHeight);
+            });
+            mTouchBatcher.setScale(width, height, mVirtualDisplayWidth, mVirtualDisplayHeight);
             Log.i(TAG, "surfaceChanged: physical=" + width + "x" + height + ", virtual=" + mVirtualDisplayWidth + "x" + mVirtualDisplayHeight);
         }
 
         @Override
         public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
+            mFramePacer.stop();
             Renderer.removeWindow(holder.getSurface());
             Log.i(TAG, "surfaceDestroyed!");
         }
@@ -163,7 +184,7 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
         }
 
         // reset state
-        TwoyiStatusManager.getInstance().reset();
+        TwoyiStatusManager.getInstance().reset(getApplicationContext());
 
         NavUtils.hideNavigation(getWindow());
 
@@ -174,6 +195,15 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
         mVirtualDisplayHeight = ProfileSettings.getDisplayHeight(this);
         mVirtualDisplayDpi = ProfileSettings.getDisplayDpi(this);
 
+        mFramePacer = new FramePacer(getWindowManager().getDefaultDisplay(),
+                ProfileSettings.getFrameRatePolicy(this));
+        int modeId = mFramePacer.getPreferredDisplayModeId();
+        if (modeId != 0) {
+            WindowManager.LayoutParams attrs = getWindow().getAttributes();
+            attrs.preferredDisplayModeId = modeId;
+            getWindow().setAttributes(attrs);
+        }
+
         setContentView(R.layout.ac_render);
         mRootView = findViewById(R.id.root);
 
@@ -197,6 +227,17 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        if (ProfileSettings.isDebugRendererEnabled(getApplicationContext())) {
+            Log.i(TAG, InputLatency.dump());
+            Log.i(TAG, FrameStats.dump());
+            Log.i(TAG, SocketStats.dump());
+        }
+    }
+
     @Override
     protected void onRestoreInstanceState(@NonNull Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
@@ -242,6 +283,7 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
         FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(mSurfaceWidth, mSurfaceHeight);
         params.gravity = android.view.Gravity.CENTER;
         mSurfaceView.setLayoutParams(params);
+        mTouchBatcher.setScale(mSurfaceWidth, mSurfaceHeight, mVirtualDisplayWidth, mVirtualDisplayHeight);
         
         // Set black background on root to provide letterboxing/pillarboxing
         mRootView.setBackgroundColor(0xFF000000);
@@ -255,6 +297,19 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
     private void bootSystem() {
         boolean romExist = RomManager.romExist(this);
 
+        Uri pendingImport = romExist ? null : RomImporter.getPendingImport(this);
+        if (pendingImport != null) {
+            // an import was interrupted, pick it up where it stopped
+            runOnUiThread(() -> UIHelper.getDialogBuilder(this)
+                    .setTitle(R.string.rom_import_resume_title)
+                    .setMessage(R.string.rom_import_resume_message)
+                    .setPositiveButton(R.string.rom_import_resume, (dialog, which) -> importRomAndStart(pendingImport))
+                    .setNegativeButton(android.R.string.cancel, (dialog, which) -> finish())
+                    .setCancelable(false)
+                    .show());
+            return;
+        }
+
         if (!romExist) {
             // ROM doesn't exist - show message to user and prompt to select ROM
             runOnUiThread(() -> {
@@ -268,7 +323,8 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
                     .setMessage(R.string.no_rootfs_select_rom)
                     .setPositiveButton(R.string.select_rom_file, (dialog, which) -> {
                         // Prompt user to select ROM file
-                        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                        // a document uri can be kept across process death to resume the import
+                        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
                         intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, false);
                         intent.setType("*/*");
                         intent.addCategory(Intent.CATEGORY_OPENABLE);
@@ -318,12 +374,12 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
         // mLoadingText.setText(R.string.booting_tips);
         mLoadingText.setVisibility(View.GONE);
         mBootLogView.setVisibility(View.VISIBLE);
-        new Thread(() -> {
+        TwoyiExecutors.control().execute(() -> {
 
             if (true) {
                 boolean success = false;
                 try {
-                    success = TwoyiStatusManager.getInstance().waitBoot(15, TimeUnit.SECONDS);
+                    success = TwoyiStatusManager.getInstance().waitBoot();
                 } catch (Throwable ignored) {
                 }
 
@@ -345,7 +401,7 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
                 mLoadingView.stopAnimation();
                 mLoadingLayout.setVisibility(View.GONE);
             });
-        }, "waiting-boot").start();
+        });
     }
 
     @Override
@@ -362,31 +418,20 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
     @Override
     public boolean onTouch(View v, MotionEvent event) {
-        // Transform touch coordinates from surface space to virtual display space
-        // Note: event coordinates are already relative to the SurfaceView (not screen)
-        // since the touch listener is attached to mSurfaceView
-        MotionEvent transformedEvent = MotionEvent.obtain(event);
-        
-        // Calculate the transformation matrix
-        android.graphics.Matrix matrix = new android.graphics.Matrix();
-        
-        // Scale from surface dimensions to virtual display dimensions
-        // No translation needed since coordinates are already relative to SurfaceView
-        float scaleX = (float) mVirtualDisplayWidth / mSurfaceWidth;
-        float scaleY = (float) mVirtualDisplayHeight / mSurfaceHeight;
-        matrix.postScale(scaleX, scaleY);
-        
-        // Transform the event
-        transformedEvent.transform(matrix);
-        
-        Renderer.handleTouch(transformedEvent);
-        transformedEvent.recycle();
+        long receiptNanos = System.nanoTime();
+        // Event coordinates are relative to the SurfaceView since the listener is
+        // attached to it; the batcher scales them to virtual display space and
+        // delivers all samples, historical ones included, in one native call.
+        mTouchBatcher.enqueue(event, receiptNanos);
+        mFramePacer.onUserActivity();
+        mTouchBatcher.flush();
         return true;
     }
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         Log.d(TAG, "onKeyDown: " + keyCode);
+        mFramePacer.onUserActivity();
         if (keyCode == KeyEvent.KEYCODE_VOLUME_UP || keyCode == KeyEvent.KEYCODE_VOLUME_DOWN) {
             // TODO: 2021/10/26 Add Volume control
         }
@@ -396,25 +441,10 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
     @Override
     public void onBackPressed() {
         // super.onBackPressed();
+        mFramePacer.onUserActivity();
         Renderer.sendKeycode(KeyEvent.KEYCODE_HOME);
     }
 
-    private float getBestFps() {
-        WindowManager windowManager = getWindowManager();
-        Display defaultDisplay = windowManager.getDefaultDisplay();
-        Display.Mode[] supportedModes = defaultDisplay.getSupportedModes();
-        float fps = 45;
-        for (Display.Mode supportedMode : supportedModes) {
-            float refreshRate = supportedMode.getRefreshRate();
-            if (refreshRate > fps) {
-                // fps = refreshRate;
-            }
-        }
-
-        Log.w(TAG, "current fps: " + fps);
-        return fps;
-    }
-
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -433,53 +463,13 @@ public class Render2Activity extends Activity implements View.OnTouchListener {
 
         ProgressDialog dialog = UIHelper.getProgressDialog(this);
         dialog.setCancelable(false);
+        dialog.setMessage(getString(R.string.extracting_tips));
         dialog.show();
 
         UIHelper.defer().when(() -> {
-            String activeProfile = ProfileManager.getActiveProfile(this);
-            File profileRootfsDir = ProfileManager.getProfileRootfsDir(this, activeProfile);
-            
-            // Clear existing rootfs
-            if (profileRootfsDir.exists()) {
-                io.twoyi.utils.IOUtils.deleteDirectory(profileRootfsDir);
-            }
-            profileRootfsDir.mkdirs();
-            
-            File tempFile = new File(getCacheDir(), "rootfs_import.tar");
-
-            ContentResolver contentResolver = getContentResolver();
-            try (InputStream inputStream = contentResolver.openInputStream(uri);
-                 OutputStream os = new FileOutputStream(tempFile)) {
-                byte[] buffer = new byte[8192];
-                int count;
-                while ((count = inputStream.read(buffer)) > 0) {
-                    os.write(buffer, 0, count);
-                }
-            }
-
-            String tempFilePath = tempFile.getAbsolutePath();
-            String rootfsPath = profileRootfsDir.getAbsolutePath();
-            
-            if (tempFilePath.contains(";") || tempFilePath.contains("&") ||
-                rootfsPath.contains(";") || rootfsPath.contains("&")) {
-                throw new SecurityException("Invalid path detected");
-            }
-            
-            // Extract tar to rootfs directory
-            ProcessBuilder pb = new ProcessBuilder(
-                "tar", "-xf", tempFilePath,
-                "-C", rootfsPath
-            );
-            Process process = pb.start();
-            int exitCode = process.waitFor();
-            
-            tempFile.delete();
-            
-            if (exitCode == 0) {
-                RomManager.initRootfs(this);
-            }
-            
-            return exitCode == 0;
+            // Stream the archive straight into the rootfs directory
+            RomManager.importRootfs(this, uri, UIHelper.progressMessage(this, dialog));
+            return true;
         }).done(result -> {
             UIHelper.dismiss(dialog);
             if (result) {
@@ -21,6 +21,8 @@ package io.twoyi;
 import android.view.MotionEvent;
 import android.view.Surface;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author weishu
  * @date 2021/10/20.
@@ -39,7 +41,60 @@ public class Renderer {
 
     public static native void handleTouch(MotionEvent event);
 
+    /**
+     * Deliver a batch of pre-scaled touch frames in one call
+     * @param samples direct buffer in native byte order, see {@link TouchBatcher}
+     * @param count number of records in the buffer
+     * @param eventTimeNanos {@link MotionEvent#getEventTime()} in nanoseconds, 0 if unknown
+     * @param receiptNanos {@link System#nanoTime()} when the event reached the activity, 0 if unknown
+     */
+    public static native void handleTouchBatch(ByteBuffer samples, int count, long eventTimeNanos, long receiptNanos);
+
+    /**
+     * Read the input latency histograms of the current session
+     * @param out receives count, p50, p95, p99 and max (in microseconds) per stage, see {@link InputLatency}
+     * @return number of stages written
+     */
+    public static native int getInputLatency(long[] out);
+
+    /**
+     * Log and clear the input latency histograms, starting a new session
+     */
+    public static native void resetInputLatency();
+
+    /**
+     * Copy the per-frame statistics of the running renderer
+     * @param out receives a header followed by the most recent frames, see {@link FrameStats}
+     * @return number of frames written, -1 if out is too small for the header,
+     * {@link FrameStats#UNSUPPORTED} with only the header written while the old renderer runs
+     */
+    public static native int getFrameStats(long[] out);
+
+    /**
+     * Copy the per-socket counters of the debug socket monitor
+     * @param out receives state, bytes, messages and last activity per socket, see {@link SocketStats}
+     * @return number of sockets written
+     */
+    public static native int getSocketStats(long[] out);
+
+    /**
+     * Paths of the sockets watched by the debug socket monitor, in {@link #getSocketStats} order
+     */
+    public static native String[] getMonitoredSockets();
+
+    /**
+     * Create {@code target} as a reflink (FICLONE) of {@code source}, see {@link io.twoyi.utils.ProfileCloner}
+     * @return 0, or a negative errno such as -EOPNOTSUPP when the filesystem cannot share extents
+     */
+    public static native int cloneFile(String source, String target);
+
     public static native void sendKeycode(int keycode);
+
+    /**
+     * Change the renderer frame rate at runtime, see {@link FramePacer}
+     * @param fps frames per second
+     */
+    public static native void setTargetFps(int fps);
     
     /**
      * Set the renderer type to use
@@ -58,4 +113,10 @@ public class Renderer {
      * @param logDir absolute path to the directory where debug logs should be written
      */
     public static native void setDebugLogDir(String logDir);
+
+    /**
+     * Sample the debug renderer trace, see {@link io.twoyi.utils.RendererTrace}
+     * @param rate keep one of every {@code rate} records, 1 keeps everything
+     */
+    public static native void setTraceSampling(int rate);
 }
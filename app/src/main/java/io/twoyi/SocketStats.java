@@ -0,0 +1,78 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import java.util.Locale;
+
+/**
+ * Decoder for {@link Renderer#getSocketStats(long[])}.
+ *
+ * Each socket has: state (idle, connected, closed), bytes read, messages
+ * read and the monotonic time of the last read in ns, in the order of
+ * {@link Renderer#getMonitoredSockets()}. The monitor only runs with the
+ * debug renderer enabled.
+ */
+public final class SocketStats {
+
+    public static final int STAT_LEN = 4;
+
+    public static final int STAT_STATE = 0;
+    public static final int STAT_BYTES = 1;
+    public static final int STAT_MESSAGES = 2;
+    public static final int STAT_LAST_ACTIVITY = 3;
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTED = 1;
+    public static final int STATE_CLOSED = 2;
+
+    private SocketStats() {
+    }
+
+    /**
+     * Fetch the counters of every monitored socket
+     */
+    public static long[] snapshot(int socketCount) {
+        long[] out = new long[socketCount * STAT_LEN];
+        Renderer.getSocketStats(out);
+        return out;
+    }
+
+    /**
+     * One line per socket that was ever connected
+     */
+    public static String dump() {
+        String[] sockets = Renderer.getMonitoredSockets();
+        if (sockets == null) {
+            return "socket stats: unavailable";
+        }
+        long[] stats = snapshot(sockets.length);
+        // same clock as the native CLOCK_MONOTONIC timestamps
+        long now = System.nanoTime();
+
+        StringBuilder sb = new StringBuilder("socket stats:");
+        for (int i = 0; i < sockets.length; i++) {
+            int base = i * STAT_LEN;
+            int state = (int) stats[base + STAT_STATE];
+            if (state == STATE_IDLE) {
+                continue;
+            }
+            long lastActivity = stats[base + STAT_LAST_ACTIVITY];
+            sb.append(String.format(Locale.US, "%n  %s [%s] bytes=%d messages=%d last=%s",
+                    sockets[i], state == STATE_CONNECTED ? "connected" : "closed",
+                    stats[base + STAT_BYTES], stats[base + STAT_MESSAGES],
+                    lastActivity > 0 ? String.format(Locale.US, "%.1fs ago", (now - lastActivity) / 1e9) : "never"));
+        }
+        return sb.toString();
+    }
+}
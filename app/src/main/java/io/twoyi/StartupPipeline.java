@@ -0,0 +1,183 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+import io.twoyi.utils.DalvikCacheValidator;
+import io.twoyi.utils.ProfileManager;
+import io.twoyi.utils.RomImporter;
+import io.twoyi.utils.RomManager;
+import io.twoyi.utils.RootfsStore;
+import io.twoyi.utils.TwoyiExecutors;
+
+/**
+ * Cold start of the app process.
+ *
+ * Only the profile setup runs on the main thread, everything an activity
+ * reads right away depends on it. The boot file preparation runs in parallel
+ * on the io pool, and the container is started through {@link #whenReady}
+ * once the steps it depends on are done, so the first frame is never held
+ * back by them.
+ *
+ * Every step and milestone is recorded with its offset from the process
+ * start; a warning is logged when the main thread or the whole critical path
+ * exceeds its budget.
+ */
+public final class StartupPipeline {
+
+    private static final String TAG = "StartupPipeline";
+
+    /** Time the main thread may spend in attachBaseContext */
+    private static final long MAIN_THREAD_BUDGET_MS = 50;
+    /** Time until the container can be started */
+    private static final long CRITICAL_PATH_BUDGET_MS = 150;
+
+    private static final Handler MAIN = new Handler(Looper.getMainLooper());
+
+    private static final List<String> sTrace = new ArrayList<>();
+    private static long sStartTime;
+    private static boolean sStarted;
+    private static boolean sReady;
+    // actions waiting for the critical path, run in the order they were queued
+    private static final List<Runnable> sPending = new ArrayList<>();
+
+    private StartupPipeline() {
+    }
+
+    /**
+     * Run the startup steps, called once from attachBaseContext
+     */
+    public static void start(Context context) {
+        synchronized (StartupPipeline.class) {
+            if (sStarted) {
+                return;
+            }
+            sStarted = true;
+            sStartTime = SystemClock.elapsedRealtime();
+        }
+
+        step("profiles", () -> ProfileManager.initializeProfiles(context));
+        // a rootfs swap the process died in must be settled before anything reads the rootfs
+        step("rom_import", () -> RomImporter.recover(context));
+
+        // orphans could recreate dalvik-cache entries, so they go first
+        CompletableFuture<Void> cache = async("kill_orphans", RomManager::killOrphanProcesses)
+                .thenRunAsync(() -> step("dalvik_cache", () -> DalvikCacheValidator.validate(context)),
+                        TwoyiExecutors.io());
+        CompletableFuture<Void> tmp = async("data_local_tmp", () -> RomManager.ensureDataLocalTmp(context));
+        CompletableFuture<Void> dev = async("device_dirs", () -> RomManager.ensureDeviceDirs(context));
+        CompletableFuture<Void> server = async("socket_server",
+                () -> TwoyiSocketServer.getInstance(context).start());
+
+        CompletableFuture<Void> ready = CompletableFuture.allOf(cache, tmp, dev, server);
+        ready.whenComplete((v, e) -> {
+            long elapsed = mark("critical_path");
+            if (e != null) {
+                Log.e(TAG, "startup step failed", e);
+            }
+            if (elapsed > CRITICAL_PATH_BUDGET_MS) {
+                Log.w(TAG, "critical path took " + elapsed + "ms, budget " + CRITICAL_PATH_BUDGET_MS + "ms\n" + dump());
+            }
+
+            List<Runnable> pending;
+            synchronized (StartupPipeline.class) {
+                sReady = true;
+                pending = new ArrayList<>(sPending);
+                sPending.clear();
+            }
+            for (Runnable action : pending) {
+                MAIN.post(action);
+            }
+        });
+
+        // only diagnostics, nothing waits for it
+        ready.thenRunAsync(() -> step("last_kmsg", () -> RomManager.saveLastKmsg(context)),
+                TwoyiExecutors.background());
+        // unshares the profiles the former store linked, a stat per file afterwards
+        ready.thenRunAsync(() -> step("rootfs_store", () -> RootfsStore.maintain(context)),
+                TwoyiExecutors.background());
+
+        long main = mark("attach_done");
+        if (main > MAIN_THREAD_BUDGET_MS) {
+            Log.w(TAG, "attachBaseContext took " + main + "ms, budget " + MAIN_THREAD_BUDGET_MS + "ms");
+        }
+    }
+
+    /**
+     * Run {@code action} on the main thread once the boot files are ready,
+     * also when a step failed; a failed step falls back to the state of the
+     * previous boot
+     */
+    public static void whenReady(Runnable action) {
+        synchronized (StartupPipeline.class) {
+            if (sStarted && !sReady) {
+                sPending.add(action);
+                return;
+            }
+        }
+        // posted even on the main thread so it cannot overtake queued actions
+        MAIN.post(action);
+    }
+
+    /**
+     * Record a milestone of the startup
+     *
+     * @return its offset from the process start in ms
+     */
+    public static long mark(String name) {
+        long offset = SystemClock.elapsedRealtime() - sStartTime;
+        record(String.format(Locale.US, "%-16s at %5dms on %s", name, offset, Thread.currentThread().getName()));
+        return offset;
+    }
+
+    private static CompletableFuture<Void> async(String name, Runnable step) {
+        return CompletableFuture.runAsync(() -> step(name, step), TwoyiExecutors.io());
+    }
+
+    private static void step(String name, Runnable step) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            step.run();
+        } finally {
+            long end = SystemClock.elapsedRealtime();
+            record(String.format(Locale.US, "%-16s at %5dms took %4dms on %s",
+                    name, start - sStartTime, end - start, Thread.currentThread().getName()));
+        }
+    }
+
+    private static void record(String line) {
+        synchronized (sTrace) {
+            sTrace.add(line);
+        }
+    }
+
+    /**
+     * The startup trace, one step or milestone per line in completion order
+     */
+    public static String dump() {
+        synchronized (sTrace) {
+            return String.join("\n", sTrace);
+        }
+    }
+}
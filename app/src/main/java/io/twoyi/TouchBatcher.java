@@ -0,0 +1,124 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import android.view.MotionEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Collects touch samples into a reusable direct buffer and hands them to
+ * native code with a single JNI call per MotionEvent, historical samples
+ * included.
+ *
+ * Buffer layout (native byte order, 4 ints per record):
+ * a frame header {@code [action, actionPointerId, pointerCount, 0]} followed by
+ * {@code pointerCount} pointer records {@code [pointerId, x, y, pressure]}.
+ * Coordinates are already scaled to the virtual display.
+ *
+ * Not thread safe, must only be used from the UI thread.
+ */
+final class TouchBatcher {
+
+    static final int RECORD_INTS = 4;
+    private static final int MAX_RECORDS = 512;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(MAX_RECORDS * RECORD_INTS * 4)
+            .order(ByteOrder.nativeOrder());
+    private final IntBuffer mInts = mBuffer.asIntBuffer();
+
+    private float mScaleX = 1f;
+    private float mScaleY = 1f;
+    private int mRecords;
+
+    private long mEventTimeNanos;
+    private long mReceiptNanos;
+
+    /**
+     * Precompute the surface to virtual display transform
+     */
+    void setScale(int surfaceWidth, int surfaceHeight, int virtualWidth, int virtualHeight) {
+        if (surfaceWidth <= 0 || surfaceHeight <= 0) {
+            return;
+        }
+        mScaleX = (float) virtualWidth / surfaceWidth;
+        mScaleY = (float) virtualHeight / surfaceHeight;
+    }
+
+    /**
+     * Append all samples of the event, oldest historical sample first
+     * @param receiptNanos {@link System#nanoTime()} when the event was received
+     */
+    void enqueue(MotionEvent event, long receiptNanos) {
+        // both clocks are CLOCK_MONOTONIC, so native code can compare them
+        mEventTimeNanos = event.getEventTime() * 1_000_000L;
+        mReceiptNanos = receiptNanos;
+
+        int action = event.getActionMasked();
+        int actionId = event.getPointerId(event.getActionIndex());
+        int pointerCount = Math.min(event.getPointerCount(), MAX_RECORDS - 1);
+
+        if (action == MotionEvent.ACTION_MOVE) {
+            int historySize = event.getHistorySize();
+            for (int h = 0; h < historySize; h++) {
+                putHeader(action, actionId, pointerCount);
+                for (int i = 0; i < pointerCount; i++) {
+                    putPointer(event.getPointerId(i),
+                            event.getHistoricalX(i, h),
+                            event.getHistoricalY(i, h),
+                            event.getHistoricalPressure(i, h));
+                }
+            }
+        }
+
+        putHeader(action, actionId, pointerCount);
+        for (int i = 0; i < pointerCount; i++) {
+            putPointer(event.getPointerId(i), event.getX(i), event.getY(i), event.getPressure(i));
+        }
+    }
+
+    /**
+     * Send everything queued so far to the renderer
+     */
+    void flush() {
+        if (mRecords == 0) {
+            return;
+        }
+        Renderer.handleTouchBatch(mBuffer, mRecords, mEventTimeNanos, mReceiptNanos);
+        mRecords = 0;
+    }
+
+    private void putHeader(int action, int actionId, int pointerCount) {
+        // a frame is never split across two batches
+        if (mRecords + 1 + pointerCount > MAX_RECORDS) {
+            flush();
+        }
+        putRecord(action, actionId, pointerCount, 0);
+    }
+
+    private void putPointer(int pointerId, float x, float y, float pressure) {
+        putRecord(pointerId, (int) (x * mScaleX), (int) (y * mScaleY), (int) pressure);
+    }
+
+    private void putRecord(int a, int b, int c, int d) {
+        int base = mRecords * RECORD_INTS;
+        mInts.put(base, a);
+        mInts.put(base + 1, b);
+        mInts.put(base + 2, c);
+        mInts.put(base + 3, d);
+        mRecords++;
+    }
+}
@@ -28,9 +28,6 @@ import com.microsoft.appcenter.crashes.Crashes;
 
 import java.lang.reflect.Field;
 
-import io.twoyi.utils.ProfileManager;
-import io.twoyi.utils.RomManager;
-
 /**
  * @author weishu
  * @date 2020/12/24.
@@ -42,10 +39,7 @@ public class TwoyiApplication extends Application {
     protected void attachBaseContext(Context base) {
         super.attachBaseContext(base);
 
-        ProfileManager.initializeProfiles(base);
-        RomManager.ensureBootFiles(base);
-
-        TwoyiSocketServer.getInstance(base).start();
+        StartupPipeline.start(base);
     }
 
     @Override
@@ -20,16 +20,36 @@ package io.twoyi;
 
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
-import android.os.Looper;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.twoyi.utils.IOUtils;
+import io.twoyi.utils.TwoyiExecutors;
+
+/**
+ * Sends control messages to the peer of the {@code TWOYI_SOCK} socket.
+ *
+ * Messages go into a bounded queue and {@link #send} never blocks. A single
+ * writer thread owns one persistent connection, reconnecting with exponential
+ * backoff when it breaks, so a message is kept until it is written or it
+ * expires. Control messages without payload are coalesced while queued.
+ * Every message is sent as a {@link TwoyiProtocol} request and the
+ * {@link Callback} learns whether the peer acknowledged it.
+ */
 public class TwoyiMessenger {
     public static final String TAG = "TwoyiMessenger";
 
@@ -39,33 +59,62 @@ public class TwoyiMessenger {
 
     private static final String SOCK_NAME = "TWOYI_SOCK";
 
-    private volatile OutputStreamWriter mWriter;
-    private final ReentrantReadWriteLock mLock;
-    private static TwoyiMessenger INSTANCE;
-    private LocalSocket socket;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long BACKOFF_MIN_MS = 100;
+    private static final long BACKOFF_MAX_MS = 5000;
+    /** A queued message not written within this time is dropped */
+    private static final long DELIVERY_TIMEOUT_MS = 30_000;
+    /** A written message not acknowledged within this time is reported as not delivered */
+    private static final long ACK_TIMEOUT_MS = 3000;
 
-    private static final Executor EXECUTOR = Executors.newCachedThreadPool();
+    private static TwoyiMessenger INSTANCE;
 
-    private TwoyiMessenger() {
-        this.socket = null;
-        this.mLock = new ReentrantReadWriteLock();
+    /**
+     * Delivery result of a message, called on a messenger thread
+     */
+    public interface Callback {
+        void onResult(boolean delivered);
     }
 
-    public TwoyiMessenger connect() {
-        if (this.socket != null) {
-            return this;
+    private static final class Outgoing {
+        final int type;
+        final ByteBuffer payload;
+        final long deadline;
+        Callback callback;
+        int requestId;
+        long sentAt;
+
+        Outgoing(int type, ByteBuffer payload, Callback callback) {
+            this.type = type;
+            this.payload = payload;
+            this.callback = callback;
+            this.deadline = SystemClock.uptimeMillis() + DELIVERY_TIMEOUT_MS;
         }
 
-        try {
-            this.socket = new LocalSocket(LocalSocket.SOCKET_SEQPACKET);
-            this.socket.connect(new LocalSocketAddress(SOCK_NAME));
-            InputStream is = this.socket.getInputStream();
-            OutputStream os = this.socket.getOutputStream();
-            this.mWriter = new OutputStreamWriter(os);
-        } catch (IOException e) {
-            e.printStackTrace();
+        void complete(boolean delivered) {
+            if (callback != null) {
+                try {
+                    callback.onResult(delivered);
+                } catch (Throwable e) {
+                    Log.w(TAG, "callback failed", e);
+                }
+            }
         }
-        return this;
+    }
+
+    private final ArrayDeque<Outgoing> mQueue = new ArrayDeque<>(QUEUE_CAPACITY);
+    // queued control messages by type, to merge repeated ones
+    private final Outgoing[] mCoalesced = new Outgoing[TwoyiProtocol.MAX_TYPE];
+    private final Map<Integer, Outgoing> mPending = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextRequestId = new AtomicInteger();
+
+    // owned by the writer thread
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(TwoyiProtocol.MAX_PACKET);
+    // guarded by this, cleared by the ack reader when the peer goes away
+    private LocalSocket mSocket;
+
+    private TwoyiMessenger() {
+        TwoyiExecutors.control().execute(this::writerLoop);
     }
 
     public static synchronized TwoyiMessenger getInstance() {
@@ -76,35 +125,225 @@ public class TwoyiMessenger {
         return TwoyiMessenger.INSTANCE;
     }
 
-    public void send(String msg) {
+    /**
+     * Queue one of the plain commands, {@link #PING} or {@link #SWITCH_HOST}
+     */
+    public boolean send(String msg) {
+        int type = TwoyiProtocol.parseLegacy(ByteBuffer.wrap(msg.getBytes(StandardCharsets.US_ASCII)));
+        if (type < 0) {
+            Log.w(TAG, "unknown command: " + msg);
+            return false;
+        }
+        return send(type, null, null);
+    }
+
+    /**
+     * Queue a message, never blocks.
+     *
+     * @param payload bytes between position and limit, copied; null for a control
+     *                message, which is merged with a queued one of the same type
+     * @param callback notified of the delivery result, may be null
+     * @return false if the queue is full, the callback is then told right away
+     */
+    public boolean send(int type, ByteBuffer payload, Callback callback) {
+        ByteBuffer copy = null;
+        if (payload != null) {
+            copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload.duplicate());
+            copy.flip();
+        }
+
+        synchronized (mQueue) {
+            if (copy == null && type < TwoyiProtocol.MAX_TYPE) {
+                Outgoing queued = mCoalesced[type];
+                if (queued != null) {
+                    queued.callback = chain(queued.callback, callback);
+                    return true;
+                }
+            }
+
+            if (mQueue.size() >= QUEUE_CAPACITY) {
+                Log.w(TAG, "queue full, drop message " + type);
+                if (callback != null) {
+                    callback.onResult(false);
+                }
+                return false;
+            }
+
+            Outgoing outgoing = new Outgoing(type, copy, callback);
+            if (copy == null && type < TwoyiProtocol.MAX_TYPE) {
+                mCoalesced[type] = outgoing;
+            }
+            mQueue.addLast(outgoing);
+            mQueue.notifyAll();
+        }
+        return true;
+    }
+
+    private static Callback chain(Callback first, Callback second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return delivered -> {
+            first.onResult(delivered);
+            second.onResult(delivered);
+        };
+    }
+
+    private Outgoing take() throws InterruptedException {
+        synchronized (mQueue) {
+            while (mQueue.isEmpty()) {
+                mQueue.wait(ACK_TIMEOUT_MS);
+                expireAcks();
+            }
+            Outgoing outgoing = mQueue.pollFirst();
+            if (outgoing.payload == null && outgoing.type < TwoyiProtocol.MAX_TYPE) {
+                mCoalesced[outgoing.type] = null;
+            }
+            return outgoing;
+        }
+    }
+
+    private void writerLoop() {
+        long backoff = BACKOFF_MIN_MS;
+        while (!Thread.currentThread().isInterrupted()) {
+            Outgoing outgoing;
+            try {
+                outgoing = take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            // keep the message until it is written or expires
+            while (true) {
+                if (SystemClock.uptimeMillis() > outgoing.deadline) {
+                    Log.w(TAG, "message " + outgoing.type + " expired");
+                    outgoing.complete(false);
+                    break;
+                }
+
+                LocalSocket socket = currentSocket();
+                if (socket == null) {
+                    socket = connect();
+                }
+                if (socket == null) {
+                    SystemClock.sleep(backoff);
+                    backoff = Math.min(backoff * 2, BACKOFF_MAX_MS);
+                    expireAcks();
+                    continue;
+                }
+                backoff = BACKOFF_MIN_MS;
 
-        if (Looper.getMainLooper() == Looper.myLooper()) {
-            EXECUTOR.execute(new Runnable() {
-                @Override
-                public void run() {
-                    write(msg);
+                if (write(socket, outgoing)) {
+                    break;
                 }
-            });
-        } else {
-            this.write(msg);
+                disconnect(socket);
+            }
+        }
+    }
+
+    private synchronized LocalSocket currentSocket() {
+        return mSocket;
+    }
+
+    private LocalSocket connect() {
+        LocalSocket socket = new LocalSocket(LocalSocket.SOCKET_SEQPACKET);
+        try {
+            socket.connect(new LocalSocketAddress(SOCK_NAME));
+        } catch (IOException e) {
+            Log.w(TAG, "connect failed: " + e.getMessage());
+            IOUtils.closeSilently(socket);
+            return null;
+        }
+
+        synchronized (this) {
+            mSocket = socket;
+        }
+        try {
+            TwoyiExecutors.control().execute(() -> readAcks(socket));
+        } catch (RejectedExecutionException e) {
+            // without an ack reader the peer going away would not be noticed
+            Log.w(TAG, "no thread for the ack reader: " + e.getMessage());
+            disconnect(socket);
+            return null;
         }
+        Log.i(TAG, "connected");
+        return socket;
     }
 
-    private void write(String msg) {
+    private void disconnect(LocalSocket socket) {
         synchronized (this) {
-            if (mWriter == null) {
-                connect();
+            if (socket == null || socket != mSocket) {
+                return;
             }
+            mSocket = null;
+        }
+        try {
+            // wake the ack reader blocked on this socket
+            socket.shutdownInput();
+        } catch (IOException ignored) {
+        }
+        IOUtils.closeSilently(socket);
+        Log.i(TAG, "disconnected");
+    }
+
+    private boolean write(LocalSocket socket, Outgoing outgoing) {
+        int requestId = mNextRequestId.incrementAndGet();
+        if (requestId == 0) {
+            requestId = mNextRequestId.incrementAndGet();
         }
+        outgoing.requestId = requestId;
+        outgoing.sentAt = SystemClock.uptimeMillis();
 
+        TwoyiProtocol.encode(mOut, outgoing.type, requestId, outgoing.payload);
+        mPending.put(requestId, outgoing);
         try {
-            this.mLock.writeLock().lock();
-            this.mWriter.write(msg);
-            this.mWriter.flush();
-        } catch (Throwable ignored) {
-        } finally {
-            this.mLock.writeLock().unlock();
+            Os.write(socket.getFileDescriptor(), mOut);
+            return true;
+        } catch (ErrnoException | InterruptedIOException e) {
+            Log.w(TAG, "write failed: " + e.getMessage());
+            mPending.remove(requestId);
+            return false;
         }
     }
-}
 
+    private void readAcks(LocalSocket socket) {
+        FileDescriptor fd = socket.getFileDescriptor();
+        ByteBuffer in = ByteBuffer.allocateDirect(TwoyiProtocol.MAX_PACKET);
+        TwoyiProtocol.Message message = new TwoyiProtocol.Message();
+        try {
+            while (true) {
+                in.clear();
+                if (Os.read(fd, in) <= 0) {
+                    break;
+                }
+                in.flip();
+                if (!TwoyiProtocol.decode(in, message) || (message.type & TwoyiProtocol.FLAG_RESPONSE) == 0) {
+                    continue;
+                }
+                Outgoing outgoing = mPending.remove(message.requestId);
+                if (outgoing != null) {
+                    outgoing.complete(message.type != (TwoyiProtocol.MSG_UNSUPPORTED | TwoyiProtocol.FLAG_RESPONSE));
+                }
+            }
+        } catch (ErrnoException | InterruptedIOException ignored) {
+        }
+        // the peer went away, reconnect on the next message
+        disconnect(socket);
+    }
+
+    private void expireAcks() {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Outgoing> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            Outgoing outgoing = it.next();
+            if (now - outgoing.sentAt > ACK_TIMEOUT_MS) {
+                it.remove();
+                outgoing.complete(false);
+            }
+        }
+    }
+}
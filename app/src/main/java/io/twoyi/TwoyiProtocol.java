@@ -0,0 +1,214 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary control protocol spoken over the {@code TWOYI_SOCK} SEQPACKET socket.
+ *
+ * Every packet is one message: a 12 byte little endian header followed by the
+ * payload. The header is the magic byte, the protocol version, the message
+ * type, a request id and the payload length. A request id of 0 expects no
+ * response; otherwise the peer answers with the same id and the request type
+ * with {@link #FLAG_RESPONSE} set.
+ *
+ * The magic byte is outside of ASCII so the plain text commands older ROMs
+ * send ({@code BOOT_COMPLETED}, {@code SWITCH_HOST}...) are still recognized
+ * and mapped to their message type by {@link #parseLegacy(ByteBuffer)}.
+ */
+public final class TwoyiProtocol {
+
+    public static final byte MAGIC = (byte) 0xF2;
+    public static final int VERSION = 1;
+    public static final int HEADER_LEN = 12;
+    /** Largest packet, header included */
+    public static final int MAX_PACKET = 64 * 1024;
+    public static final int MAX_PAYLOAD = MAX_PACKET - HEADER_LEN;
+
+    /** Set in the type of a response */
+    public static final int FLAG_RESPONSE = 0x8000;
+    /** Message types are below this value */
+    public static final int MAX_TYPE = 256;
+
+    // message types
+    public static final int MSG_PING = 1;
+    public static final int MSG_BOOT_COMPLETED = 2;
+    public static final int MSG_SWITCH_HOST = 3;
+    public static final int MSG_OPEN_SETTINGS = 4;
+    /** Response to a request of an unknown type or version, payload is the rejected type */
+    public static final int MSG_UNSUPPORTED = 5;
+    /** Guest boot progress, payload is a u32 {@link BootTracker} stage */
+    public static final int MSG_BOOT_STAGE = 6;
+    public static final int MSG_CLIPBOARD = 16;
+    public static final int MSG_NOTIFICATION = 17;
+    public static final int MSG_APP_EVENT = 18;
+
+    // header offsets
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 1;
+    private static final int OFFSET_TYPE = 2;
+    private static final int OFFSET_REQUEST_ID = 4;
+    private static final int OFFSET_LENGTH = 8;
+
+    // text commands of older ROMs, matched on their prefix
+    private static final byte[][] LEGACY_COMMANDS = {
+            ascii("PING"),
+            ascii("BOOT_COMPLETED"),
+            ascii("SWITCH_HOST"),
+            ascii("SETTINGS"),
+    };
+    private static final int[] LEGACY_TYPES = {
+            MSG_PING,
+            MSG_BOOT_COMPLETED,
+            MSG_SWITCH_HOST,
+            MSG_OPEN_SETTINGS,
+    };
+
+    private TwoyiProtocol() {
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A received message. The payload is a view of the connection buffer and
+     * is only valid until the handler returns.
+     */
+    public static final class Message {
+        public int type;
+        public int requestId;
+        public ByteBuffer payload;
+
+        public boolean expectsResponse() {
+            return requestId != 0;
+        }
+    }
+
+    /**
+     * Handles the messages of one type
+     */
+    public interface Handler {
+        void onMessage(Message message, Responder responder);
+    }
+
+    /**
+     * Sends responses on the connection the message came from
+     */
+    public interface Responder {
+        /**
+         * Answer a request, does nothing if it expects no response
+         * @param payload bytes between position and limit, may be null for an empty response
+         */
+        void respond(Message request, ByteBuffer payload);
+    }
+
+    /**
+     * Check whether the packet between position and limit is a binary message
+     */
+    public static boolean isBinary(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_LEN && packet.get(packet.position() + OFFSET_MAGIC) == MAGIC;
+    }
+
+    /**
+     * Decode a binary packet into {@code out} without copying the payload.
+     *
+     * @return false if the header is malformed; a newer version is decoded
+     * with {@link #versionOf} left for the caller to check
+     */
+    public static boolean decode(ByteBuffer packet, Message out) {
+        if (!isBinary(packet)) {
+            return false;
+        }
+        ByteBuffer buf = packet.order(ByteOrder.LITTLE_ENDIAN);
+        int base = buf.position();
+        int length = buf.getInt(base + OFFSET_LENGTH);
+        if (length < 0 || length > buf.remaining() - HEADER_LEN) {
+            return false;
+        }
+
+        out.type = buf.getShort(base + OFFSET_TYPE) & 0xffff;
+        out.requestId = buf.getInt(base + OFFSET_REQUEST_ID);
+
+        // narrow the same buffer to the payload instead of slicing a new one
+        buf.position(base + HEADER_LEN);
+        buf.limit(base + HEADER_LEN + length);
+        out.payload = buf;
+        return true;
+    }
+
+    /**
+     * Protocol version of a binary packet
+     */
+    public static int versionOf(ByteBuffer packet) {
+        return packet.get(packet.position() + OFFSET_VERSION) & 0xff;
+    }
+
+    /**
+     * Map a plain text command of older ROMs to its message type
+     *
+     * @return the message type, or -1 if the packet is not a known command
+     */
+    public static int parseLegacy(ByteBuffer packet) {
+        int base = packet.position();
+        int length = packet.remaining();
+        for (int i = 0; i < LEGACY_COMMANDS.length; i++) {
+            byte[] command = LEGACY_COMMANDS[i];
+            if (length < command.length) {
+                continue;
+            }
+            boolean match = true;
+            for (int j = 0; j < command.length; j++) {
+                if (packet.get(base + j) != command[j]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return LEGACY_TYPES[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write a complete packet into {@code out}, replacing its contents and
+     * leaving it flipped and ready to be sent
+     *
+     * @param payload bytes between position and limit, may be null
+     */
+    public static void encode(ByteBuffer out, int type, int requestId, ByteBuffer payload) {
+        int length = payload == null ? 0 : payload.remaining();
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload too large: " + length);
+        }
+
+        out.clear();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC);
+        out.put((byte) VERSION);
+        out.putShort((short) type);
+        out.putInt(requestId);
+        out.putInt(length);
+        if (payload != null) {
+            int position = payload.position();
+            out.put(payload);
+            payload.position(position);
+        }
+        out.flip();
+    }
+}
@@ -23,17 +23,22 @@ import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import io.twoyi.ui.SettingsActivity;
 import io.twoyi.utils.IOUtils;
+import io.twoyi.utils.TwoyiExecutors;
 import io.twoyi.utils.UIHelper;
 
 /**
@@ -49,18 +54,15 @@ public class TwoyiSocketServer {
 
     private static final String SOCK_NAME = "TWOYI_SOCK";
 
-    private static final String SWITCH_HOST = "SWITCH_HOST";
-    private static final String BOOT_COMPLETED = "BOOT_COMPLETED";
-
-    private static final String JUMP_HOST_SETTINGS= "SETTINGS";
-
-    private static ExecutorService EXECUTOR = Executors.newCachedThreadPool();
-
     private final AtomicBoolean mStarted = new AtomicBoolean(false);
     private final Context mContext;
 
+    private final AtomicReferenceArray<TwoyiProtocol.Handler> mHandlers =
+            new AtomicReferenceArray<>(TwoyiProtocol.MAX_TYPE);
+
     private TwoyiSocketServer(Context context) {
         mContext = context;
+        registerDefaultHandlers();
     }
 
     public static TwoyiSocketServer getInstance(Context context) {
@@ -71,11 +73,51 @@ public class TwoyiSocketServer {
         return INSTANCE;
     }
 
+    private void registerDefaultHandlers() {
+        // switch host system
+        registerHandler(TwoyiProtocol.MSG_SWITCH_HOST,
+                (message, responder) -> TwoyiStatusManager.getInstance().switchOs(mContext));
+
+        // machine started
+        registerHandler(TwoyiProtocol.MSG_BOOT_COMPLETED,
+                (message, responder) -> TwoyiStatusManager.getInstance().markStarted());
+
+        registerHandler(TwoyiProtocol.MSG_BOOT_STAGE, (message, responder) -> {
+            if (message.payload.remaining() >= 4) {
+                BootTracker.getInstance().advance(message.payload.getInt(message.payload.position()));
+            }
+            responder.respond(message, null);
+        });
+
+        registerHandler(TwoyiProtocol.MSG_OPEN_SETTINGS,
+                (message, responder) -> UIHelper.startActivity(mContext, SettingsActivity.class));
+
+        registerHandler(TwoyiProtocol.MSG_PING,
+                (message, responder) -> responder.respond(message, null));
+    }
+
+    /**
+     * Register the handler of a message type, replacing the previous one.
+     * Handlers run on the connection thread, so they should return quickly.
+     */
+    public void registerHandler(int type, TwoyiProtocol.Handler handler) {
+        if (type <= 0 || type >= TwoyiProtocol.MAX_TYPE) {
+            throw new IllegalArgumentException("invalid message type: " + type);
+        }
+        mHandlers.set(type, handler);
+    }
+
+    public void unregisterHandler(int type) {
+        if (type > 0 && type < TwoyiProtocol.MAX_TYPE) {
+            mHandlers.set(type, null);
+        }
+    }
+
     public void start() {
         if (mStarted.compareAndSet(false, true)) {
-            EXECUTOR.submit(this::start0);
+            TwoyiExecutors.control().execute(this::start0);
 
-            EXECUTOR.submit(()-> {
+            TwoyiExecutors.control().execute(()-> {
 
                 // some device restrict local socket, just connect it to prompt the permission dialog.
                 SystemClock.sleep(3000);
@@ -114,34 +156,114 @@ public class TwoyiSocketServer {
     }
 
     private void handleSocket(LocalSocket socket) {
-        EXECUTOR.submit(() -> handleSocket0(socket));
+        try {
+            TwoyiExecutors.control().execute(() -> new Connection(socket).run());
+        } catch (RejectedExecutionException e) {
+            // the accept loop goes on, the client can connect again
+            Log.w(TAG, "too many connections, closing: " + e.getMessage());
+            IOUtils.closeSilently(socket);
+        }
     }
 
-    private void handleSocket0(LocalSocket socket) {
-        try {
-            InputStream inputStream = socket.getInputStream();
-            Thread currentThread = Thread.currentThread();
+    /**
+     * An accepted client. Every packet is read into the same direct buffer
+     * and dispatched in place, so a message costs no allocation.
+     */
+    private final class Connection implements TwoyiProtocol.Responder {
+
+        private final LocalSocket mSocket;
+        private final FileDescriptor mFd;
+        private final ByteBuffer mIn = ByteBuffer.allocateDirect(TwoyiProtocol.MAX_PACKET);
+        private final ByteBuffer mOut = ByteBuffer.allocateDirect(TwoyiProtocol.MAX_PACKET);
+        private final ByteBuffer mRejected = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+        private final TwoyiProtocol.Message mMessage = new TwoyiProtocol.Message();
+
+        Connection(LocalSocket socket) {
+            mSocket = socket;
+            mFd = socket.getFileDescriptor();
+        }
 
-            while (!currentThread.isInterrupted()) {
-                byte[] data = new byte[1024];
-                int read = inputStream.read(data);
-                handleData(new String(data, 0, read, StandardCharsets.US_ASCII));
+        void run() {
+            try {
+                Thread currentThread = Thread.currentThread();
+                while (!currentThread.isInterrupted()) {
+                    mIn.clear();
+                    int read = Os.read(mFd, mIn);
+                    if (read <= 0) {
+                        // the peer closed the connection
+                        break;
+                    }
+                    mIn.flip();
+                    dispatch(mIn);
+                }
+            } catch (ErrnoException | InterruptedIOException e) {
+                Log.w(TAG, "read socket failed", e);
+            } finally {
+                IOUtils.closeSilently(mSocket);
+            }
+        }
+
+        private void dispatch(ByteBuffer packet) {
+            TwoyiProtocol.Message message = mMessage;
+            boolean supported = true;
+            if (TwoyiProtocol.isBinary(packet)) {
+                int version = TwoyiProtocol.versionOf(packet);
+                if (!TwoyiProtocol.decode(packet, message)) {
+                    Log.w(TAG, "drop malformed packet of " + packet.remaining() + " bytes");
+                    return;
+                }
+                supported = version <= TwoyiProtocol.VERSION;
+            } else {
+                int type = TwoyiProtocol.parseLegacy(packet);
+                if (type < 0) {
+                    Log.w(TAG, "drop unknown command of " + packet.remaining() + " bytes");
+                    return;
+                }
+                message.type = type;
+                message.requestId = 0;
+                packet.position(packet.limit());
+                message.payload = packet;
+            }
+
+            // the guest does not send requests of its own to answer here
+            if ((message.type & TwoyiProtocol.FLAG_RESPONSE) != 0) {
+                return;
+            }
+
+            TwoyiProtocol.Handler handler = supported && message.type < TwoyiProtocol.MAX_TYPE
+                    ? mHandlers.get(message.type) : null;
+            if (handler == null) {
+                Log.w(TAG, "unsupported message type: " + message.type);
+                if (message.expectsResponse()) {
+                    mRejected.clear();
+                    mRejected.putInt(message.type);
+                    mRejected.flip();
+                    send(TwoyiProtocol.MSG_UNSUPPORTED | TwoyiProtocol.FLAG_RESPONSE, message.requestId, mRejected);
+                }
+                return;
             }
 
-        } catch (IOException ignored) {
+            try {
+                handler.onMessage(message, this);
+            } catch (Throwable e) {
+                Log.e(TAG, "handle message " + message.type + " failed", e);
+            }
         }
-    }
 
-    private void handleData(String msg) {
-        if (msg.startsWith(SWITCH_HOST)) {
-            // switch host system
-            TwoyiStatusManager.getInstance().switchOs(mContext);
-        } else if (msg.startsWith(BOOT_COMPLETED)) {
-            // machine started
-            TwoyiStatusManager.getInstance().markStarted();
-        } else if (msg.startsWith(JUMP_HOST_SETTINGS)) {
-            // UIHelper.startActivity(mContext, AboutActivity.class);
-            UIHelper.startActivity(mContext, SettingsActivity.class);
+        @Override
+        public void respond(TwoyiProtocol.Message request, ByteBuffer payload) {
+            if (request.expectsResponse()) {
+                send(request.type | TwoyiProtocol.FLAG_RESPONSE, request.requestId, payload);
+            }
+        }
+
+        private synchronized void send(int type, int requestId, ByteBuffer payload) {
+            TwoyiProtocol.encode(mOut, type, requestId, payload);
+            try {
+                Os.write(mFd, mOut);
+            } catch (ErrnoException | InterruptedIOException e) {
+                Log.w(TAG, "write socket failed", e);
+            }
         }
     }
 }
@@ -15,14 +15,8 @@ package io.twoyi;
 import android.content.Context;
 import android.content.Intent;
 
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import io.twoyi.utils.LogEvents;
-
 /**
  * @author weishu
  * @date 2021/10/27.
@@ -37,8 +31,6 @@ public class TwoyiStatusManager {
     private final AtomicBoolean mStarted = new AtomicBoolean(false);
     private final AtomicBoolean mShown = new AtomicBoolean(false);
 
-    private final CyclicBarrier mBootLatch = new CyclicBarrier(2);
-
     public static TwoyiStatusManager getInstance() {
         return INSTANCE;
     }
@@ -49,11 +41,7 @@ public class TwoyiStatusManager {
 
     public void markStarted() {
         if (mStarted.compareAndSet(false, true)) {
-            try {
-                mBootLatch.await();
-            } catch (BrokenBarrierException | InterruptedException e) {
-                LogEvents.trackError(e);
-            }
+            BootTracker.getInstance().advance(BootTracker.STAGE_LAUNCHER_READY);
         }
     }
 
@@ -61,18 +49,16 @@ public class TwoyiStatusManager {
         return mStarted.get();
     }
 
-    public void reset() {
+    public void reset(Context context) {
         mStarted.set(false);
-        mBootLatch.reset();
+        BootTracker.getInstance().start(context);
     }
 
-    public boolean waitBoot(long timeout, TimeUnit unit) throws InterruptedException, BrokenBarrierException {
-        try {
-            mBootLatch.await(timeout, unit);
-            return true;
-        } catch (TimeoutException e) {
-            return false;
-        }
+    /**
+     * Wait for the container to boot, see {@link BootTracker#waitBoot()}
+     */
+    public boolean waitBoot() throws InterruptedException {
+        return BootTracker.getInstance().waitBoot();
     }
 
     public void switchOs(Context context) {
@@ -14,13 +14,19 @@
 package io.twoyi.ui;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ProgressDialog;
-import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.system.Os;
+import android.provider.DocumentsContract;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
@@ -34,23 +40,31 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.content.FileProvider;
 
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 import io.twoyi.R;
 import io.twoyi.utils.IOUtils;
+import io.twoyi.utils.ProfileArchive;
+import io.twoyi.utils.ProfileCloner;
 import io.twoyi.utils.ProfileManager;
+import io.twoyi.utils.ProfileSnapshots;
 import io.twoyi.utils.RomManager;
+import io.twoyi.utils.TarExtractor;
+import io.twoyi.utils.TarWriter;
+import io.twoyi.utils.TwoyiExecutors;
 import io.twoyi.utils.UIHelper;
 
 /**
@@ -59,10 +73,19 @@ import io.twoyi.utils.UIHelper;
 public class ProfileManagerActivity extends AppCompatActivity {
 
     private static final int REQUEST_IMPORT_PROFILE = 1001;
+    private static final int REQUEST_EXPORT_PROFILE = 1002;
+
+    private static final String PREFERENCES_ENTRY = "preference.xml";
+    private static final int DEFAULT_SNAPSHOTS_KEPT = 7;
+    /** Bytes of small files read ahead of the parallel writers during an import */
+    private static final int IMPORT_WRITE_BUDGET = 32 * 1024 * 1024;
 
     private ExpandableListView mListView;
     private ProfilesAdapter mAdapter;
     private String mPendingImportProfileName;
+    private String mPendingExportProfileName;
+    /** Compression of the pending tar export, null for a {@link ProfileArchive} */
+    private TarWriter.Compression mPendingExportCompression;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -115,6 +138,8 @@ public class ProfileManagerActivity extends AppCompatActivity {
             showCopyDialog(profileName);
         } else if (action.equals(getString(R.string.profile_export))) {
             exportProfile(profileName);
+        } else if (action.equals(getString(R.string.profile_snapshots))) {
+            showSnapshotsDialog(profileName);
         } else if (action.equals(getString(R.string.profile_delete))) {
             confirmDelete(profileName);
         } else if (action.equals(getString(R.string.profile_from_scratch))) {
@@ -179,8 +204,14 @@ public class ProfileManagerActivity extends AppCompatActivity {
                     progressDialog.setCancelable(false);
                     progressDialog.show();
 
+                    ProfileCloner.ProgressListener listener = stats -> {
+                        String message = getString(R.string.profile_copy_progress,
+                                stats.files, stats.bytes >> 20, stats.getThroughput() >> 20);
+                        runOnUiThread(() -> progressDialog.setMessage(message));
+                    };
+
                     UIHelper.defer().when(() -> {
-                        return ProfileManager.copyProfile(this, sourceName, targetName);
+                        return ProfileManager.copyProfile(this, sourceName, targetName, listener);
                     }).done(success -> {
                         UIHelper.dismiss(progressDialog);
                         if (success) {
@@ -200,142 +231,212 @@ public class ProfileManagerActivity extends AppCompatActivity {
     }
 
     private void exportProfile(String profileName) {
+        // the profile archive first, then the plain tar formats
+        TarWriter.Compression[] formats = TarWriter.Compression.values();
+        String[] labels = new String[formats.length + 1];
+        labels[0] = ProfileArchive.EXTENSION.substring(1);
+        for (int i = 0; i < formats.length; i++) {
+            labels[i + 1] = formats[i].extension.substring(1);
+        }
+
+        UIHelper.getDialogBuilder(this)
+            .setTitle(R.string.profile_export_format)
+            .setItems(labels, (dialog, which) -> {
+                TarWriter.Compression compression = which == 0 ? null : formats[which - 1];
+                mPendingExportProfileName = profileName;
+                mPendingExportCompression = compression;
+                Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType(compression == null ? ProfileArchive.MIME_TYPE : compression.mimeType);
+                intent.putExtra(Intent.EXTRA_TITLE, "profile_" + profileName
+                        + (compression == null ? ProfileArchive.EXTENSION : compression.extension));
+                try {
+                    startActivityForResult(intent, REQUEST_EXPORT_PROFILE);
+                } catch (Throwable ignored) {
+                    Toast.makeText(this, "Error", Toast.LENGTH_SHORT).show();
+                }
+            })
+            .setNegativeButton(android.R.string.cancel, null)
+            .show();
+    }
+
+    /**
+     * Stream the profile as a tar straight into the document, nothing is staged on disk
+     * @param compression of the tar, null to write a {@link ProfileArchive}
+     */
+    private void performProfileExport(Uri uri, String profileName, @Nullable TarWriter.Compression compression) {
+        CancellationSignal signal = new CancellationSignal();
         ProgressDialog dialog = UIHelper.getProgressDialog(this);
         dialog.setCancelable(false);
+        dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                (d, which) -> signal.cancel());
         dialog.show();
 
         UIHelper.defer().when(() -> {
-            File profileDir = ProfileManager.getProfileDir(this, profileName);
             File profileRootfs = ProfileManager.getProfileRootfsDir(this, profileName);
-            File exportFile = new File(getCacheDir(), "profile_" + profileName + "_export.tar");
-            File tempDir = new File(getCacheDir(), "profile_export_temp");
-            
-            // Clean up temp directory if it exists
-            if (tempDir.exists()) {
-                IOUtils.deleteDirectory(tempDir);
-            }
-            tempDir.mkdirs();
-            
-            try {
-                // Export SharedPreferences to XML file
-                File prefsXml = new File(tempDir, "preference.xml");
-                SharedPreferences prefs = getSharedPreferences("profile_settings_" + profileName, Context.MODE_PRIVATE);
-                exportPreferencesToXml(prefs, prefsXml);
-                
-                // Copy rootfs contents recursively to temp directory if rootfs exists
-                if (profileRootfs.exists() && profileRootfs.isDirectory()) {
-                    Log.d("ProfileManager", "Copying rootfs from: " + profileRootfs.getAbsolutePath());
-                    copyDirectoryPreservingSymlinks(profileRootfs, tempDir);
+
+            try (OutputStream os = getContentResolver().openOutputStream(uri)) {
+                if (os == null) {
+                    throw new FileNotFoundException("can not open " + uri);
                 }
-                
-                String tempDirPath = tempDir.getAbsolutePath();
-                String exportFilePath = exportFile.getAbsolutePath();
-                
-                if (tempDirPath.contains(";") || tempDirPath.contains("&") || 
-                    exportFilePath.contains(";") || exportFilePath.contains("&")) {
-                    throw new SecurityException("Invalid path detected");
+                // the archive compresses the tar in chunks and carries the settings in its manifest
+                ProfileArchive.Writer archive = compression == null
+                        ? new ProfileArchive.Writer(os, ProfileArchive.createManifest(this, profileName))
+                        : null;
+                TarWriter writer = new TarWriter(archive != null ? archive : os,
+                        archive != null ? TarWriter.Compression.NONE : compression)
+                        .setProgressListener((written, total) -> {
+                            String message = getString(R.string.profile_export_progress,
+                                    total > 0 ? (int) (written * 100 / total) : 0);
+                            runOnUiThread(() -> dialog.setMessage(message));
+                        }, TarWriter.sizeOf(profileRootfs))
+                        .setCancellationSignal(signal);
+
+                if (archive == null) {
+                    SharedPreferences prefs = getSharedPreferences("profile_settings_" + profileName, Context.MODE_PRIVATE);
+                    byte[] prefsXml = exportPreferencesToXml(prefs).getBytes(StandardCharsets.UTF_8);
+                    writer.addEntry(PREFERENCES_ENTRY, prefsXml, 0600, System.currentTimeMillis());
                 }
-                
-                // Create tar archive from temp directory (preserve symlinks)
-                Log.d("ProfileManager", "Creating tar archive: " + exportFilePath);
-                ProcessBuilder pb = new ProcessBuilder(
-                    "tar", "-cf", exportFilePath,
-                    "-C", tempDirPath, "."
-                );
-                pb.redirectErrorStream(true);
-                Process process = pb.start();
-                
-                // Read any error output
-                java.io.BufferedReader reader = new java.io.BufferedReader(
-                    new java.io.InputStreamReader(process.getInputStream()));
-                StringBuilder output = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                    Log.d("ProfileManager", "tar output: " + line);
+                if (profileRootfs.isDirectory()) {
+                    writer.addTree(profileRootfs, "");
                 }
-                
-                int exitCode = process.waitFor();
-                
-                if (exitCode != 0) {
-                    Log.e("ProfileManager", "tar create failed. Output: " + output.toString());
-                    throw new IOException("tar command failed with exit code: " + exitCode + "\nOutput: " + output.toString());
+                TarWriter.Stats stats = writer.finish();
+                if (archive != null) {
+                    archive.finish();
                 }
-                
-                Log.d("ProfileManager", "Export successful, tar file size: " + exportFile.length());
-                return exportFile;
-            } finally {
-                // Clean up temp directory
-                IOUtils.deleteDirectory(tempDir);
+                return stats;
+            } catch (IOException | RuntimeException e) {
+                // a partial archive is of no use
+                try {
+                    DocumentsContract.deleteDocument(getContentResolver(), uri);
+                } catch (Exception ignored) {
+                }
+                throw e;
             }
-        }).done(exportFile -> {
+        }).done(stats -> {
             UIHelper.dismiss(dialog);
-            
-            // Share the file like log export
-            Uri uri = FileProvider.getUriForFile(this, "io.twoyi.fileprovider", exportFile);
-            Intent shareIntent = new Intent(Intent.ACTION_SEND);
-            shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
-            shareIntent.setDataAndType(uri, "application/x-tar");
-            shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            startActivity(Intent.createChooser(shareIntent, getString(R.string.profile_export)));
+            Log.d("ProfileManager", "Export successful: " + stats);
+            Toast.makeText(this, R.string.profile_export_success, Toast.LENGTH_SHORT).show();
         }).fail(result -> runOnUiThread(() -> {
             UIHelper.dismiss(dialog);
+            if (result instanceof OperationCanceledException) {
+                Toast.makeText(this, R.string.profile_export_cancelled, Toast.LENGTH_SHORT).show();
+                return;
+            }
             Toast.makeText(this, getString(R.string.profile_export_failed, result.getMessage()), Toast.LENGTH_LONG).show();
             Log.e("ProfileManager", "Export failed", result);
         }));
     }
-    
-    /**
-     * Copy directory recursively while preserving symlinks and handling errors gracefully
-     */
-    private void copyDirectoryPreservingSymlinks(File source, File target) throws IOException {
-        File[] files = source.listFiles();
-        if (files == null) {
+
+    private void showSnapshotsDialog(String profileName) {
+        UIHelper.defer().when(() -> ProfileSnapshots.list(this, profileName)).done(snapshots -> {
+            String[] labels = new String[snapshots.size()];
+            for (int i = 0; i < labels.length; i++) {
+                ProfileSnapshots.Snapshot snapshot = snapshots.get(i);
+                labels[i] = getString(R.string.profile_snapshot_item, snapshot.id, snapshot.storedBytes >> 20);
+            }
+
+            AlertDialog.Builder builder = UIHelper.getDialogBuilder(this)
+                .setTitle(R.string.profile_snapshots)
+                .setPositiveButton(R.string.profile_snapshot_create, (d, w) -> createSnapshot(profileName))
+                .setNegativeButton(android.R.string.cancel, null);
+            if (snapshots.isEmpty()) {
+                builder.setMessage(R.string.profile_snapshot_empty);
+            } else {
+                builder.setItems(labels, (d, which) -> showSnapshotActions(profileName, snapshots.get(which)))
+                    .setNeutralButton(R.string.profile_snapshot_prune, (d, w) -> showPruneDialog(profileName));
+            }
+            builder.show();
+        }).fail(result -> runOnUiThread(() ->
+            Toast.makeText(this, getString(R.string.profile_snapshot_failed, result.getMessage()), Toast.LENGTH_SHORT).show()));
+    }
+
+    private void createSnapshot(String profileName) {
+        ProgressDialog dialog = UIHelper.getProgressDialog(this);
+        dialog.setCancelable(false);
+        dialog.show();
+
+        UIHelper.defer().when(() -> ProfileSnapshots.create(this, profileName)).done(snapshot -> {
+            UIHelper.dismiss(dialog);
+            Toast.makeText(this, getString(R.string.profile_snapshot_created, snapshot.id, snapshot.storedBytes >> 20),
+                    Toast.LENGTH_SHORT).show();
+        }).fail(result -> runOnUiThread(() -> {
+            UIHelper.dismiss(dialog);
+            Toast.makeText(this, getString(R.string.profile_snapshot_failed, result.getMessage()), Toast.LENGTH_LONG).show();
+            Log.e("ProfileManager", "Snapshot failed", result);
+        }));
+    }
+
+    private void showSnapshotActions(String profileName, ProfileSnapshots.Snapshot snapshot) {
+        String[] actions = {getString(R.string.profile_snapshot_restore), getString(R.string.profile_snapshot_delete)};
+        UIHelper.getDialogBuilder(this)
+            .setTitle(snapshot.id)
+            .setItems(actions, (d, which) -> {
+                if (which == 0) {
+                    confirmRestoreSnapshot(profileName, snapshot);
+                } else {
+                    UIHelper.defer().when(() -> ProfileSnapshots.delete(this, profileName, snapshot.id))
+                        .done(stats -> Toast.makeText(this, getString(R.string.profile_snapshot_pruned, stats.bytes >> 20),
+                                Toast.LENGTH_SHORT).show());
+                }
+            })
+            .setNegativeButton(android.R.string.cancel, null)
+            .show();
+    }
+
+    private void confirmRestoreSnapshot(String profileName, ProfileSnapshots.Snapshot snapshot) {
+        // the container runs on the rootfs of the active profile, it can not be swapped under it
+        if (profileName.equals(ProfileManager.getActiveProfile(this))) {
+            UIHelper.getDialogBuilder(this)
+                .setMessage(getString(R.string.profile_snapshot_restore_active, profileName))
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
             return;
         }
-        
-        for (File file : files) {
-            File destFile = new File(target, file.getName());
-            Path sourcePath = file.toPath();
-            Path targetPath = destFile.toPath();
-            
-            try {
-                // Skip socket files (file type 140000) - tar cannot archive them
+
+        UIHelper.getDialogBuilder(this)
+            .setMessage(getString(R.string.profile_snapshot_restore_confirm, profileName, snapshot.id))
+            .setPositiveButton(android.R.string.ok, (d, w) -> {
+                ProgressDialog dialog = UIHelper.getProgressDialog(this);
+                dialog.setCancelable(false);
+                dialog.show();
+
+                UIHelper.defer().when(() -> ProfileSnapshots.restore(this, profileName, snapshot.id)).done(stats -> {
+                    UIHelper.dismiss(dialog);
+                    Log.d("ProfileManager", "Snapshot restored: " + stats);
+                    Toast.makeText(this, getString(R.string.profile_snapshot_restored, snapshot.id), Toast.LENGTH_SHORT).show();
+                }).fail(result -> runOnUiThread(() -> {
+                    UIHelper.dismiss(dialog);
+                    Toast.makeText(this, getString(R.string.profile_snapshot_failed, result.getMessage()), Toast.LENGTH_LONG).show();
+                    Log.e("ProfileManager", "Restore failed", result);
+                }));
+            })
+            .setNegativeButton(android.R.string.cancel, null)
+            .show();
+    }
+
+    private void showPruneDialog(String profileName) {
+        android.widget.EditText input = new android.widget.EditText(this);
+        input.setHint(R.string.profile_snapshot_prune_hint);
+        input.setInputType(android.text.InputType.TYPE_CLASS_NUMBER);
+        input.setText(String.valueOf(DEFAULT_SNAPSHOTS_KEPT));
+
+        UIHelper.getDialogBuilder(this)
+            .setTitle(R.string.profile_snapshot_prune)
+            .setView(input)
+            .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                int keep;
                 try {
-                    java.nio.file.attribute.BasicFileAttributes attrs = 
-                        Files.readAttributes(sourcePath, java.nio.file.attribute.BasicFileAttributes.class, 
-                                           java.nio.file.LinkOption.NOFOLLOW_LINKS);
-                    if (!attrs.isRegularFile() && !attrs.isDirectory() && !attrs.isSymbolicLink()) {
-                        // Skip special files like sockets, named pipes, etc.
-                        Log.d("ProfileManager", "Skipping special file: " + file.getName());
-                        continue;
-                    }
-                } catch (Exception e) {
-                    Log.w("ProfileManager", "Could not check file type for: " + file.getName() + ", skipping");
-                    continue;
-                }
-                
-                if (Files.isSymbolicLink(sourcePath)) {
-                    // Preserve symlink
-                    Path linkTarget = Files.readSymbolicLink(sourcePath);
-                    Files.createSymbolicLink(targetPath, linkTarget);
-                    Log.d("ProfileManager", "Created symlink: " + destFile.getName() + " -> " + linkTarget);
-                } else if (file.isDirectory()) {
-                    // Recursively copy directory
-                    destFile.mkdirs();
-                    copyDirectoryPreservingSymlinks(file, destFile);
-                } else {
-                    // Copy regular file
-                    Files.copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                    keep = Integer.parseInt(input.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    return;
                 }
-            } catch (java.nio.file.AccessDeniedException e) {
-                // Soft fail on permission errors - log and continue
-                Log.w("ProfileManager", "Permission denied copying: " + file.getAbsolutePath() + ", skipping");
-            } catch (Exception e) {
-                // Soft fail on other errors - log and continue
-                Log.w("ProfileManager", "Error copying: " + file.getAbsolutePath() + " - " + e.getMessage() + ", skipping");
-            }
-        }
+                UIHelper.defer().when(() -> ProfileSnapshots.prune(this, profileName, keep))
+                    .done(stats -> Toast.makeText(this, getString(R.string.profile_snapshot_pruned, stats.bytes >> 20),
+                            Toast.LENGTH_SHORT).show());
+            })
+            .setNegativeButton(android.R.string.cancel, null)
+            .show();
     }
 
     private void confirmDelete(String profileName) {
@@ -400,9 +501,18 @@ public class ProfileManagerActivity extends AppCompatActivity {
             if (data != null && data.getData() != null && mPendingImportProfileName != null) {
                 performProfileImport(data.getData(), mPendingImportProfileName);
             }
+        } else if (requestCode == REQUEST_EXPORT_PROFILE && resultCode == Activity.RESULT_OK) {
+            if (data != null && data.getData() != null && mPendingExportProfileName != null) {
+                performProfileExport(data.getData(), mPendingExportProfileName, mPendingExportCompression);
+            }
         }
     }
 
+    /**
+     * Extract the archive straight from the uri into a staged profile that is
+     * renamed into place once complete; preference.xml never touches the disk.
+     * Both a {@link ProfileArchive} and a plain or compressed tar are accepted.
+     */
     private void performProfileImport(Uri uri, String profileName) {
         ProgressDialog dialog = UIHelper.getProgressDialog(this);
         dialog.setCancelable(false);
@@ -410,85 +520,75 @@ public class ProfileManagerActivity extends AppCompatActivity {
 
         UIHelper.defer().when(() -> {
             File profileDir = ProfileManager.getProfileDir(this, profileName);
-            File profileRootfs = ProfileManager.getProfileRootfsDir(this, profileName);
-            
             if (profileDir.exists()) {
                 throw new IOException("Profile already exists: " + profileName);
             }
 
-            File tempFile = new File(getCacheDir(), "profile_import.tar");
-            File tempExtractDir = new File(getCacheDir(), "profile_import_temp");
-
-            // Clean up temp extract directory if it exists
-            if (tempExtractDir.exists()) {
-                IOUtils.deleteDirectory(tempExtractDir);
+            // hidden, so it is not listed as a profile while it is extracted
+            File stagingDir = new File(ProfileManager.getProfilesDir(this), "." + profileName + ".import");
+            if (stagingDir.exists()) {
+                IOUtils.forceDelete(stagingDir);
             }
-            tempExtractDir.mkdirs();
+            File stagingRootfs = new File(stagingDir, "rootfs");
 
-            try {
-                // Copy uploaded file to temp
-                ContentResolver contentResolver = getContentResolver();
-                try (InputStream inputStream = contentResolver.openInputStream(uri);
-                     OutputStream os = new FileOutputStream(tempFile)) {
-                    byte[] buffer = new byte[8192];
-                    int count;
-                    while ((count = inputStream.read(buffer)) > 0) {
-                        os.write(buffer, 0, count);
-                    }
-                }
-
-                String tempFilePath = tempFile.getAbsolutePath();
-                String tempExtractPath = tempExtractDir.getAbsolutePath();
-                
-                if (tempFilePath.contains(";") || tempFilePath.contains("&") ||
-                    tempExtractPath.contains(";") || tempExtractPath.contains("&")) {
-                    throw new SecurityException("Invalid path detected");
+            String[] prefsXml = new String[1];
+            JSONObject manifest = null;
+            try (InputStream source = getContentResolver().openInputStream(uri)) {
+                if (source == null) {
+                    throw new FileNotFoundException("can not open " + uri);
                 }
-                
-                // Extract tar to temp directory
-                ProcessBuilder pb = new ProcessBuilder(
-                    "tar", "-xf", tempFilePath,
-                    "-C", tempExtractPath
-                );
-                Process process = pb.start();
-                int exitCode = process.waitFor();
-
-                if (exitCode != 0) {
-                    throw new IOException("tar extract failed with exit code: " + exitCode);
+                InputStream inputStream = new BufferedInputStream(source);
+                ProfileArchive.Reader archive = null;
+                if (ProfileArchive.isArchive(inputStream)) {
+                    archive = new ProfileArchive.Reader(inputStream);
+                    inputStream = archive;
                 }
+                // progress counts the tar inside an archive
+                long totalBytes = archive != null ? getArchiveTarSize(uri) : IOUtils.getContentLength(this, uri);
+
+                TarExtractor.Stats stats = new TarExtractor(stagingRootfs)
+                        .setProgressListener((read, total) -> {
+                            String message = total > 0
+                                    ? getString(R.string.profile_import_progress, (int) (read * 100 / total))
+                                    : getString(R.string.profile_import_progress_bytes, read / (1024 * 1024));
+                            runOnUiThread(() -> dialog.setMessage(message));
+                        }, totalBytes)
+                        .setWriteExecutor(TwoyiExecutors.cpu(), IMPORT_WRITE_BUDGET)
+                        .setEntryInterceptor(new TarExtractor.EntryInterceptor() {
+                            @Override
+                            public boolean intercept(String name) {
+                                return PREFERENCES_ENTRY.equals(name);
+                            }
 
-                // Create profile directory structure
-                profileDir.mkdirs();
-                profileRootfs.mkdirs();
-
-                // Import preferences from XML if it exists
-                File prefsXml = new File(tempExtractDir, "preference.xml");
-                if (prefsXml.exists()) {
-                    SharedPreferences prefs = getSharedPreferences("profile_settings_" + profileName, Context.MODE_PRIVATE);
-                    importPreferencesFromXml(prefsXml, prefs);
+                            @Override
+                            public void onEntry(String name, byte[] data) {
+                                prefsXml[0] = new String(data, StandardCharsets.UTF_8);
+                            }
+                        })
+                        .extract(inputStream);
+                if (archive != null) {
+                    // verifies the chunks after the tar and the index
+                    manifest = archive.readToEnd();
                 }
+                Log.d("ProfileManager", "Import extracted: " + stats);
 
-                // Move all files except preference.xml to rootfs
-                File[] files = tempExtractDir.listFiles();
-                if (files != null) {
-                    for (File file : files) {
-                        if (!file.getName().equals("preference.xml")) {
-                            File targetFile = new File(profileRootfs, file.getName());
-                            if (file.isDirectory()) {
-                                moveDirectory(file, targetFile);
-                            } else {
-                                Files.move(file.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                            }
-                        }
-                    }
+                if (profileDir.exists()) {
+                    // rename would replace an empty directory
+                    throw new IOException("Profile already exists: " + profileName);
                 }
+                Os.rename(stagingDir.getPath(), profileDir.getPath());
+            } catch (Exception e) {
+                IOUtils.forceDelete(stagingDir);
+                throw e;
+            }
 
-                return true;
-            } finally {
-                // Clean up temp files
-                tempFile.delete();
-                IOUtils.deleteDirectory(tempExtractDir);
+            if (manifest != null) {
+                ProfileArchive.applySettings(this, profileName, manifest);
+            } else if (prefsXml[0] != null) {
+                SharedPreferences prefs = getSharedPreferences("profile_settings_" + profileName, Context.MODE_PRIVATE);
+                importPreferencesFromXml(prefsXml[0], prefs);
             }
+            return true;
         }).done(result -> {
             UIHelper.dismiss(dialog);
             if (result) {
@@ -504,9 +604,39 @@ public class ProfileManagerActivity extends AppCompatActivity {
     }
 
     /**
-     * Export SharedPreferences to XML file
+     * Size of the tar in a {@link ProfileArchive} from its index, which also
+     * rejects a truncated archive before anything is extracted
+     * @return -1 if the document can not seek, the index is checked at the end of the stream then
+     */
+    private long getArchiveTarSize(Uri uri) throws IOException {
+        ProfileArchive.Trailer trailer;
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null) {
+                return -1;
+            }
+            FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            try {
+                // a pipe throws here, its size would be 0
+                channel.position(0);
+            } catch (IOException e) {
+                return -1;
+            }
+            trailer = ProfileArchive.readTrailer(channel);
+        } catch (FileNotFoundException | SecurityException e) {
+            return -1;
+        }
+
+        long size = 0;
+        for (ProfileArchive.Chunk chunk : trailer.chunks) {
+            size += chunk.rawLength;
+        }
+        return size;
+    }
+
+    /**
+     * Export SharedPreferences to XML
      */
-    private void exportPreferencesToXml(SharedPreferences prefs, File xmlFile) throws IOException {
+    private String exportPreferencesToXml(SharedPreferences prefs) {
         StringBuilder xml = new StringBuilder();
         xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
         xml.append("<preferences>\n");
@@ -528,14 +658,13 @@ public class ProfileManagerActivity extends AppCompatActivity {
         }
         
         xml.append("</preferences>\n");
-        IOUtils.writeContent(xmlFile, xml.toString());
+        return xml.toString();
     }
 
     /**
-     * Import SharedPreferences from XML file
+     * Import SharedPreferences from XML
      */
-    private void importPreferencesFromXml(File xmlFile, SharedPreferences prefs) throws IOException {
-        String xmlContent = IOUtils.readContent(xmlFile);
+    private void importPreferencesFromXml(String xmlContent, SharedPreferences prefs) {
         if (xmlContent == null || xmlContent.isEmpty()) {
             return;
         }
@@ -620,35 +749,6 @@ public class ProfileManagerActivity extends AppCompatActivity {
         return line.substring(start, end);
     }
 
-    /**
-     * Move directory recursively, preserving symlinks
-     */
-    private void moveDirectory(File source, File target) throws IOException {
-        if (!target.exists()) {
-            target.mkdirs();
-        }
-
-        File[] files = source.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                File targetFile = new File(target, file.getName());
-                Path sourcePath = file.toPath();
-                Path targetPath = targetFile.toPath();
-                
-                if (Files.isSymbolicLink(sourcePath)) {
-                    Path linkTarget = Files.readSymbolicLink(sourcePath);
-                    Files.createSymbolicLink(targetPath, linkTarget);
-                    Files.delete(sourcePath);
-                } else if (file.isDirectory()) {
-                    moveDirectory(file, targetFile);
-                    Files.delete(sourcePath);
-                } else {
-                    Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-                }
-            }
-        }
-    }
-
     private class ProfilesAdapter extends BaseExpandableListAdapter {
         private final List<String> mProfiles;
         private final String mActiveProfile;
@@ -672,9 +772,9 @@ public class ProfileManagerActivity extends AppCompatActivity {
             if (profile.equals(mNewProfilePlaceholder)) {
                 return 2; // From scratch, From import
             } else if (profile.equals(mActiveProfile)) {
-                return 4; // Rename, Copy, Export, Delete (no switch for active)
+                return 5; // Rename, Copy, Export, Snapshots, Delete (no switch for active)
             } else {
-                return 5; // Switch, Rename, Copy, Export, Delete
+                return 6; // Switch, Rename, Copy, Export, Snapshots, Delete
             }
         }
 
@@ -693,7 +793,8 @@ public class ProfileManagerActivity extends AppCompatActivity {
                     case 0: return getString(R.string.profile_rename);
                     case 1: return getString(R.string.profile_copy);
                     case 2: return getString(R.string.profile_export);
-                    case 3: return getString(R.string.profile_delete);
+                    case 3: return getString(R.string.profile_snapshots);
+                    case 4: return getString(R.string.profile_delete);
                     default: return "";
                 }
             } else {
@@ -702,7 +803,8 @@ public class ProfileManagerActivity extends AppCompatActivity {
                     case 1: return getString(R.string.profile_rename);
                     case 2: return getString(R.string.profile_copy);
                     case 3: return getString(R.string.profile_export);
-                    case 4: return getString(R.string.profile_delete);
+                    case 4: return getString(R.string.profile_snapshots);
+                    case 5: return getString(R.string.profile_delete);
                     default: return "";
                 }
             }
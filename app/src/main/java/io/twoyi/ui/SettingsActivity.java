@@ -8,12 +8,12 @@ package io.twoyi.ui;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.provider.DocumentsContract;
@@ -31,10 +31,7 @@ import androidx.core.content.FileProvider;
 import com.microsoft.appcenter.crashes.Crashes;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.util.List;
 
@@ -44,6 +41,7 @@ import io.twoyi.utils.LogEvents;
 import io.twoyi.utils.ProfileManager;
 import io.twoyi.utils.ProfileSettings;
 import io.twoyi.utils.RomManager;
+import io.twoyi.utils.TwoyiExecutors;
 import io.twoyi.utils.UIHelper;
 
 /**
@@ -119,12 +117,16 @@ public class SettingsActivity extends AppCompatActivity {
             Preference displayHeight = findPreference(R.string.settings_key_display_height);
             Preference displayDpi = findPreference(R.string.settings_key_display_dpi);
             CheckBoxPreference useNewRenderer = (CheckBoxPreference) findPreference(R.string.settings_key_use_new_renderer);
+            ListPreference frameRate = (ListPreference) findPreference(R.string.settings_key_frame_rate);
             CheckBoxPreference debugRenderer = (CheckBoxPreference) findPreference(R.string.settings_key_debug_renderer);
+            ListPreference traceSampleRate = (ListPreference) findPreference(R.string.settings_key_trace_sample_rate);
+            CheckBoxPreference clearDalvikCache = (CheckBoxPreference) findPreference(R.string.settings_key_clear_dalvik_cache);
             Preference selectRom = findPreference(R.string.settings_key_select_rom);
             Preference factoryReset = findPreference(R.string.settings_key_factory_reset);
 
             Preference donate = findPreference(R.string.settings_key_donate);
             Preference sendLog = findPreference(R.string.settings_key_sendlog);
+            Preference threadPools = findPreference(R.string.settings_key_thread_pools);
             Preference about = findPreference(R.string.settings_key_about);
 
             // Initialize verbose logging checkbox with profile-specific value
@@ -207,6 +209,17 @@ public class SettingsActivity extends AppCompatActivity {
                 return true;
             });
 
+            // Initialize frame rate policy with profile-specific value
+            frameRate.setValue(ProfileSettings.getFrameRatePolicy(getActivity()));
+            frameRate.setSummary(getString(R.string.settings_frame_rate_summary, frameRate.getEntry()));
+            frameRate.setOnPreferenceChangeListener((preference, newValue) -> {
+                ProfileSettings.setFrameRatePolicy(getActivity(), (String) newValue);
+                int index = frameRate.findIndexOfValue((String) newValue);
+                frameRate.setSummary(getString(R.string.settings_frame_rate_summary, frameRate.getEntries()[index]));
+                Toast.makeText(getActivity(), R.string.settings_display_change_reboot, Toast.LENGTH_SHORT).show();
+                return true;
+            });
+
             // Initialize debug renderer checkbox with profile-specific value
             debugRenderer.setChecked(ProfileSettings.isDebugRendererEnabled(getActivity()));
             debugRenderer.setOnPreferenceChangeListener((preference, newValue) -> {
@@ -215,6 +228,28 @@ public class SettingsActivity extends AppCompatActivity {
                 return true;
             });
 
+            // Initialize trace sampling with profile-specific value, a rate that is not listed shows as is
+            String sampleRate = String.valueOf(ProfileSettings.getTraceSampleRate(getActivity()));
+            traceSampleRate.setValue(sampleRate);
+            CharSequence sampleRateEntry = traceSampleRate.getEntry();
+            traceSampleRate.setSummary(getString(R.string.settings_trace_sample_rate_summary,
+                    sampleRateEntry != null ? sampleRateEntry : sampleRate));
+            traceSampleRate.setOnPreferenceChangeListener((preference, newValue) -> {
+                ProfileSettings.setTraceSampleRate(getActivity(), Integer.parseInt((String) newValue));
+                int index = traceSampleRate.findIndexOfValue((String) newValue);
+                traceSampleRate.setSummary(getString(R.string.settings_trace_sample_rate_summary,
+                        traceSampleRate.getEntries()[index]));
+                Toast.makeText(getActivity(), R.string.settings_display_change_reboot, Toast.LENGTH_SHORT).show();
+                return true;
+            });
+
+            // Initialize forced dalvik-cache wipe with profile-specific value, used on the next launch
+            clearDalvikCache.setChecked(ProfileSettings.isClearDalvikCacheEnabled(getActivity()));
+            clearDalvikCache.setOnPreferenceChangeListener((preference, newValue) -> {
+                ProfileSettings.setClearDalvikCache(getActivity(), (Boolean) newValue);
+                return true;
+            });
+
             launchContainer.setOnPreferenceClickListener(preference -> {
                 Intent intent = new Intent(getContext(), io.twoyi.Render2Activity.class);
                 startActivity(intent);
@@ -253,7 +288,8 @@ public class SettingsActivity extends AppCompatActivity {
             });
 
             selectRom.setOnPreferenceClickListener(preference -> {
-                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                // a document uri can be kept across process death to resume the import
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
                 intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, false);
                 intent.setType("*/*");
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
@@ -316,12 +352,29 @@ public class SettingsActivity extends AppCompatActivity {
                 return true;
             });
 
+            threadPools.setOnPreferenceClickListener(preference -> {
+                showThreadPools();
+                return true;
+            });
+
             about.setOnPreferenceClickListener(preference -> {
                 UIHelper.startActivity(getContext(), AboutActivity.class);
                 return true;
             });
         }
 
+        private void showThreadPools() {
+            Activity activity = getActivity();
+            if (activity == null) return;
+
+            UIHelper.getDialogBuilder(activity)
+                    .setTitle(R.string.settings_key_thread_pools)
+                    .setMessage(TwoyiExecutors.dump())
+                    .setPositiveButton(android.R.string.ok, null)
+                    .setNeutralButton(R.string.settings_thread_pools_refresh, (dialog, which) -> showThreadPools())
+                    .show();
+        }
+
         @Override
         public void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
             super.onActivityResult(requestCode, resultCode, data);
@@ -339,53 +392,13 @@ public class SettingsActivity extends AppCompatActivity {
 
             ProgressDialog dialog = UIHelper.getProgressDialog(activity);
             dialog.setCancelable(false);
+            dialog.setMessage(getString(R.string.extracting_tips));
             dialog.show();
 
             UIHelper.defer().when(() -> {
-                String activeProfile = ProfileManager.getActiveProfile(activity);
-                File profileRootfsDir = ProfileManager.getProfileRootfsDir(activity, activeProfile);
-                
-                // Clear existing rootfs
-                if (profileRootfsDir.exists()) {
-                    io.twoyi.utils.IOUtils.deleteDirectory(profileRootfsDir);
-                }
-                profileRootfsDir.mkdirs();
-                
-                File tempFile = new File(activity.getCacheDir(), "rootfs_import.tar");
-
-                ContentResolver contentResolver = activity.getContentResolver();
-                try (InputStream inputStream = contentResolver.openInputStream(uri);
-                     OutputStream os = new FileOutputStream(tempFile)) {
-                    byte[] buffer = new byte[8192];
-                    int count;
-                    while ((count = inputStream.read(buffer)) > 0) {
-                        os.write(buffer, 0, count);
-                    }
-                }
-
-                String tempFilePath = tempFile.getAbsolutePath();
-                String rootfsPath = profileRootfsDir.getAbsolutePath();
-                
-                if (tempFilePath.contains(";") || tempFilePath.contains("&") ||
-                    rootfsPath.contains(";") || rootfsPath.contains("&")) {
-                    throw new SecurityException("Invalid path detected");
-                }
-                
-                // Extract tar to rootfs directory
-                ProcessBuilder pb = new ProcessBuilder(
-                    "tar", "-xf", tempFilePath,
-                    "-C", rootfsPath
-                );
-                Process process = pb.start();
-                int exitCode = process.waitFor();
-                
-                tempFile.delete();
-                
-                if (exitCode == 0) {
-                    RomManager.initRootfs(activity);
-                }
-                
-                return exitCode == 0;
+                // Stream the archive straight into the rootfs directory
+                RomManager.importRootfs(activity, uri, UIHelper.progressMessage(activity, dialog));
+                return true;
             }).done(result -> {
                 UIHelper.dismiss(dialog);
                 if (result) {
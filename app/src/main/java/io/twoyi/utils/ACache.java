@@ -9,35 +9,32 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.ImageDecoder;
 import android.graphics.PixelFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 数据保存在 {@link CacheLog} 中：每个缓存目录一个只追加的日志文件，索引在内存中
+ *
  * @author Michael Yang（www.yangfuhai.com） update at 2013.08.07
  */
 public class ACache {
@@ -46,7 +43,8 @@ public class ACache {
 	private static final int MAX_SIZE = 1000 * 1000 * 50; // 50 mb
 	private static final int MAX_COUNT = Integer.MAX_VALUE; // 不限制存放数据的数量
 	private static Map<String, ACache> mInstanceMap = new HashMap<String, ACache>();
-	private ACacheManager mCache;
+	private final File mCacheDir;
+	private final CacheLog mCache;
 
 	public static ACache get(Context ctx) {
 		return get(ctx, "ACache");
@@ -66,7 +64,7 @@ public class ACache {
 		return get(f, max_zise, max_count);
 	}
 
-	public static ACache get(File cacheDir, long max_zise, int max_count) {
+	public static synchronized ACache get(File cacheDir, long max_zise, int max_count) {
 		ACache manager = mInstanceMap.get(cacheDir.getAbsoluteFile() + myPid());
 		if (manager == null) {
 			manager = new ACache(cacheDir, max_zise, max_count);
@@ -84,7 +82,28 @@ public class ACache {
 			throw new RuntimeException("can't make dirs in "
 					+ cacheDir.getAbsolutePath());
 		}
-		mCache = new ACacheManager(cacheDir, max_size, max_count);
+		mCacheDir = cacheDir;
+		mCache = new CacheLog(cacheDir, max_size, max_count);
+	}
+
+	/**
+	 * 到期时间，单位：毫秒
+	 *
+	 * @param saveTime
+	 *            保存的时间，单位：秒
+	 */
+	private static long expiresAt(int saveTime) {
+		return System.currentTimeMillis() + saveTime * 1000L;
+	}
+
+	private void store(String key, byte[] value, long expiresAt) {
+		if (value == null)
+			return;
+		try {
+			mCache.put(key, value, expiresAt);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	// =======================================
@@ -99,24 +118,7 @@ public class ACache {
 	 *            保存的String数据
 	 */
 	public void put(String key, String value) {
-		File file = mCache.newFile(key);
-		BufferedWriter out = null;
-		try {
-			out = new BufferedWriter(new FileWriter(file), 1024);
-			out.write(value);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if (out != null) {
-				try {
-					out.flush();
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			mCache.put(file);
-		}
+		store(key, value.getBytes(StandardCharsets.UTF_8), 0);
 	}
 
 	/**
@@ -130,7 +132,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, String value, int saveTime) {
-		put(key, Utils.newStringWithDateInfo(saveTime, value));
+		store(key, value.getBytes(StandardCharsets.UTF_8), expiresAt(saveTime));
 	}
 
 	/**
@@ -140,38 +142,10 @@ public class ACache {
 	 * @return String 数据
 	 */
 	public String getAsString(String key) {
-		File file = mCache.get(key);
-		if (!file.exists())
-			return null;
-		boolean removeFile = false;
-		BufferedReader in = null;
-		try {
-			in = new BufferedReader(new FileReader(file));
-			String readString = "";
-			String currentLine;
-			while ((currentLine = in.readLine()) != null) {
-				readString += currentLine;
-			}
-			if (!Utils.isDue(readString)) {
-				return Utils.clearDateInfo(readString);
-			} else {
-				removeFile = true;
-				return null;
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		byte[] data = getAsBinary(key);
+		if (data == null)
 			return null;
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			if (removeFile)
-				remove(key);
-		}
+		return new String(data, StandardCharsets.UTF_8);
 	}
 
 	// =======================================
@@ -278,24 +252,7 @@ public class ACache {
 	 *            保存的数据
 	 */
 	public void put(String key, byte[] value) {
-		File file = mCache.newFile(key);
-		FileOutputStream out = null;
-		try {
-			out = new FileOutputStream(file);
-			out.write(value);
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			if (out != null) {
-				try {
-					out.flush();
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			mCache.put(file);
-		}
+		store(key, value, 0);
 	}
 
 	/**
@@ -309,7 +266,7 @@ public class ACache {
 	 *            保存的时间，单位：秒
 	 */
 	public void put(String key, byte[] value, int saveTime) {
-		put(key, Utils.newByteArrayWithDateInfo(saveTime, value));
+		store(key, value, expiresAt(saveTime));
 	}
 
 	/**
@@ -319,34 +276,26 @@ public class ACache {
 	 * @return byte 数据
 	 */
 	public byte[] getAsBinary(String key) {
-		RandomAccessFile RAFile = null;
-		boolean removeFile = false;
 		try {
-			File file = mCache.get(key);
-			if (!file.exists())
-				return null;
-			RAFile = new RandomAccessFile(file, "r");
-			byte[] byteArray = new byte[(int) RAFile.length()];
-			RAFile.read(byteArray);
-			if (!Utils.isDue(byteArray)) {
-				return Utils.clearDateInfo(byteArray);
-			} else {
-				removeFile = true;
-				return null;
-			}
-		} catch (Exception e) {
+			return mCache.get(key);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * 获取 byte 数据的只读视图，直接映射缓存文件，数据不复制到堆上
+	 * 
+	 * @param key
+	 * @return byte 数据，缓存更新或删除后视图仍然有效
+	 */
+	public ByteBuffer getAsBuffer(String key) {
+		try {
+			return mCache.getBuffer(key);
+		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
-		} finally {
-			if (RAFile != null) {
-				try {
-					RAFile.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			if (removeFile)
-				remove(key);
 		}
 	}
 
@@ -472,10 +421,11 @@ public class ACache {
 	 * @return bitmap 数据
 	 */
 	public Bitmap getAsBitmap(String key) {
-		if (getAsBinary(key) == null) {
+		ByteBuffer data = getAsBuffer(key);
+		if (data == null) {
 			return null;
 		}
-		return Utils.Bytes2Bimap(getAsBinary(key));
+		return Utils.decodeBitmap(data);
 	}
 
 	// =======================================
@@ -514,23 +464,31 @@ public class ACache {
 	 * @return Drawable 数据
 	 */
 	public Drawable getAsDrawable(String key) {
-		if (getAsBinary(key) == null) {
+		Bitmap bitmap = getAsBitmap(key);
+		if (bitmap == null) {
 			return null;
 		}
-		return Utils.bitmap2Drawable(Utils.Bytes2Bimap(getAsBinary(key)));
+		return Utils.bitmap2Drawable(bitmap);
 	}
 
 	/**
-	 * 获取缓存文件
+	 * 获取缓存文件，数据在日志中，这里写出一份副本，下次打开缓存时删除
 	 * 
 	 * @param key
 	 * @return value 缓存的文件
 	 */
 	public File file(String key) {
-		File f = mCache.newFile(key);
-		if (f.exists())
+		byte[] data = getAsBinary(key);
+		if (data == null)
+			return null;
+		File f = new File(mCacheDir, "file_" + IOUtils.md5(key));
+		try (FileOutputStream out = new FileOutputStream(f)) {
+			out.write(data);
 			return f;
-		return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 
 	/**
@@ -540,267 +498,32 @@ public class ACache {
 	 * @return 是否移除成功
 	 */
 	public boolean remove(String key) {
-		return mCache.remove(key);
+		try {
+			return mCache.remove(key);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
 	}
 
 	/**
 	 * 清除所有数据
 	 */
 	public void clear() {
-		mCache.clear();
-	}
-
-	/**
-	 * @title 缓存管理器
-	 * @author 杨福海（michael） www.yangfuhai.com
-	 * @version 1.0
-	 */
-	public class ACacheManager {
-		private final AtomicLong cacheSize;
-		private final AtomicInteger cacheCount;
-		private final long sizeLimit;
-		private final int countLimit;
-		private final Map<File, Long> lastUsageDates = Collections
-				.synchronizedMap(new HashMap<File, Long>());
-		protected File cacheDir;
-
-		private ACacheManager(File cacheDir, long sizeLimit, int countLimit) {
-			this.cacheDir = cacheDir;
-			this.sizeLimit = sizeLimit;
-			this.countLimit = countLimit;
-			cacheSize = new AtomicLong();
-			cacheCount = new AtomicInteger();
-			calculateCacheSizeAndCacheCount();
-		}
-
-		/**
-		 * 计算 cacheSize和cacheCount
-		 */
-		private void calculateCacheSizeAndCacheCount() {
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					int size = 0;
-					int count = 0;
-					File[] cachedFiles = cacheDir.listFiles();
-					if (cachedFiles != null) {
-						for (File cachedFile : cachedFiles) {
-							size += calculateSize(cachedFile);
-							count += 1;
-							lastUsageDates.put(cachedFile,
-									cachedFile.lastModified());
-						}
-						cacheSize.set(size);
-						cacheCount.set(count);
-					}
-				}
-			}).start();
-		}
-
-		private void put(File file) {
-			int curCacheCount = cacheCount.get();
-			while (curCacheCount + 1 > countLimit) {
-				long freedSize = removeNext();
-				cacheSize.addAndGet(-freedSize);
-
-				curCacheCount = cacheCount.addAndGet(-1);
-			}
-			cacheCount.addAndGet(1);
-
-			long valueSize = calculateSize(file);
-			long curCacheSize = cacheSize.get();
-			while (curCacheSize + valueSize > sizeLimit) {
-				long freedSize = removeNext();
-				curCacheSize = cacheSize.addAndGet(-freedSize);
-			}
-			cacheSize.addAndGet(valueSize);
-
-			Long currentTime = System.currentTimeMillis();
-			file.setLastModified(currentTime);
-			lastUsageDates.put(file, currentTime);
-		}
-
-		private File get(String key) {
-			File file = newFile(key);
-			Long currentTime = System.currentTimeMillis();
-			file.setLastModified(currentTime);
-			lastUsageDates.put(file, currentTime);
-
-			return file;
-		}
-
-		private File newFile(String key) {
-			return new File(cacheDir, key.hashCode() + "");
-		}
-
-		private boolean remove(String key) {
-			File image = get(key);
-			return image.delete();
-		}
-
-		private void clear() {
-			lastUsageDates.clear();
-			cacheSize.set(0);
-			File[] files = cacheDir.listFiles();
-			if (files != null) {
-				for (File f : files) {
-					f.delete();
-				}
-			}
-		}
-
-		/**
-		 * 移除旧的文件
-		 * 
-		 * @return
-		 */
-		private long removeNext() {
-			if (lastUsageDates.isEmpty()) {
-				return 0;
-			}
-
-			Long oldestUsage = null;
-			File mostLongUsedFile = null;
-			Set<Entry<File, Long>> entries = lastUsageDates.entrySet();
-			synchronized (lastUsageDates) {
-				for (Entry<File, Long> entry : entries) {
-					if (mostLongUsedFile == null) {
-						mostLongUsedFile = entry.getKey();
-						oldestUsage = entry.getValue();
-					} else {
-						Long lastValueUsage = entry.getValue();
-						if (lastValueUsage < oldestUsage) {
-							oldestUsage = lastValueUsage;
-							mostLongUsedFile = entry.getKey();
-						}
-					}
-				}
-			}
-
-			long fileSize = calculateSize(mostLongUsedFile);
-			if (mostLongUsedFile.delete()) {
-				lastUsageDates.remove(mostLongUsedFile);
-			}
-			return fileSize;
-		}
-
-		private long calculateSize(File file) {
-			return file.length();
+		try {
+			mCache.clear();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * @title 时间计算工具类
+	 * @title Bitmap 转换工具类
 	 * @author 杨福海（michael） www.yangfuhai.com
 	 * @version 1.0
 	 */
 	private static class Utils {
 
-		/**
-		 * 判断缓存的String数据是否到期
-		 * 
-		 * @param str
-		 * @return true：到期了 false：还没有到期
-		 */
-		private static boolean isDue(String str) {
-			return isDue(str.getBytes());
-		}
-
-		/**
-		 * 判断缓存的byte数据是否到期
-		 * 
-		 * @param data
-		 * @return true：到期了 false：还没有到期
-		 */
-		private static boolean isDue(byte[] data) {
-			String[] strs = getDateInfoFromDate(data);
-			if (strs != null && strs.length == 2) {
-				String saveTimeStr = strs[0];
-				while (saveTimeStr.startsWith("0")) {
-					saveTimeStr = saveTimeStr
-							.substring(1, saveTimeStr.length());
-				}
-				long saveTime = Long.valueOf(saveTimeStr);
-				long deleteAfter = Long.valueOf(strs[1]);
-				if (System.currentTimeMillis() > saveTime + deleteAfter * 1000) {
-					return true;
-				}
-			}
-			return false;
-		}
-
-		private static String newStringWithDateInfo(int second, String strInfo) {
-			return createDateInfo(second) + strInfo;
-		}
-
-		private static byte[] newByteArrayWithDateInfo(int second, byte[] data2) {
-			byte[] data1 = createDateInfo(second).getBytes();
-			byte[] retdata = new byte[data1.length + data2.length];
-			System.arraycopy(data1, 0, retdata, 0, data1.length);
-			System.arraycopy(data2, 0, retdata, data1.length, data2.length);
-			return retdata;
-		}
-
-		private static String clearDateInfo(String strInfo) {
-			if (strInfo != null && hasDateInfo(strInfo.getBytes())) {
-				strInfo = strInfo.substring(strInfo.indexOf(mSeparator) + 1,
-						strInfo.length());
-			}
-			return strInfo;
-		}
-
-		private static byte[] clearDateInfo(byte[] data) {
-			if (hasDateInfo(data)) {
-				return copyOfRange(data, indexOf(data, mSeparator) + 1,
-						data.length);
-			}
-			return data;
-		}
-
-		private static boolean hasDateInfo(byte[] data) {
-			return data != null && data.length > 15 && data[13] == '-'
-					&& indexOf(data, mSeparator) > 14;
-		}
-
-		private static String[] getDateInfoFromDate(byte[] data) {
-			if (hasDateInfo(data)) {
-				String saveDate = new String(copyOfRange(data, 0, 13));
-				String deleteAfter = new String(copyOfRange(data, 14,
-						indexOf(data, mSeparator)));
-				return new String[] { saveDate, deleteAfter };
-			}
-			return null;
-		}
-
-		private static int indexOf(byte[] data, char c) {
-			for (int i = 0; i < data.length; i++) {
-				if (data[i] == c) {
-					return i;
-				}
-			}
-			return -1;
-		}
-
-		private static byte[] copyOfRange(byte[] original, int from, int to) {
-			int newLength = to - from;
-			if (newLength < 0)
-				throw new IllegalArgumentException(from + " > " + to);
-			byte[] copy = new byte[newLength];
-			System.arraycopy(original, from, copy, 0,
-					Math.min(original.length - from, newLength));
-			return copy;
-		}
-
-		private static final char mSeparator = ' ';
-
-		private static String createDateInfo(int second) {
-			String currentTime = System.currentTimeMillis() + "";
-			while (currentTime.length() < 13) {
-				currentTime = "0" + currentTime;
-			}
-			return currentTime + "-" + second + mSeparator;
-		}
-
 		/*
 		 * Bitmap → byte[]
 		 */
@@ -814,13 +537,22 @@ public class ACache {
 		}
 
 		/*
-		 * byte[] → Bitmap
+		 * ByteBuffer → Bitmap，直接从映射的数据解码
 		 */
-		private static Bitmap Bytes2Bimap(byte[] b) {
-			if (b.length == 0) {
+		private static Bitmap decodeBitmap(ByteBuffer buffer) {
+			if (!buffer.hasRemaining()) {
 				return null;
 			}
-			return BitmapFactory.decodeByteArray(b, 0, b.length);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+				try {
+					// 软件分配，和 BitmapFactory 的结果一样可以在 Canvas 上绘制
+					return ImageDecoder.decodeBitmap(ImageDecoder.createSource(buffer),
+							(decoder, info, source) -> decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE));
+				} catch (IOException e) {
+					return null;
+				}
+			}
+			return BitmapFactory.decodeStream(new ByteBufferInputStream(buffer));
 		}
 
 		/*
@@ -858,4 +590,46 @@ public class ACache {
 		}
 	}
 
+
+	/**
+	 * 从 ByteBuffer 读取的 InputStream，不复制数据
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, mBuffer.remaining());
+			mBuffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+			mBuffer.position(mBuffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+	}
+
 }
\ No newline at end of file
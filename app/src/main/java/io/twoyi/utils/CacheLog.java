@@ -0,0 +1,597 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * The storage engine of {@link ACache}: one append-only log per cache
+ * directory and an in-memory index of it.
+ *
+ * <pre>
+ * record   magic (u32), type (u8), key length, value length (u32), expiry (u64),
+ *          crc32 of the header fields, the key and the value (u32), key, value
+ * </pre>
+ * A put appends a record, a remove or an eviction appends a tombstone. The
+ * index is an open addressing table from the key to the offset of its live
+ * record, keys are compared for real so different keys never share an entry.
+ * The entries also form a doubly linked list in access order, which makes the
+ * least recently used entry the head and eviction O(1). Expiry is part of the
+ * record header and of the index, expired entries are dropped when they are
+ * read and by compaction.
+ *
+ * The log is read once, on first use, stopping at the first torn or corrupt
+ * record. Once the dead records outweigh the live ones it is compacted: the
+ * live records are copied in access order into a new log which replaces it.
+ *
+ * Values are read through a read only mapping of the log, {@link #getBuffer}
+ * hands out a view of it without copying the value. Whether an entry expired
+ * is known from the index, the value is not touched for it. Records are never
+ * written in place and the log is only truncated before it is mapped, so a
+ * view stays valid and unchanged after its entry is replaced or removed and
+ * after a compaction or clear, which only unlink the old log.
+ *
+ * All methods are synchronized; a cache directory must only be used by one
+ * process.
+ */
+final class CacheLog {
+
+    private static final String TAG = "CacheLog";
+
+    static final String LOG_NAME = "cache.log";
+    private static final String COMPACT_NAME = "cache.log.compact";
+
+    private static final int MAGIC = 0x41434c31; // "ACL1"
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    static final int HEADER_SIZE = 25;
+
+    /** Dead bytes the log must have before it is worth compacting */
+    private static final long COMPACT_MIN_DEAD = 256 * 1024;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * An indexed record, also a node of the access order list
+     */
+    static final class Entry {
+        final String key;
+        final int hash;
+        long offset;
+        int keyLength;
+        int valueLength;
+        /** Wall clock millis after which the entry is gone, 0 for never */
+        long expiresAt;
+
+        Entry prev;
+        Entry next;
+
+        Entry(String key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        long valueOffset() {
+            return offset + HEADER_SIZE + keyLength;
+        }
+
+        long recordLength() {
+            return HEADER_SIZE + keyLength + (long) valueLength;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now > expiresAt;
+        }
+    }
+
+    // marks a slot whose entry was removed, probing continues past it
+    private static final Entry DELETED = new Entry("", 0);
+
+    private final File mDir;
+    private final File mLogFile;
+    private final long mSizeLimit;
+    private final int mCountLimit;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    // maps the log up to where it ended when it was mapped, null until a read needs it
+    private MappedByteBuffer mMap;
+    private long mEnd;
+    private long mLiveBytes;
+
+    private Entry[] mTable = new Entry[MIN_CAPACITY];
+    private int mCount;
+    private int mDeleted;
+
+    // least recently used first
+    private Entry mHead;
+    private Entry mTail;
+
+    CacheLog(File dir, long sizeLimit, int countLimit) {
+        mDir = dir;
+        mLogFile = new File(dir, LOG_NAME);
+        mSizeLimit = sizeLimit;
+        mCountLimit = countLimit;
+    }
+
+    // ---- operations
+
+    synchronized void put(String key, byte[] value, long expiresAt) throws IOException {
+        open();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long offset = append(TYPE_PUT, keyBytes, value, expiresAt);
+
+        Entry entry = find(key);
+        if (entry != null) {
+            unlink(entry);
+            mLiveBytes -= entry.recordLength();
+        } else {
+            entry = new Entry(key, key.hashCode());
+            insert(entry);
+        }
+        entry.offset = offset;
+        entry.keyLength = keyBytes.length;
+        entry.valueLength = value.length;
+        entry.expiresAt = expiresAt;
+        linkLast(entry);
+        mLiveBytes += entry.recordLength();
+
+        evict();
+        maybeCompact();
+    }
+
+    /**
+     * The value of a key, null if there is none or it expired
+     */
+    synchronized byte[] get(String key) throws IOException {
+        ByteBuffer view = getBuffer(key);
+        if (view == null) {
+            return null;
+        }
+        byte[] value = new byte[view.remaining()];
+        view.get(value);
+        return value;
+    }
+
+    /**
+     * A read only view of the value of a key, null if there is none or it expired
+     */
+    synchronized ByteBuffer getBuffer(String key) throws IOException {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        long start = entry.valueOffset();
+        long end = start + entry.valueLength;
+        if (mMap == null || mMap.capacity() < end) {
+            map();
+        }
+        if (mMap == null) {
+            // could not be mapped, read it into the heap
+            ByteBuffer value = ByteBuffer.allocate(entry.valueLength);
+            readFully(value, start);
+            value.flip();
+            return value.asReadOnlyBuffer();
+        }
+        ByteBuffer view = mMap.duplicate();
+        view.limit((int) end).position((int) start);
+        return view.slice();
+    }
+
+    private void map() {
+        mMap = null;
+        if (mEnd > Integer.MAX_VALUE) {
+            return;
+        }
+        try {
+            mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mEnd);
+        } catch (IOException e) {
+            Log.w(TAG, "can not map " + mLogFile + ", reading into the heap", e);
+        }
+    }
+
+    /**
+     * The live entry of a key, touched as the most recently used one; an
+     * expired entry is removed
+     */
+    synchronized Entry lookup(String key) throws IOException {
+        open();
+        Entry entry = find(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            delete(entry);
+            return null;
+        }
+        unlink(entry);
+        linkLast(entry);
+        return entry;
+    }
+
+    synchronized boolean remove(String key) throws IOException {
+        open();
+        Entry entry = find(key);
+        if (entry == null) {
+            return false;
+        }
+        delete(entry);
+        maybeCompact();
+        return true;
+    }
+
+    synchronized void clear() throws IOException {
+        closeFile();
+        resetIndex();
+        //noinspection ResultOfMethodCallIgnored
+        mLogFile.delete();
+        open();
+    }
+
+    synchronized int count() throws IOException {
+        open();
+        return mCount;
+    }
+
+    /**
+     * Bytes of the live records, what the size limit applies to
+     */
+    synchronized long size() throws IOException {
+        open();
+        return mLiveBytes;
+    }
+
+    // ---- log
+
+    private void open() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("can't make dirs in " + mDir);
+        }
+        // the files of the file-per-key store this replaced, and an interrupted compaction
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.equals(LOG_NAME)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(mDir, name).delete();
+                }
+            }
+        }
+
+        resetIndex();
+        long valid = replay();
+        mFile = new RandomAccessFile(mLogFile, "rw");
+        mChannel = mFile.getChannel();
+        if (mChannel.size() > valid) {
+            Log.w(TAG, "dropping " + (mChannel.size() - valid) + " bytes of torn records in " + mLogFile);
+            mChannel.truncate(valid);
+        }
+        mEnd = valid;
+        evict();
+        maybeCompact();
+    }
+
+    /**
+     * Rebuild the index from the log
+     * @return the length of the valid prefix of the log
+     */
+    private long replay() throws IOException {
+        if (!mLogFile.exists()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long length = mLogFile.length();
+        long offset = 0;
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[HEADER_SIZE];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile), 64 * 1024))) {
+            while (true) {
+                try {
+                    in.readFully(header);
+                } catch (EOFException e) {
+                    break;
+                }
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                int magic = fields.getInt();
+                byte type = fields.get();
+                int keyLength = fields.getInt();
+                int valueLength = fields.getInt();
+                long expiresAt = fields.getLong();
+                int checksum = fields.getInt();
+                if (magic != MAGIC || (type != TYPE_PUT && type != TYPE_REMOVE) || keyLength < 0 || valueLength < 0) {
+                    break;
+                }
+                // the lengths are not covered by a checked crc yet, a corrupted one
+                // must not allocate more than the log holds
+                if ((long) keyLength + valueLength > length - offset - HEADER_SIZE) {
+                    break;
+                }
+
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                try {
+                    in.readFully(key);
+                    in.readFully(value);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(header, 4, HEADER_SIZE - 8);
+                crc.update(key);
+                crc.update(value);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                String keyString = new String(key, StandardCharsets.UTF_8);
+                Entry entry = find(keyString);
+                if (entry != null) {
+                    removeFromIndex(entry);
+                }
+                if (type == TYPE_PUT && (expiresAt == 0 || expiresAt >= now)) {
+                    entry = new Entry(keyString, keyString.hashCode());
+                    entry.offset = offset;
+                    entry.keyLength = keyLength;
+                    entry.valueLength = valueLength;
+                    entry.expiresAt = expiresAt;
+                    insert(entry);
+                    linkLast(entry);
+                    mLiveBytes += entry.recordLength();
+                }
+                offset += HEADER_SIZE + keyLength + (long) valueLength;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * @return the offset of the record
+     */
+    private long append(byte type, byte[] key, byte[] value, long expiresAt) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+        record.putInt(MAGIC).put(type).putInt(key.length).putInt(value.length).putLong(expiresAt);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, HEADER_SIZE - 8);
+        crc.update(key);
+        crc.update(value);
+        record.putInt((int) crc.getValue()).put(key).put(value);
+        record.flip();
+
+        long offset = mEnd;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += mChannel.write(record, position);
+        }
+        mEnd = position;
+        return offset;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = mChannel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("cache record beyond the end of " + mLogFile);
+            }
+        }
+    }
+
+    private void delete(Entry entry) throws IOException {
+        append(TYPE_REMOVE, entry.key.getBytes(StandardCharsets.UTF_8), new byte[0], 0);
+        removeFromIndex(entry);
+    }
+
+    private void removeFromIndex(Entry entry) {
+        unlink(entry);
+        mLiveBytes -= entry.recordLength();
+        int slot = slotOf(entry.key, entry.hash);
+        mTable[slot] = DELETED;
+        mCount--;
+        mDeleted++;
+    }
+
+    /**
+     * Drop the least recently used entries until the limits hold
+     */
+    private void evict() throws IOException {
+        while (mHead != null && (mCount > mCountLimit || mLiveBytes > mSizeLimit)) {
+            delete(mHead);
+        }
+    }
+
+    private void maybeCompact() throws IOException {
+        long dead = mEnd - mLiveBytes;
+        if (dead >= COMPACT_MIN_DEAD && dead > mLiveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Copy the live records in access order into a new log that replaces this one
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        long before = mEnd;
+        File compactFile = new File(mDir, COMPACT_NAME);
+        long end = 0;
+        try (RandomAccessFile out = new RandomAccessFile(compactFile, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            Entry entry = mHead;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.isExpired(now)) {
+                    // not copied, and gone from the index once the new log is in place
+                    removeFromIndex(entry);
+                } else {
+                    long length = entry.recordLength();
+                    long copied = 0;
+                    while (copied < length) {
+                        long n = mChannel.transferTo(entry.offset + copied, length - copied, channel);
+                        if (n <= 0) {
+                            throw new EOFException("cache record beyond the end of " + mLogFile);
+                        }
+                        copied += n;
+                    }
+                    entry.offset = end;
+                    end += length;
+                }
+                entry = next;
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            compactFile.delete();
+            // the offsets may be half updated, start over from the log
+            closeFile();
+            throw e;
+        }
+
+        closeFile();
+        if (!compactFile.renameTo(mLogFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            compactFile.delete();
+            throw new IOException("can not replace " + mLogFile);
+        }
+        mFile = new RandomAccessFile(mLogFile, "rw");
+        mChannel = mFile.getChannel();
+        mEnd = end;
+        rehash(mCount);
+        Log.d(TAG, "compacted " + mLogFile + " from " + before + " to " + end + " bytes, " + mCount + " entries");
+    }
+
+    private void closeFile() {
+        IOUtils.closeSilently(mFile);
+        mFile = null;
+        mChannel = null;
+        // views handed out keep the mapping alive
+        mMap = null;
+    }
+
+    // ---- index
+
+    private void resetIndex() {
+        mTable = new Entry[MIN_CAPACITY];
+        mCount = 0;
+        mDeleted = 0;
+        mHead = null;
+        mTail = null;
+        mLiveBytes = 0;
+    }
+
+    private static int spread(int hash) {
+        // String hashes of similar keys differ in a few bits only
+        int h = (hash ^ (hash >>> 16)) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slotOf(String key, int hash) {
+        int mask = mTable.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            Entry entry = mTable[i];
+            if (entry == null) {
+                return -1;
+            }
+            if (entry != DELETED && entry.hash == hash && entry.key.equals(key)) {
+                return i;
+            }
+        }
+    }
+
+    private Entry find(String key) {
+        int slot = slotOf(key, key.hashCode());
+        return slot < 0 ? null : mTable[slot];
+    }
+
+    /**
+     * Add an entry whose key is not in the index
+     */
+    private void insert(Entry entry) {
+        // at most 3/4 of the slots in use, removed ones included, so probing ends
+        if ((mCount + mDeleted + 1) * 4 > mTable.length * 3) {
+            rehash(mCount + 1);
+        }
+        int mask = mTable.length - 1;
+        int i = spread(entry.hash) & mask;
+        while (mTable[i] != null && mTable[i] != DELETED) {
+            i = (i + 1) & mask;
+        }
+        if (mTable[i] == DELETED) {
+            mDeleted--;
+        }
+        mTable[i] = entry;
+        mCount++;
+    }
+
+    private void rehash(int count) {
+        // at most 3/8 full after the rehash
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < count * 8) {
+            capacity <<= 1;
+        }
+        Entry[] old = mTable;
+        mTable = new Entry[capacity];
+        mDeleted = 0;
+        int mask = capacity - 1;
+        for (Entry entry : old) {
+            if (entry == null || entry == DELETED) {
+                continue;
+            }
+            int i = spread(entry.hash) & mask;
+            while (mTable[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mTable[i] = entry;
+        }
+    }
+
+    private void linkLast(Entry entry) {
+        entry.prev = mTail;
+        entry.next = null;
+        if (mTail != null) {
+            mTail.next = entry;
+        } else {
+            mHead = entry;
+        }
+        mTail = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            mHead = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        } else {
+            mTail = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+}
@@ -0,0 +1,292 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Keeps the guest's {@code data/dalvik-cache} across launches and only drops
+ * the OAT entries whose sources changed.
+ *
+ * After every validation the fingerprints of the ROM (md5 of rom.ini), of
+ * the boot classpath and of the source of every cache entry (mtime and size)
+ * are written next to the rootfs. On the next launch:
+ * <ul>
+ *     <li>a different ROM or boot classpath invalidates everything, the boot
+ *     image and every compiled app depend on it</li>
+ *     <li>an entry whose source is gone or has another fingerprint is removed
+ *     with its vdex/art siblings</li>
+ *     <li>an entry whose source was not recorded yet is kept if it is newer
+ *     than its source</li>
+ * </ul>
+ *
+ * A full wipe still happens when it is forced in the settings, or when the
+ * previous boot hit the stale OAT crash ({@link #onLogLine}) or stalled
+ * after zygote.
+ */
+public final class DalvikCacheValidator {
+
+    private static final String TAG = "DalvikCacheValidator";
+
+    private static final String FINGERPRINT_FILE = ".dalvik-cache.fp";
+    private static final String KEY_ROM = "rom";
+    private static final String KEY_BOOT_CLASSPATH = "bootclasspath";
+    private static final String SOURCE_PREFIX = "src:";
+
+    private static final String[] ENTRY_SUFFIXES = {"@classes.dex", "@classes.vdex", "@classes.art"};
+
+    /** Log message of ART when an OAT file outlived its dex source */
+    private static final String STALE_OAT_MARKER = "No original dex files found";
+
+    private DalvikCacheValidator() {
+    }
+
+    public static File getCacheDir(Context context) {
+        return new File(RomManager.getRootfsDir(context), "data/dalvik-cache");
+    }
+
+    private static File getFingerprintFile(Context context) {
+        return new File(RomManager.getRootfsDir(context), FINGERPRINT_FILE);
+    }
+
+    /**
+     * Bring the dalvik-cache in line with the current rootfs, called before every boot
+     */
+    public static void validate(Context context) {
+        File cacheDir = getCacheDir(context);
+        Properties previous = loadFingerprints(context);
+
+        String romFingerprint = RomManager.getCurrentRomInfo(context).md5;
+        String bootFingerprint = bootClasspathFingerprint(context);
+
+        String reason = null;
+        if (ProfileSettings.isClearDalvikCacheEnabled(context)) {
+            reason = "forced in settings";
+        } else if (ProfileSettings.isDalvikCacheWipePending(context)) {
+            reason = "stale oat detected in the previous boot";
+        } else if (previous == null) {
+            reason = "no fingerprints";
+        } else if (!TextUtils.equals(romFingerprint, previous.getProperty(KEY_ROM))) {
+            reason = "rom changed";
+        } else if (!TextUtils.equals(bootFingerprint, previous.getProperty(KEY_BOOT_CLASSPATH))) {
+            reason = "boot classpath changed";
+        }
+
+        Map<String, String> sources = new TreeMap<>();
+        if (reason != null) {
+            Log.i(TAG, "full wipe: " + reason);
+            RomManager.clearDalvikCache(context);
+            ProfileSettings.setDalvikCacheWipePending(context, false);
+        } else {
+            invalidate(context, cacheDir, previous, sources);
+        }
+
+        saveFingerprints(context, romFingerprint, bootFingerprint, sources);
+    }
+
+    /**
+     * Remove the entries with changed sources and collect the fingerprints of the kept ones
+     */
+    private static void invalidate(Context context, File cacheDir, Properties previous, Map<String, String> sources) {
+        File rootfs = RomManager.getRootfsDir(context);
+        File[] isaDirs = cacheDir.listFiles(File::isDirectory);
+        if (isaDirs == null) {
+            return;
+        }
+
+        int kept = 0;
+        List<File> stale = new ArrayList<>();
+        for (File isaDir : isaDirs) {
+            String[] names = isaDir.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                String source = sourceOf(name);
+                if (source == null) {
+                    // boot image and anything we cannot map, covered by the boot classpath fingerprint
+                    continue;
+                }
+
+                File sourceFile = new File(rootfs, source);
+                File entry = new File(isaDir, name);
+                String current = fingerprint(sourceFile);
+                String recorded = previous.getProperty(SOURCE_PREFIX + source);
+
+                boolean valid;
+                if (current == null) {
+                    valid = false;
+                } else if (recorded != null) {
+                    valid = recorded.equals(current);
+                } else {
+                    valid = entry.lastModified() >= sourceFile.lastModified();
+                }
+
+                if (valid) {
+                    sources.put(source, current);
+                    kept++;
+                } else {
+                    stale.add(entry);
+                }
+            }
+        }
+
+        for (File entry : stale) {
+            if (!IOUtils.forceDelete(entry)) {
+                Log.w(TAG, "can not remove stale entry " + entry + ", wiping the cache");
+                RomManager.clearDalvikCache(context);
+                sources.clear();
+                return;
+            }
+        }
+        Log.i(TAG, "dalvik-cache validated, kept " + kept + " entries, removed " + stale.size());
+    }
+
+    /**
+     * Source path inside the rootfs of a cache entry, e.g. {@code system@app@Foo@Foo.apk@classes.dex}
+     * is compiled from {@code system/app/Foo/Foo.apk}
+     *
+     * @return null for entries without a single source such as the boot image
+     */
+    static String sourceOf(String entryName) {
+        for (String suffix : ENTRY_SUFFIXES) {
+            if (entryName.endsWith(suffix)) {
+                return entryName.substring(0, entryName.length() - suffix.length())
+                        .replace('@', '/');
+            }
+        }
+        return null;
+    }
+
+    private static String fingerprint(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * Fingerprint of every jar of the boot classpath, read from init.environ.rc,
+     * or of the whole system/framework directory when it is not found
+     */
+    private static String bootClasspathFingerprint(Context context) {
+        File rootfs = RomManager.getRootfsDir(context);
+        List<String> jars = readBootClasspath(new File(rootfs, "init.environ.rc"));
+        if (jars.isEmpty()) {
+            String[] names = new File(rootfs, "system/framework").list();
+            if (names != null) {
+                Arrays.sort(names);
+                for (String name : names) {
+                    if (name.endsWith(".jar")) {
+                        jars.add("/system/framework/" + name);
+                    }
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String jar : jars) {
+            sb.append(jar).append('=').append(fingerprint(new File(rootfs, jar))).append(';');
+        }
+        // stored as a digest, the classpath has dozens of jars
+        return IOUtils.md5(sb.toString());
+    }
+
+    private static List<String> readBootClasspath(File environRc) {
+        List<String> jars = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(environRc))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("export BOOTCLASSPATH ")) {
+                    jars.addAll(Arrays.asList(line.substring("export BOOTCLASSPATH ".length()).trim().split(":")));
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return jars;
+    }
+
+    private static Properties loadFingerprints(Context context) {
+        File file = getFingerprintFile(context);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            return properties;
+        } catch (IOException e) {
+            Log.w(TAG, "read fingerprints failed", e);
+            return null;
+        }
+    }
+
+    private static void saveFingerprints(Context context, String rom, String bootClasspath, Map<String, String> sources) {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_ROM, rom == null ? "" : rom);
+        properties.setProperty(KEY_BOOT_CLASSPATH, bootClasspath);
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            properties.setProperty(SOURCE_PREFIX + source.getKey(), source.getValue());
+        }
+
+        File file = getFingerprintFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(tmp)) {
+            properties.store(writer, null);
+        } catch (IOException e) {
+            Log.w(TAG, "write fingerprints failed", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "replace fingerprints failed");
+        }
+    }
+
+    /**
+     * Look for the stale OAT crash in a line of the boot log; the cache is
+     * wiped on the next launch when it is found
+     */
+    public static void onLogLine(Context context, String line) {
+        if (line.contains(STALE_OAT_MARKER) && !ProfileSettings.isDalvikCacheWipePending(context)) {
+            Log.w(TAG, "stale oat detected: " + line);
+            ProfileSettings.setDalvikCacheWipePending(context, true);
+        }
+    }
+
+    /**
+     * Wipe the cache on the next launch, e.g. after a boot stalled in zygote
+     */
+    public static void requestWipe(Context context) {
+        ProfileSettings.setDalvikCacheWipePending(context, true);
+    }
+}
@@ -6,6 +6,11 @@
 
 package io.twoyi.utils;
 
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.text.TextUtils;
 
 import androidx.annotation.Keep;
@@ -21,8 +26,12 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Comparator;
 import java.util.List;
 
@@ -157,6 +166,61 @@ public class IOUtils {
         }
     }
 
+    /**
+     * Delete a file or a directory tree in process, adding the owner
+     * permissions a directory needs to be emptied when they are missing.
+     * Symlinks are removed, never followed.
+     *
+     * @return true if nothing is left
+     */
+    public static boolean forceDelete(File file) {
+        Path path = file.toPath();
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Os.chmod(file.getAbsolutePath(), 0700);
+            } catch (ErrnoException ignored) {
+            }
+            String[] children = file.list();
+            if (children != null) {
+                for (String child : children) {
+                    forceDelete(new File(file, child));
+                }
+            }
+        }
+        return file.delete() || !Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Size of the content behind a uri, -1 if the provider does not know it
+     */
+    public static long getContentLength(Context context, Uri uri) {
+        try (AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r")) {
+            return afd == null ? -1 : afd.getLength();
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Hex md5 of the UTF-8 bytes of a string
+     */
+    public static String md5(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return toHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
     public static boolean deleteDirectory(File directory) {
         try {
             Files.walk(directory.toPath())
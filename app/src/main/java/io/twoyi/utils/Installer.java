@@ -42,7 +42,7 @@ public class Installer {
     }
 
     public static void installAsync(Context context, List<File> files, InstallResult callback) {
-        new Thread(() -> install(context, files, callback)).start();
+        TwoyiExecutors.io().execute(() -> install(context, files, callback));
     }
 
     public static void install(Context context, List<File> files, InstallResult callback) {
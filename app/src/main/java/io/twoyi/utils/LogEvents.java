@@ -26,6 +26,9 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import io.twoyi.BootTracker;
+import io.twoyi.StartupPipeline;
+
 /**
  * @author weishu
  * @date 2022/2/16.
@@ -34,6 +37,7 @@ import java.util.zip.ZipOutputStream;
 public class LogEvents {
 
     private static final RuntimeException BOOT_FAILURE = new RuntimeException("BootFailureException");
+    private static final int MAX_TRACE_RECORDS = 200_000;
 
     public static void trackError(Throwable e) {
         Crashes.trackError(e);
@@ -50,6 +54,8 @@ public class LogEvents {
         properties.put("rom_ver", String.valueOf(info.code));
         properties.put("rom_author", info.author);
         properties.put("rom_md5", info.md5);
+        properties.put("boot_stage", BootTracker.stageName(BootTracker.getInstance().getStage()));
+        properties.put("boot_timings", BootTracker.getInstance().describe());
 
         List<ErrorAttachmentLog> errors = new ArrayList<>();
 
@@ -194,22 +200,36 @@ public class LogEvents {
             pw.println("ACTIVE_PROFILE: " + activeProfile);
             pw.println("VERBOSE_LOGGING: " + ProfileSettings.isVerboseLoggingEnabled(context));
             pw.println("DEBUG_RENDERER: " + ProfileSettings.isDebugRendererEnabled(context));
+            pw.println("BOOT: " + BootTracker.getInstance().describe());
+            pw.println("BOOT_HISTORY: " + ProfileSettings.getBootTimings(context));
+            pw.println("STARTUP:");
+            pw.println(StartupPipeline.dump());
+            pw.println("THREAD_POOLS:");
+            pw.println(TwoyiExecutors.dump());
         } catch (Throwable ignored) {}
 
         reportItems.add(ReportItem.create(buildInfo));
 
         // Debug renderer logs (if enabled)
         if (ProfileSettings.isDebugRendererEnabled(context)) {
-            File debugLogsDir = new File(context.getFilesDir(), "twoyi_renderer_debug");
+            File debugLogsDir = RendererTrace.getTraceDir(context);
             if (debugLogsDir.exists() && debugLogsDir.isDirectory()) {
                 File[] debugLogs = debugLogsDir.listFiles();
                 if (debugLogs != null) {
                     for (File debugLog : debugLogs) {
-                        if (debugLog.isFile()) {
+                        // binary traces are mostly preallocated space, ship them decoded instead
+                        if (debugLog.isFile() && !RendererTrace.isTraceFile(debugLog)) {
                             reportItems.add(ReportItem.create(debugLog, "renderer_debug/" + debugLog.getName()));
                         }
                     }
                 }
+
+                File traceText = new File(context.getCacheDir(), "renderer_trace.txt");
+                try {
+                    RendererTrace.decode(debugLogsDir, traceText, MAX_TRACE_RECORDS);
+                    reportItems.add(ReportItem.create(traceText, "renderer_debug/renderer_trace.txt"));
+                } catch (Throwable ignored) {
+                }
             }
         }
 
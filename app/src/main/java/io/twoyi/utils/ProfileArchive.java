@@ -0,0 +1,677 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The native profile archive: a tar stream cut into independently deflated
+ * chunks, so both sides use every core.
+ *
+ * <pre>
+ * "TWOYIPA1"
+ * chunk*       raw length, compressed length, crc32 of the raw data (u32 each), data
+ * end marker   a chunk header of zeros
+ * index        chunk count, then per chunk its offset, compressed length, raw length and crc32
+ * manifest     UTF-8 JSON: format version, profile, ROM and the profile's settings
+ * footer       index offset (u64), index length, manifest length (u32), "TWOYIEND"
+ * </pre>
+ * All numbers are big endian. A chunk whose compressed length equals its raw
+ * length is stored as is, deflate did not make it smaller.
+ *
+ * The {@link Writer} compresses chunks on the cpu pool and writes them in
+ * order. The {@link Reader} only needs a stream: the chunk headers let it
+ * inflate ahead in parallel and every chunk is checked against its crc while
+ * it is inflated. The trailing index and manifest are cross-checked at the end
+ * of the stream, and {@link #readTrailer} reads them up front where the source
+ * can seek, so a truncated archive is rejected before anything is extracted.
+ */
+public final class ProfileArchive {
+
+    private static final String TAG = "ProfileArchive";
+
+    public static final String EXTENSION = ".twoyi";
+    public static final String MIME_TYPE = "application/octet-stream";
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = "TWOYIPA1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRAILER_MAGIC = "TWOYIEND".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    /** Largest chunk a reader accepts, bounds the memory an archive can ask for */
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+    // chunks being compressed or inflated at once, at most 2 * cores * 2MB of memory
+    private static final int IN_FLIGHT = 2 * Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final int CHUNK_HEADER = 12;
+    private static final int INDEX_ENTRY = 20;
+    private static final int FOOTER = 24;
+
+    private ProfileArchive() {
+    }
+
+    /**
+     * An entry of the index
+     */
+    public static final class Chunk {
+        /** Offset of the chunk header in the archive */
+        public final long offset;
+        public final int compressedLength;
+        public final int rawLength;
+        public final int crc;
+
+        Chunk(long offset, int compressedLength, int rawLength, int crc) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.rawLength = rawLength;
+            this.crc = crc;
+        }
+
+        boolean sameAs(Chunk other) {
+            return compressedLength == other.compressedLength && rawLength == other.rawLength && crc == other.crc;
+        }
+    }
+
+    /**
+     * The index and manifest at the end of an archive
+     */
+    public static final class Trailer {
+        public final List<Chunk> chunks;
+        public final JSONObject manifest;
+
+        Trailer(List<Chunk> chunks, JSONObject manifest) {
+            this.chunks = chunks;
+            this.manifest = manifest;
+        }
+    }
+
+    /**
+     * Check the magic at the start of a stream that supports mark/reset, which is left unread
+     */
+    public static boolean isArchive(InputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.mark(magic.length);
+        int n = 0;
+        try {
+            while (n < magic.length) {
+                int read = in.read(magic, n, magic.length - n);
+                if (read < 0) {
+                    return false;
+                }
+                n += read;
+            }
+        } finally {
+            in.reset();
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    // ---- manifest
+
+    /**
+     * Manifest of a profile: the format, the profile name, its ROM and all its settings
+     */
+    public static JSONObject createManifest(Context context, String profileName) throws IOException {
+        try {
+            JSONObject manifest = new JSONObject();
+            manifest.put("version", VERSION);
+            manifest.put("profile", profileName);
+            manifest.put("created", System.currentTimeMillis());
+            manifest.put("chunkSize", CHUNK_SIZE);
+
+            RomManager.RomInfo rom = RomManager.getRomInfo(ProfileManager.getProfileRootfsDir(context, profileName));
+            if (rom.isValid()) {
+                JSONObject romJson = new JSONObject();
+                romJson.put("version", rom.version);
+                romJson.put("code", rom.code);
+                romJson.put("md5", rom.md5);
+                manifest.put("rom", romJson);
+            }
+
+            JSONObject settings = new JSONObject();
+            for (Map.Entry<String, ?> entry : ProfileSettings.getAllSettings(context, profileName).entrySet()) {
+                Object value = entry.getValue();
+                String type = typeOf(value);
+                if (type == null) {
+                    continue;
+                }
+                JSONObject setting = new JSONObject();
+                setting.put("type", type);
+                setting.put("value", value);
+                settings.put(entry.getKey(), setting);
+            }
+            manifest.put("settings", settings);
+            return manifest;
+        } catch (JSONException e) {
+            throw new IOException("create manifest failed", e);
+        }
+    }
+
+    private static String typeOf(Object value) {
+        if (value instanceof Boolean) {
+            return "boolean";
+        } else if (value instanceof String) {
+            return "string";
+        } else if (value instanceof Integer) {
+            return "int";
+        } else if (value instanceof Long) {
+            return "long";
+        } else if (value instanceof Float) {
+            return "float";
+        }
+        return null;
+    }
+
+    /**
+     * Replace the settings of {@code profileName} with the ones in the manifest
+     */
+    public static void applySettings(Context context, String profileName, JSONObject manifest) {
+        JSONObject settings = manifest.optJSONObject("settings");
+        if (settings == null) {
+            return;
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        Iterator<String> keys = settings.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            JSONObject setting = settings.optJSONObject(key);
+            if (setting == null) {
+                continue;
+            }
+            try {
+                switch (setting.getString("type")) {
+                    case "boolean":
+                        values.put(key, setting.getBoolean("value"));
+                        break;
+                    case "string":
+                        values.put(key, setting.getString("value"));
+                        break;
+                    case "int":
+                        values.put(key, setting.getInt("value"));
+                        break;
+                    case "long":
+                        values.put(key, setting.getLong("value"));
+                        break;
+                    case "float":
+                        values.put(key, (float) setting.getDouble("value"));
+                        break;
+                    default:
+                        Log.w(TAG, "skip setting " + key + " of unknown type");
+                        break;
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "skip malformed setting " + key, e);
+            }
+        }
+        ProfileSettings.setAllSettings(context, profileName, values);
+    }
+
+    private static JSONObject parseManifest(byte[] data) throws IOException {
+        try {
+            JSONObject manifest = new JSONObject(new String(data, StandardCharsets.UTF_8));
+            if (manifest.optInt("version") > VERSION) {
+                throw new IOException("profile archive version " + manifest.optInt("version") + " is not supported");
+            }
+            return manifest;
+        } catch (JSONException e) {
+            throw new IOException("malformed manifest", e);
+        }
+    }
+
+    // ---- chunks
+
+    private static final class Compressed {
+        final byte[] data;
+        final int length;
+        final int rawLength;
+        final int crc;
+
+        Compressed(byte[] data, int length, int rawLength, int crc) {
+            this.data = data;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.crc = crc;
+        }
+    }
+
+    private static Compressed compress(byte[] raw, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, length);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            // stop as soon as it is not smaller, the chunk is then stored
+            byte[] out = new byte[length];
+            int n = 0;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            if (!deflater.finished() || n >= length) {
+                return new Compressed(raw, length, length, (int) crc.getValue());
+            }
+            return new Compressed(out, n, length, (int) crc.getValue());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param data the compressed bytes followed by one spare byte, raw inflate needs it
+     */
+    private static byte[] decompress(byte[] data, int compressedLength, int rawLength, int crc, int index) {
+        byte[] raw;
+        if (compressedLength == rawLength) {
+            raw = Arrays.copyOf(data, rawLength);
+        } else {
+            raw = new byte[rawLength];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data, 0, compressedLength + 1);
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int read = inflater.inflate(raw, n, rawLength - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != rawLength) {
+                    throw new UncheckedIOException(new IOException("chunk " + index + " is truncated"));
+                }
+            } catch (DataFormatException e) {
+                throw new UncheckedIOException(new IOException("chunk " + index + " is corrupt", e));
+            } finally {
+                inflater.end();
+            }
+        }
+
+        CRC32 actual = new CRC32();
+        actual.update(raw, 0, rawLength);
+        if ((int) actual.getValue() != crc) {
+            throw new UncheckedIOException(new IOException(String.format(Locale.US,
+                    "chunk %d checksum mismatch: expected %08x, got %08x", index, crc, (int) actual.getValue())));
+        }
+        return raw;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // ---- writing
+
+    /**
+     * Writes an archive; everything written to it is the tar stream
+     */
+    public static final class Writer extends OutputStream {
+        private final OutputStream mOut;
+        private final JSONObject mManifest;
+        private final Deque<Future<Compressed>> mPending = new ArrayDeque<>();
+        private final List<Chunk> mChunks = new ArrayList<>();
+
+        private byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mCount;
+        private long mOffset;
+        private long mRawBytes;
+        private boolean mFinished;
+
+        public Writer(OutputStream out, JSONObject manifest) throws IOException {
+            mOut = out;
+            mManifest = manifest;
+            writeRaw(MAGIC, MAGIC.length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                if (mCount == CHUNK_SIZE) {
+                    submit();
+                }
+            }
+        }
+
+        private void submit() throws IOException {
+            byte[] raw = mBuffer;
+            int length = mCount;
+            mBuffer = new byte[CHUNK_SIZE];
+            mCount = 0;
+            mRawBytes += length;
+
+            mPending.add(CompletableFuture.supplyAsync(() -> compress(raw, length), TwoyiExecutors.cpu()));
+            while (mPending.size() >= IN_FLIGHT) {
+                writeNext();
+            }
+        }
+
+        private void writeNext() throws IOException {
+            Compressed chunk = await(mPending.poll());
+            mChunks.add(new Chunk(mOffset, chunk.length, chunk.rawLength, chunk.crc));
+
+            ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER);
+            header.putInt(chunk.rawLength).putInt(chunk.length).putInt(chunk.crc);
+            writeRaw(header.array(), CHUNK_HEADER);
+            writeRaw(chunk.data, chunk.length);
+        }
+
+        private void writeRaw(byte[] data, int length) throws IOException {
+            mOut.write(data, 0, length);
+            mOffset += length;
+        }
+
+        /**
+         * Write the pending chunks, the index, the manifest and the footer; the
+         * underlying stream is left open
+         */
+        public void finish() throws IOException {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            if (mCount > 0) {
+                submit();
+            }
+            while (!mPending.isEmpty()) {
+                writeNext();
+            }
+            writeRaw(new byte[CHUNK_HEADER], CHUNK_HEADER);
+
+            long indexOffset = mOffset;
+            ByteBuffer index = ByteBuffer.allocate(4 + mChunks.size() * INDEX_ENTRY);
+            index.putInt(mChunks.size());
+            for (Chunk chunk : mChunks) {
+                index.putLong(chunk.offset).putInt(chunk.compressedLength).putInt(chunk.rawLength).putInt(chunk.crc);
+            }
+            writeRaw(index.array(), index.capacity());
+
+            byte[] manifest = mManifest.toString().getBytes(StandardCharsets.UTF_8);
+            writeRaw(manifest, manifest.length);
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+            footer.putLong(indexOffset).putInt(index.capacity()).putInt(manifest.length).put(TRAILER_MAGIC);
+            writeRaw(footer.array(), FOOTER);
+            mOut.flush();
+
+            Log.i(TAG, String.format(Locale.US, "archived %d chunks, %d MB into %d MB",
+                    mChunks.size(), mRawBytes >> 20, mOffset >> 20));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // a chunk is only written when it is full
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    // ---- reading
+
+    /**
+     * Reads the tar stream out of an archive, inflating chunks ahead in parallel
+     */
+    public static final class Reader extends InputStream {
+        private final DataInputStream mIn;
+        private final Deque<Future<byte[]>> mPending = new ArrayDeque<>();
+        private final List<Chunk> mChunks = new ArrayList<>();
+
+        private byte[] mCurrent;
+        private int mPosition;
+        private long mOffset;
+        private boolean mEnd;
+        private JSONObject mManifest;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a profile archive");
+            }
+            mOffset = MAGIC.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mCurrent == null || mPosition == mCurrent.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, mCurrent.length - mPosition);
+            System.arraycopy(mCurrent, mPosition, b, off, n);
+            mPosition += n;
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            fill();
+            Future<byte[]> next = mPending.poll();
+            if (next == null) {
+                return false;
+            }
+            mCurrent = await(next);
+            mPosition = 0;
+            return true;
+        }
+
+        private void fill() throws IOException {
+            while (!mEnd && mPending.size() < IN_FLIGHT) {
+                long offset = mOffset;
+                int rawLength = mIn.readInt();
+                int compressedLength = mIn.readInt();
+                int crc = mIn.readInt();
+                mOffset += CHUNK_HEADER;
+                if (rawLength == 0 && compressedLength == 0) {
+                    mEnd = true;
+                    readTrailer();
+                    break;
+                }
+                if (rawLength < 0 || rawLength > MAX_CHUNK_SIZE || compressedLength <= 0 || compressedLength > rawLength) {
+                    throw new IOException("malformed chunk header at " + offset);
+                }
+
+                byte[] data = new byte[compressedLength + 1];
+                mIn.readFully(data, 0, compressedLength);
+                mOffset += compressedLength;
+                int index = mChunks.size();
+                mChunks.add(new Chunk(offset, compressedLength, rawLength, crc));
+                mPending.add(CompletableFuture.supplyAsync(
+                        () -> decompress(data, compressedLength, rawLength, crc, index), TwoyiExecutors.cpu()));
+            }
+        }
+
+        /**
+         * Check the index against the chunks that were read and parse the manifest
+         */
+        private void readTrailer() throws IOException {
+            int count = mIn.readInt();
+            if (count != mChunks.size()) {
+                throw new IOException("index lists " + count + " chunks, the archive has " + mChunks.size());
+            }
+            for (int i = 0; i < count; i++) {
+                Chunk indexed = new Chunk(mIn.readLong(), mIn.readInt(), mIn.readInt(), mIn.readInt());
+                Chunk read = mChunks.get(i);
+                if (indexed.offset != read.offset || !indexed.sameAs(read)) {
+                    throw new IOException("index does not match chunk " + i);
+                }
+            }
+
+            // manifest and footer, the footer tells where the manifest ends
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = mIn.read(buffer)) > 0) {
+                rest.write(buffer, 0, n);
+                if (rest.size() > MAX_MANIFEST_SIZE + FOOTER) {
+                    throw new IOException("manifest too large");
+                }
+            }
+            byte[] tail = rest.toByteArray();
+            if (tail.length < FOOTER) {
+                throw new IOException("profile archive is truncated");
+            }
+            ByteBuffer footer = ByteBuffer.wrap(tail, tail.length - FOOTER, FOOTER);
+            footer.getLong();
+            footer.getInt();
+            int manifestLength = footer.getInt();
+            byte[] magic = new byte[TRAILER_MAGIC.length];
+            footer.get(magic);
+            if (!Arrays.equals(magic, TRAILER_MAGIC) || manifestLength != tail.length - FOOTER) {
+                throw new IOException("profile archive is truncated");
+            }
+            mManifest = parseManifest(Arrays.copyOf(tail, manifestLength));
+        }
+
+        /**
+         * Consume what is left after the tar stream and return the manifest,
+         * once every chunk was verified
+         */
+        public JSONObject readToEnd() throws IOException {
+            while (nextChunk()) {
+                mPosition = mCurrent.length;
+            }
+            if (mManifest == null) {
+                throw new IOException("profile archive is truncated");
+            }
+            return mManifest;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<byte[]> future : mPending) {
+                future.cancel(false);
+            }
+            mPending.clear();
+            mIn.close();
+        }
+    }
+
+    /**
+     * Read the index and manifest from the end of an archive without reading the chunks
+     */
+    public static Trailer readTrailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < MAGIC.length + CHUNK_HEADER + 4 + FOOTER) {
+            throw new IOException("profile archive is truncated");
+        }
+        ByteBuffer footer = readAt(channel, size - FOOTER, FOOTER);
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        int manifestLength = footer.getInt();
+        byte[] magic = new byte[TRAILER_MAGIC.length];
+        footer.get(magic);
+        if (!Arrays.equals(magic, TRAILER_MAGIC) || indexLength < 4 || manifestLength < 0
+                || manifestLength > MAX_MANIFEST_SIZE
+                || indexOffset + indexLength + manifestLength + FOOTER != size) {
+            throw new IOException("profile archive is truncated or corrupt");
+        }
+
+        ByteBuffer index = readAt(channel, indexOffset, indexLength);
+        int count = index.getInt();
+        if (indexLength != 4 + (long) count * INDEX_ENTRY) {
+            throw new IOException("malformed index");
+        }
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(new Chunk(index.getLong(), index.getInt(), index.getInt(), index.getInt()));
+        }
+
+        ByteBuffer manifest = readAt(channel, indexOffset + indexLength, manifestLength);
+        return new Trailer(Collections.unmodifiableList(chunks), parseManifest(manifest.array()));
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("profile archive is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,272 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.twoyi.Renderer;
+
+/**
+ * Clones a profile directory with a parallel tree walk.
+ *
+ * Every directory is a fork/join task and every entry is examined with a
+ * single lstat. Regular files are cloned in the cheapest way that works:
+ * <ol>
+ *     <li>reflinked with FICLONE, on filesystems that can share extents</li>
+ *     <li>copied with a channel transfer, which is sendfile in the kernel</li>
+ * </ol>
+ * Symlinks are recreated, sockets and other special files skipped. An entry
+ * that can not be cloned is logged and skipped like the previous serial copy
+ * did; only a target that can not be created fails the clone.
+ */
+public final class ProfileCloner {
+
+    private static final String TAG = "ProfileCloner";
+
+    private static final int PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final long PROGRESS_INTERVAL = 16 * 1024 * 1024;
+
+    /**
+     * Called from the walker threads while the clone runs
+     */
+    public interface ProgressListener {
+        void onProgress(Stats stats);
+    }
+
+    /**
+     * Counters of a clone, a snapshot while it runs and the result after
+     */
+    public static final class Stats {
+        public int files;
+        public int dirs;
+        public int symlinks;
+        public int reflinked;
+        public int copied;
+        public int skipped;
+        public long bytes;
+        public long elapsedMs;
+
+        /**
+         * Cloned bytes per second, reflinked files included
+         */
+        public long getThroughput() {
+            return elapsedMs > 0 ? bytes * 1000 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d files (%d reflinked, %d copied), %d dirs, %d symlinks, %d skipped, "
+                            + "%d MB in %dms, %d MB/s",
+                    files, reflinked, copied, dirs, symlinks, skipped,
+                    bytes >> 20, elapsedMs, getThroughput() >> 20);
+        }
+    }
+
+    private final File mSource;
+    private final File mTarget;
+    private ProgressListener mListener;
+
+    private long mStartTime;
+    private volatile boolean mReflink = true;
+
+    private final AtomicInteger mFiles = new AtomicInteger();
+    private final AtomicInteger mDirs = new AtomicInteger();
+    private final AtomicInteger mSymlinks = new AtomicInteger();
+    private final AtomicInteger mReflinked = new AtomicInteger();
+    private final AtomicInteger mCopied = new AtomicInteger();
+    private final AtomicInteger mSkipped = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mReported = new AtomicLong();
+
+    public ProfileCloner(File source, File target) {
+        mSource = source;
+        mTarget = target;
+    }
+
+    public ProfileCloner setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public Stats run() throws IOException {
+        mStartTime = SystemClock.elapsedRealtime();
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            pool.invoke(new DirTask(mSource, mTarget));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        Stats stats = snapshot();
+        Log.i(TAG, "cloned " + mSource + " to " + mTarget + ": " + stats);
+        return stats;
+    }
+
+    private Stats snapshot() {
+        Stats stats = new Stats();
+        stats.files = mFiles.get();
+        stats.dirs = mDirs.get();
+        stats.symlinks = mSymlinks.get();
+        stats.reflinked = mReflinked.get();
+        stats.copied = mCopied.get();
+        stats.skipped = mSkipped.get();
+        stats.bytes = mBytes.get();
+        stats.elapsedMs = SystemClock.elapsedRealtime() - mStartTime;
+        return stats;
+    }
+
+    private final class DirTask extends RecursiveAction {
+        private final File source;
+        private final File target;
+
+        DirTask(File source, File target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            if (!target.isDirectory() && !target.mkdirs()) {
+                throw new UncheckedIOException(new IOException("mkdir " + target + " failed"));
+            }
+            mDirs.incrementAndGet();
+
+            String[] names = source.list();
+            if (names == null) {
+                Log.w(TAG, "can not list " + source + ", skipping");
+                mSkipped.incrementAndGet();
+                return;
+            }
+
+            List<DirTask> subdirs = new ArrayList<>();
+            for (String name : names) {
+                File from = new File(source, name);
+                File to = new File(target, name);
+                try {
+                    StructStat st = Os.lstat(from.getPath());
+                    if (OsConstants.S_ISDIR(st.st_mode)) {
+                        subdirs.add(new DirTask(from, to));
+                    } else if (OsConstants.S_ISLNK(st.st_mode)) {
+                        Os.symlink(Os.readlink(from.getPath()), to.getPath());
+                        mSymlinks.incrementAndGet();
+                    } else if (OsConstants.S_ISREG(st.st_mode)) {
+                        cloneFile(from, to, st);
+                    } else {
+                        // sockets, pipes and devices of the running container
+                        mSkipped.incrementAndGet();
+                    }
+                } catch (IOException | ErrnoException e) {
+                    Log.w(TAG, "Error cloning: " + from + " - " + e.getMessage() + ", skipping");
+                    mSkipped.incrementAndGet();
+                }
+            }
+            invokeAll(subdirs);
+
+            // after the children, creating them changed the mtime
+            try {
+                StructStat st = Os.lstat(source.getPath());
+                Os.chmod(target.getPath(), st.st_mode & 07777);
+                //noinspection ResultOfMethodCallIgnored
+                target.setLastModified(st.st_mtime * 1000);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "can not set attributes of " + target + ": " + e.getMessage());
+            }
+        }
+
+        private void cloneFile(File from, File to, StructStat st) throws IOException, ErrnoException {
+            if (reflink(from, to)) {
+                mReflinked.incrementAndGet();
+            } else {
+                copy(from, to, st.st_size);
+                mCopied.incrementAndGet();
+            }
+            Os.chmod(to.getPath(), st.st_mode & 07777);
+            //noinspection ResultOfMethodCallIgnored
+            to.setLastModified(st.st_mtime * 1000);
+            mFiles.incrementAndGet();
+            onBytes(st.st_size);
+        }
+    }
+
+    private boolean reflink(File from, File to) {
+        if (!mReflink) {
+            return false;
+        }
+        int result;
+        try {
+            result = Renderer.cloneFile(from.getPath(), to.getPath());
+        } catch (UnsatisfiedLinkError e) {
+            mReflink = false;
+            return false;
+        }
+        if (result == 0) {
+            return true;
+        }
+
+        int errno = -result;
+        if (errno == OsConstants.EOPNOTSUPP || errno == OsConstants.EXDEV
+                || errno == OsConstants.EINVAL || errno == OsConstants.ENOTTY) {
+            // the filesystem can not do it, do not ask again for every file
+            Log.i(TAG, "reflink not supported (errno " + errno + "), copying");
+            mReflink = false;
+        }
+        return false;
+    }
+
+    private static void copy(File from, File to, long size) throws IOException {
+        try (FileChannel in = new FileInputStream(from).getChannel();
+             FileChannel out = new FileOutputStream(to).getChannel()) {
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    // the file shrank while we copied it
+                    break;
+                }
+                position += n;
+            }
+        }
+    }
+
+    private void onBytes(long size) {
+        long bytes = mBytes.addAndGet(size);
+        long reported = mReported.get();
+        ProgressListener listener = mListener;
+        if (listener != null && bytes - reported >= PROGRESS_INTERVAL && mReported.compareAndSet(reported, bytes)) {
+            listener.onProgress(snapshot());
+        }
+    }
+}
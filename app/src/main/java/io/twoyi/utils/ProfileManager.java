@@ -91,7 +91,8 @@ public class ProfileManager {
         File[] files = profilesDir.listFiles();
         if (files != null) {
             for (File file : files) {
-                if (file.isDirectory()) {
+                // hidden ones are the rootfs store and staged imports
+                if (file.isDirectory() && !file.getName().startsWith(".")) {
                     profiles.add(file.getName());
                 }
             }
@@ -153,6 +154,9 @@ public class ProfileManager {
             Log.e(TAG, "Failed to rename profile directory");
             return false;
         }
+        if (!ProfileSnapshots.rename(context, oldName, newName)) {
+            Log.w(TAG, "Failed to move the snapshots of " + oldName);
+        }
 
         // Copy settings to new profile name and delete old
         SharedPreferences oldPrefs = context.getSharedPreferences(
@@ -183,9 +187,14 @@ public class ProfileManager {
     }
 
     /**
-     * Copy a profile - copies files manually then creates tar
+     * Copy a profile - the files are cloned by {@link ProfileCloner}
      */
     public static boolean copyProfile(Context context, String sourceName, String targetName) {
+        return copyProfile(context, sourceName, targetName, null);
+    }
+
+    public static boolean copyProfile(Context context, String sourceName, String targetName,
+                                      ProfileCloner.ProgressListener listener) {
         if (targetName == null || targetName.trim().isEmpty()) {
             Log.w(TAG, "Target profile name is empty");
             return false;
@@ -204,12 +213,11 @@ public class ProfileManager {
         }
 
         try {
-            // Create target directory
-            targetDir.mkdirs();
-            
-            // Copy directory contents manually (preserving symlinks, skipping sockets)
+            // Clone directory contents (preserving symlinks, skipping sockets)
             Log.d(TAG, "Copying profile from " + sourceDir + " to " + targetDir);
-            copyDirectoryPreservingSymlinks(sourceDir, targetDir);
+            new ProfileCloner(sourceDir, targetDir)
+                    .setProgressListener(listener)
+                    .run();
 
             // Copy settings
             SharedPreferences sourcePrefs = context.getSharedPreferences(
@@ -239,59 +247,6 @@ public class ProfileManager {
         }
     }
     
-    /**
-     * Copy directory recursively while preserving symlinks and skipping sockets - soft fail on errors
-     */
-    private static void copyDirectoryPreservingSymlinks(File source, File target) throws IOException {
-        File[] files = source.listFiles();
-        if (files == null) {
-            return;
-        }
-        
-        for (File file : files) {
-            File destFile = new File(target, file.getName());
-            Path sourcePath = file.toPath();
-            Path targetPath = destFile.toPath();
-            
-            try {
-                // Skip socket files (file type 140000) - tar cannot archive them
-                try {
-                    java.nio.file.attribute.BasicFileAttributes attrs = 
-                        Files.readAttributes(sourcePath, java.nio.file.attribute.BasicFileAttributes.class, 
-                                           java.nio.file.LinkOption.NOFOLLOW_LINKS);
-                    if (!attrs.isRegularFile() && !attrs.isDirectory() && !attrs.isSymbolicLink()) {
-                        // Skip special files like sockets, named pipes, etc.
-                        Log.d(TAG, "Skipping special file: " + file.getName());
-                        continue;
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Could not check file type for: " + file.getName() + ", skipping");
-                    continue;
-                }
-                
-                if (Files.isSymbolicLink(sourcePath)) {
-                    // Preserve symlink
-                    Path linkTarget = Files.readSymbolicLink(sourcePath);
-                    Files.createSymbolicLink(targetPath, linkTarget);
-                    Log.d(TAG, "Created symlink: " + destFile.getName() + " -> " + linkTarget);
-                } else if (file.isDirectory()) {
-                    // Recursively copy directory
-                    destFile.mkdirs();
-                    copyDirectoryPreservingSymlinks(file, destFile);
-                } else {
-                    // Copy regular file
-                    Files.copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
-                }
-            } catch (java.nio.file.AccessDeniedException e) {
-                // Soft fail on permission errors - log and continue
-                Log.w(TAG, "Permission denied copying: " + file.getAbsolutePath() + ", skipping");
-            } catch (Exception e) {
-                // Soft fail on other errors - log and continue
-                Log.w(TAG, "Error copying: " + file.getAbsolutePath() + " - " + e.getMessage() + ", skipping");
-            }
-        }
-    }
-
     /**
      * Helper to copy a directory recursively, preserving symlinks
      */
@@ -343,7 +298,9 @@ public class ProfileManager {
         // Delete profile settings
         ProfileSettings.deleteProfileSettings(context, profileName);
 
-        return IOUtils.deleteDirectory(profileDir);
+        boolean deleted = IOUtils.deleteDirectory(profileDir);
+        TwoyiExecutors.background().execute(() -> ProfileSnapshots.deleteAll(context, profileName));
+        return deleted;
     }
 
     /**
@@ -17,6 +17,8 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.Map;
+
 /**
  * Profile-specific settings storage.
  * Each profile has its own settings file.
@@ -32,6 +34,17 @@ public class ProfileSettings {
     public static final String DISPLAY_DPI = "display_dpi";
     public static final String USE_NEW_RENDERER = "use_new_renderer";
     public static final String DEBUG_RENDERER = "debug_renderer";
+    public static final String FRAME_RATE_POLICY = "frame_rate_policy";
+    public static final String TRACE_SAMPLE_RATE = "trace_sample_rate";
+    public static final String BOOT_TIMINGS = "boot_timings";
+    public static final String CLEAR_DALVIK_CACHE = "clear_dalvik_cache";
+    public static final String DALVIK_CACHE_WIPE_PENDING = "dalvik_cache_wipe_pending";
+
+    // Frame rate policies
+    public static final String FRAME_RATE_FIXED = "fixed";
+    public static final String FRAME_RATE_MAX = "max";
+    public static final String FRAME_RATE_ADAPTIVE = "adaptive";
+    public static final String FRAME_RATE_BATTERY = "battery";
 
     /**
      * Get SharedPreferences for the active profile
@@ -104,6 +117,36 @@ public class ProfileSettings {
         prefs.edit().clear().commit();
     }
 
+    /**
+     * Get all settings of a specific profile
+     */
+    public static Map<String, ?> getAllSettings(Context context, String profileName) {
+        return getProfilePrefs(context, profileName).getAll();
+    }
+
+    /**
+     * Replace all settings of a specific profile
+     */
+    public static void setAllSettings(Context context, String profileName, Map<String, ?> settings) {
+        SharedPreferences.Editor editor = getProfilePrefs(context, profileName).edit();
+        editor.clear();
+        for (Map.Entry<String, ?> entry : settings.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Boolean) {
+                editor.putBoolean(entry.getKey(), (Boolean) value);
+            } else if (value instanceof String) {
+                editor.putString(entry.getKey(), (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(entry.getKey(), (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(entry.getKey(), (Float) value);
+            }
+        }
+        editor.commit();
+    }
+
     /**
      * Check if verbose logging is enabled for active profile (default: true)
      */
@@ -187,4 +230,74 @@ public class ProfileSettings {
     public static void setDebugRenderer(Context context, boolean enabled) {
         setBoolean(context, DEBUG_RENDERER, enabled);
     }
+
+    /**
+     * Get debug renderer trace sampling for active profile, one of every N records is kept (default: 1)
+     */
+    public static int getTraceSampleRate(Context context) {
+        return getInt(context, TRACE_SAMPLE_RATE, 1);
+    }
+
+    /**
+     * Set debug renderer trace sampling for active profile
+     */
+    public static void setTraceSampleRate(Context context, int rate) {
+        setInt(context, TRACE_SAMPLE_RATE, rate);
+    }
+
+    /**
+     * Get the recorded boot stage timings of active profile, see {@link io.twoyi.BootTracker}
+     */
+    public static String getBootTimings(Context context) {
+        return getString(context, BOOT_TIMINGS, "");
+    }
+
+    /**
+     * Set the recorded boot stage timings of active profile
+     */
+    public static void setBootTimings(Context context, String timings) {
+        setString(context, BOOT_TIMINGS, timings);
+    }
+
+    /**
+     * Check if the whole dalvik-cache is cleared on every launch for active profile (default: false)
+     */
+    public static boolean isClearDalvikCacheEnabled(Context context) {
+        return getBoolean(context, CLEAR_DALVIK_CACHE, false);
+    }
+
+    /**
+     * Set whether the whole dalvik-cache is cleared on every launch for active profile
+     */
+    public static void setClearDalvikCache(Context context, boolean enabled) {
+        setBoolean(context, CLEAR_DALVIK_CACHE, enabled);
+    }
+
+    /**
+     * Check if the dalvik-cache of active profile must be cleared on the next launch
+     */
+    public static boolean isDalvikCacheWipePending(Context context) {
+        return getBoolean(context, DALVIK_CACHE_WIPE_PENDING, false);
+    }
+
+    /**
+     * Set whether the dalvik-cache of active profile must be cleared on the next launch
+     */
+    public static void setDalvikCacheWipePending(Context context, boolean pending) {
+        setBoolean(context, DALVIK_CACHE_WIPE_PENDING, pending);
+    }
+
+    /**
+     * Get frame rate policy for active profile (default: fixed)
+     */
+    public static String getFrameRatePolicy(Context context) {
+        return getString(context, FRAME_RATE_POLICY, FRAME_RATE_FIXED);
+    }
+
+    /**
+     * Set frame rate policy for active profile
+     */
+    public static void setFrameRatePolicy(Context context, String policy) {
+        setString(context, FRAME_RATE_POLICY, policy);
+    }
 }
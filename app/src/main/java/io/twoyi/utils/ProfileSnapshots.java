@@ -0,0 +1,839 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental snapshots of the profiles.
+ *
+ * A snapshot is an index of the rootfs of a profile, one entry per file with
+ * its path, mode, mtime, size and sha256, plus the settings of the profile.
+ * The indexes are in {@code profiles/.snapshots/profiles/<name>}, file contents
+ * in {@code profiles/.snapshots/objects}, named after their sha256 and shared
+ * by all snapshots of all profiles:
+ * <ul>
+ *     <li>{@link #create} takes the hash of a file from the previous snapshot
+ *     when its size, mtime, ctime and inode did not change, so only the files
+ *     changed since then are read and only new contents are stored</li>
+ *     <li>{@link #restore} rebuilds the rootfs next to the current one and
+ *     swaps them; files that did not change since the snapshot are linked
+ *     from the current rootfs instead of copied</li>
+ *     <li>{@link #delete} and {@link #prune} drop indexes and then collect
+ *     the objects no index refers to anymore</li>
+ * </ul>
+ */
+public final class ProfileSnapshots {
+
+    private static final String TAG = "ProfileSnapshots";
+
+    private static final String SNAPSHOTS_DIR = ".snapshots";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String INDEXES_DIR = "profiles";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final byte[] MAGIC = "TWOYISN1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte TYPE_DIR = 0;
+    private static final byte TYPE_FILE = 1;
+    private static final byte TYPE_SYMLINK = 2;
+
+    private static final int HASH_LENGTH = 32;
+
+    // create, restore and the object collection must not interleave: a
+    // collection would remove the objects of a snapshot that is being written
+    private static final Object LOCK = new Object();
+
+    private static final AtomicInteger TMP_COUNTER = new AtomicInteger();
+
+    private ProfileSnapshots() {
+    }
+
+    /**
+     * A snapshot as listed, without its entries
+     */
+    public static final class Snapshot {
+        public final String id;
+        public final long created;
+        public final int files;
+        public final long bytes;
+        /** Files whose content was not in the objects yet when the snapshot was taken */
+        public final int storedFiles;
+        public final long storedBytes;
+
+        Snapshot(String id, long created, int files, long bytes, int storedFiles, long storedBytes) {
+            this.id = id;
+            this.created = created;
+            this.files = files;
+            this.bytes = bytes;
+            this.storedFiles = storedFiles;
+            this.storedBytes = storedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d files, %d MB, %d new files, %d MB stored",
+                    id, files, bytes >> 20, storedFiles, storedBytes >> 20);
+        }
+    }
+
+    /**
+     * Counters of a {@link #restore} or an object collection
+     */
+    public static final class Stats {
+        public int files;
+        public int linked;
+        public int copied;
+        public int skipped;
+        public long bytes;
+        public long elapsedMs;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d files (%d linked, %d copied), %d skipped, %d MB in %dms",
+                    files, linked, copied, skipped, bytes >> 20, elapsedMs);
+        }
+    }
+
+    private static final class Entry {
+        byte type;
+        String path;
+        int mode;
+        long mtime;
+        long ctime;
+        long ino;
+        long size;
+        byte[] hash;
+        String link;
+    }
+
+    private static final class Index {
+        Snapshot snapshot;
+        Map<String, Object> settings;
+        List<Entry> entries;
+    }
+
+    private static File getSnapshotsDir(Context context) {
+        return new File(ProfileManager.getProfilesDir(context), SNAPSHOTS_DIR);
+    }
+
+    private static File getObjectsDir(Context context) {
+        return new File(getSnapshotsDir(context), OBJECTS_DIR);
+    }
+
+    private static File getIndexesDir(Context context) {
+        return new File(getSnapshotsDir(context), INDEXES_DIR);
+    }
+
+    private static File getIndexDir(Context context, String profileName) {
+        return new File(getIndexesDir(context), profileName);
+    }
+
+    private static File getObjectFile(File objectsDir, byte[] hash) {
+        String hex = IOUtils.toHex(hash);
+        return new File(new File(objectsDir, hex.substring(0, 2)), hex);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---- listing
+
+    /**
+     * Snapshots of a profile, newest first
+     */
+    public static List<Snapshot> list(Context context, String profileName) {
+        String[] names = getIndexDir(context, profileName).list();
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (String name : names) {
+            if (!name.endsWith(INDEX_SUFFIX)) {
+                continue;
+            }
+            try {
+                snapshots.add(readIndex(new File(getIndexDir(context, profileName), name), false).snapshot);
+            } catch (IOException e) {
+                Log.w(TAG, "skip unreadable snapshot " + name + ": " + e.getMessage());
+            }
+        }
+        snapshots.sort((a, b) -> a.created != b.created ? Long.compare(b.created, a.created) : b.id.compareTo(a.id));
+        return snapshots;
+    }
+
+    // ---- creating
+
+    /**
+     * Snapshot the rootfs and the settings of a profile. Files of a running
+     * profile are read as they are at that moment.
+     */
+    public static Snapshot create(Context context, String profileName) throws IOException {
+        File rootfsDir = ProfileManager.getProfileRootfsDir(context, profileName);
+        if (!rootfsDir.isDirectory()) {
+            throw new FileNotFoundException("profile " + profileName + " has no rootfs");
+        }
+
+        synchronized (LOCK) {
+            long startTime = SystemClock.elapsedRealtime();
+            long created = System.currentTimeMillis();
+            File indexDir = getIndexDir(context, profileName);
+            if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+                throw new IOException("can not create " + indexDir);
+            }
+
+            // the previous snapshot tells which files are unchanged
+            Map<String, Entry> base = new HashMap<>();
+            long baseCreated = 0;
+            List<Snapshot> snapshots = list(context, profileName);
+            if (!snapshots.isEmpty()) {
+                String previousId = snapshots.get(0).id;
+                try {
+                    Index previous = readIndex(new File(indexDir, previousId + INDEX_SUFFIX), true);
+                    for (Entry entry : previous.entries) {
+                        if (entry.type == TYPE_FILE) {
+                            base.put(entry.path, entry);
+                        }
+                    }
+                    baseCreated = previous.snapshot.created;
+                } catch (IOException e) {
+                    // every file is hashed again, unchanged contents are still stored once
+                    Log.w(TAG, "can not read snapshot " + previousId + ", taking a full snapshot: " + e.getMessage());
+                    base.clear();
+                }
+            }
+
+            Walker walker = new Walker(getObjectsDir(context), rootfsDir, base, baseCreated / 1000);
+            walker.walk(rootfsDir, "");
+            List<Entry> entries = walker.await();
+
+            int files = 0;
+            long bytes = 0;
+            for (Entry entry : entries) {
+                if (entry.type == TYPE_FILE) {
+                    files++;
+                    bytes += entry.size;
+                }
+            }
+
+            String id = newId(indexDir, created);
+            Index index = new Index();
+            index.snapshot = new Snapshot(id, created, files, bytes, walker.storedFiles.get(), walker.storedBytes.get());
+            index.settings = new LinkedHashMap<>(ProfileSettings.getAllSettings(context, profileName));
+            index.entries = entries;
+            writeIndex(new File(indexDir, id + INDEX_SUFFIX), index);
+
+            Log.i(TAG, "snapshot of " + profileName + " " + index.snapshot + ", "
+                    + walker.reused.get() + " unchanged, in " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            return index.snapshot;
+        }
+    }
+
+    private static String newId(File indexDir, long created) {
+        String base = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(created));
+        String id = base;
+        for (int i = 2; new File(indexDir, id + INDEX_SUFFIX).exists(); i++) {
+            id = base + "-" + i;
+        }
+        return id;
+    }
+
+    /**
+     * Walks the rootfs; changed files are hashed and stored on the io pool
+     */
+    private static final class Walker {
+        private final File objectsDir;
+        private final File rootfsDir;
+        private final Map<String, Entry> base;
+        private final long baseCreated;
+
+        private final List<Entry> entries = new ArrayList<>();
+        private final List<CompletableFuture<Entry>> pending = new ArrayList<>();
+
+        final AtomicInteger reused = new AtomicInteger();
+        final AtomicInteger storedFiles = new AtomicInteger();
+        final AtomicLong storedBytes = new AtomicLong();
+
+        Walker(File objectsDir, File rootfsDir, Map<String, Entry> base, long baseCreated) {
+            this.objectsDir = objectsDir;
+            this.rootfsDir = rootfsDir;
+            this.base = base;
+            this.baseCreated = baseCreated;
+        }
+
+        void walk(File dir, String path) throws IOException {
+            StructStat dirStat;
+            try {
+                dirStat = Os.lstat(dir.getPath());
+            } catch (ErrnoException e) {
+                throw new IOException("can not stat " + dir, e);
+            }
+            Entry dirEntry = new Entry();
+            dirEntry.type = TYPE_DIR;
+            dirEntry.path = path;
+            dirEntry.mode = dirStat.st_mode & 07777;
+            dirEntry.mtime = dirStat.st_mtime;
+            entries.add(dirEntry);
+
+            String[] names = dir.list();
+            if (names == null) {
+                Log.w(TAG, "can not list " + dir + ", skipping");
+                return;
+            }
+            for (String name : names) {
+                File file = new File(dir, name);
+                String childPath = path.isEmpty() ? name : path + "/" + name;
+                try {
+                    StructStat st = Os.lstat(file.getPath());
+                    if (OsConstants.S_ISDIR(st.st_mode)) {
+                        walk(file, childPath);
+                    } else if (OsConstants.S_ISLNK(st.st_mode)) {
+                        Entry entry = new Entry();
+                        entry.type = TYPE_SYMLINK;
+                        entry.path = childPath;
+                        entry.mode = st.st_mode & 07777;
+                        entry.mtime = st.st_mtime;
+                        entry.link = Os.readlink(file.getPath());
+                        entries.add(entry);
+                    } else if (OsConstants.S_ISREG(st.st_mode)) {
+                        addFile(file, childPath, st);
+                    }
+                    // sockets, pipes and devices of the running container are not part of a snapshot
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Error reading: " + file + " - " + e.getMessage() + ", skipping");
+                }
+            }
+        }
+
+        private void addFile(File file, String path, StructStat st) {
+            Entry entry = new Entry();
+            entry.type = TYPE_FILE;
+            entry.path = path;
+            entry.mode = st.st_mode & 07777;
+            entry.mtime = st.st_mtime;
+            entry.ctime = st.st_ctime;
+            entry.ino = st.st_ino;
+            entry.size = st.st_size;
+
+            Entry previous = base.get(path);
+            // a file written in the second the previous snapshot was taken may
+            // have changed after it without a different mtime, it is hashed again
+            if (previous != null && previous.size == st.st_size && previous.mtime == st.st_mtime
+                    && previous.ctime == st.st_ctime && previous.ino == st.st_ino && st.st_mtime < baseCreated
+                    && getObjectFile(objectsDir, previous.hash).exists()) {
+                entry.hash = previous.hash;
+                reused.incrementAndGet();
+                pending.add(CompletableFuture.completedFuture(entry));
+                return;
+            }
+
+            pending.add(CompletableFuture.supplyAsync(() -> store(file, entry), TwoyiExecutors.io()));
+        }
+
+        /**
+         * @return the entry with its hash and the size that was read, null if the file can not be read
+         */
+        private Entry store(File file, Entry entry) {
+            try {
+                copyObject(file, entry);
+                return entry;
+            } catch (IOException e) {
+                Log.w(TAG, "Error storing: " + file + " - " + e.getMessage() + ", skipping");
+                return null;
+            }
+        }
+
+        /**
+         * Hash the file while it is copied to a temporary object, then move
+         * that into place unless the content is already stored
+         */
+        private void copyObject(File file, Entry entry) throws IOException {
+            File tmp = new File(objectsDir, "." + TMP_COUNTER.incrementAndGet() + "-" + Thread.currentThread().getId() + TMP_SUFFIX);
+            //noinspection ResultOfMethodCallIgnored
+            objectsDir.mkdirs();
+
+            MessageDigest sha256 = newDigest();
+            long size = 0;
+            try {
+                try (InputStream in = new FileInputStream(file);
+                     OutputStream out = new FileOutputStream(tmp)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        sha256.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        size += n;
+                    }
+                }
+                // what was read, the file may be written while the profile runs
+                entry.size = size;
+                entry.hash = sha256.digest();
+
+                File object = getObjectFile(objectsDir, entry.hash);
+                if (object.exists()) {
+                    return;
+                }
+                //noinspection ResultOfMethodCallIgnored
+                object.getParentFile().mkdirs();
+                Os.rename(tmp.getPath(), object.getPath());
+                storedFiles.incrementAndGet();
+                storedBytes.addAndGet(size);
+            } catch (ErrnoException e) {
+                throw new IOException("store " + file + " failed", e);
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+
+        /**
+         * All entries sorted by path, so a directory comes before its content
+         */
+        private List<Entry> await() {
+            List<Entry> files = new ArrayList<>(pending.size());
+            for (CompletableFuture<Entry> future : pending) {
+                Entry entry = future.join();
+                if (entry != null) {
+                    files.add(entry);
+                }
+            }
+
+            List<Entry> result = new ArrayList<>(entries.size() + files.size());
+            result.addAll(entries);
+            result.addAll(files);
+            Collections.sort(result, (a, b) -> a.path.compareTo(b.path));
+            return result;
+        }
+    }
+
+    // ---- restoring
+
+    /**
+     * Replace the rootfs and the settings of a profile with a snapshot. The
+     * active profile is refused: the container runs on its rootfs and would
+     * keep the files of the replaced one open.
+     */
+    public static Stats restore(Context context, String profileName, String id) throws IOException {
+        if (profileName.equals(ProfileManager.getActiveProfile(context))) {
+            throw new IOException("profile " + profileName + " is running");
+        }
+
+        Stats stats = new Stats();
+        synchronized (LOCK) {
+            long startTime = SystemClock.elapsedRealtime();
+            Index index = readIndex(new File(getIndexDir(context, profileName), id + INDEX_SUFFIX), true);
+            File objectsDir = getObjectsDir(context);
+            File rootfsDir = ProfileManager.getProfileRootfsDir(context, profileName);
+
+            // hidden, so it is not listed as a profile
+            File stagingDir = new File(ProfileManager.getProfilesDir(context), "." + profileName + ".restore");
+            if (stagingDir.exists()) {
+                IOUtils.forceDelete(stagingDir);
+            }
+            File stagingRootfs = new File(stagingDir, "rootfs");
+
+            try {
+                List<Entry> dirs = new ArrayList<>();
+                for (Entry entry : index.entries) {
+                    File target = entry.path.isEmpty() ? stagingRootfs : new File(stagingRootfs, entry.path);
+                    try {
+                        if (entry.type == TYPE_DIR) {
+                            if (!target.isDirectory() && !target.mkdirs()) {
+                                throw new IOException("mkdir " + target + " failed");
+                            }
+                            dirs.add(entry);
+                        } else if (entry.type == TYPE_SYMLINK) {
+                            Os.symlink(entry.link, target.getPath());
+                        } else {
+                            restoreFile(new File(rootfsDir, entry.path), target, entry, objectsDir, stats);
+                        }
+                    } catch (ErrnoException e) {
+                        Log.w(TAG, "Error restoring: " + entry.path + " - " + e.getMessage() + ", skipping");
+                        stats.skipped++;
+                    }
+                }
+
+                // deepest first, creating the children changed the mtime
+                for (int i = dirs.size() - 1; i >= 0; i--) {
+                    Entry entry = dirs.get(i);
+                    File target = entry.path.isEmpty() ? stagingRootfs : new File(stagingRootfs, entry.path);
+                    try {
+                        Os.chmod(target.getPath(), entry.mode);
+                    } catch (ErrnoException e) {
+                        Log.w(TAG, "can not set mode of " + target + ": " + e.getMessage());
+                    }
+                    //noinspection ResultOfMethodCallIgnored
+                    target.setLastModified(entry.mtime * 1000);
+                }
+
+                swap(rootfsDir, stagingRootfs, new File(stagingDir, "old"));
+            } finally {
+                IOUtils.forceDelete(stagingDir);
+            }
+
+            ProfileSettings.setAllSettings(context, profileName, index.settings);
+            stats.elapsedMs = SystemClock.elapsedRealtime() - startTime;
+            Log.i(TAG, "restored " + profileName + " to " + id + ": " + stats);
+        }
+        return stats;
+    }
+
+    private static void restoreFile(File current, File target, Entry entry, File objectsDir, Stats stats)
+            throws IOException, ErrnoException {
+        stats.files++;
+        stats.bytes += entry.size;
+
+        // unchanged since the snapshot, the current file can be taken over
+        try {
+            StructStat st = Os.lstat(current.getPath());
+            if (OsConstants.S_ISREG(st.st_mode) && st.st_ino == entry.ino && st.st_size == entry.size
+                    && st.st_mtime == entry.mtime && st.st_ctime == entry.ctime) {
+                Os.link(current.getPath(), target.getPath());
+                stats.linked++;
+                return;
+            }
+        } catch (ErrnoException ignored) {
+            // not there anymore
+        }
+
+        File object = getObjectFile(objectsDir, entry.hash);
+        try (FileChannel in = new FileInputStream(object).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    throw new IOException("short copy of " + object);
+                }
+                position += n;
+            }
+        }
+        Os.chmod(target.getPath(), entry.mode);
+        //noinspection ResultOfMethodCallIgnored
+        target.setLastModified(entry.mtime * 1000);
+        stats.copied++;
+    }
+
+    /**
+     * Put the restored rootfs in place of the current one, which is moved to {@code old}
+     */
+    private static void swap(File rootfsDir, File restored, File old) throws IOException {
+        try {
+            boolean hadRootfs = rootfsDir.exists();
+            if (hadRootfs) {
+                Os.rename(rootfsDir.getPath(), old.getPath());
+            }
+            try {
+                Os.rename(restored.getPath(), rootfsDir.getPath());
+            } catch (ErrnoException e) {
+                if (hadRootfs) {
+                    Os.rename(old.getPath(), rootfsDir.getPath());
+                }
+                throw e;
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("can not replace " + rootfsDir, e);
+        }
+    }
+
+    // ---- removing
+
+    /**
+     * Delete one snapshot and the objects only it referred to
+     */
+    public static Stats delete(Context context, String profileName, String id) {
+        synchronized (LOCK) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(getIndexDir(context, profileName), id + INDEX_SUFFIX).delete();
+            return collect(context);
+        }
+    }
+
+    /**
+     * Keep the {@code keep} newest snapshots of a profile and delete the others
+     */
+    public static Stats prune(Context context, String profileName, int keep) {
+        synchronized (LOCK) {
+            List<Snapshot> snapshots = list(context, profileName);
+            for (int i = Math.max(0, keep); i < snapshots.size(); i++) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(getIndexDir(context, profileName), snapshots.get(i).id + INDEX_SUFFIX).delete();
+            }
+            return collect(context);
+        }
+    }
+
+    /**
+     * Delete all snapshots of a profile, when the profile is deleted
+     */
+    public static Stats deleteAll(Context context, String profileName) {
+        synchronized (LOCK) {
+            IOUtils.forceDelete(getIndexDir(context, profileName));
+            return collect(context);
+        }
+    }
+
+    /**
+     * Move the snapshots of a profile along with its rename
+     */
+    public static boolean rename(Context context, String oldName, String newName) {
+        synchronized (LOCK) {
+            File oldDir = getIndexDir(context, oldName);
+            return !oldDir.exists() || oldDir.renameTo(getIndexDir(context, newName));
+        }
+    }
+
+    /**
+     * Remove the objects that no snapshot of any profile refers to; the
+     * caller holds the lock
+     */
+    private static Stats collect(Context context) {
+        long startTime = SystemClock.elapsedRealtime();
+        Stats stats = new Stats();
+        Set<String> referenced = new HashSet<>();
+        File[] indexDirs = getIndexesDir(context).listFiles();
+        for (File indexDir : indexDirs != null ? indexDirs : new File[0]) {
+            String[] names = indexDir.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                if (!name.endsWith(INDEX_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    for (Entry entry : readIndex(new File(indexDir, name), true).entries) {
+                        if (entry.type == TYPE_FILE) {
+                            referenced.add(IOUtils.toHex(entry.hash));
+                        }
+                    }
+                } catch (IOException e) {
+                    // without its references nothing can be collected safely
+                    Log.e(TAG, "can not read " + name + ", not collecting objects", e);
+                    return stats;
+                }
+            }
+        }
+
+        File[] buckets = getObjectsDir(context).listFiles();
+        if (buckets == null) {
+            return stats;
+        }
+        for (File bucket : buckets) {
+            File[] objects = bucket.isDirectory() ? bucket.listFiles() : new File[]{bucket};
+            if (objects == null) {
+                continue;
+            }
+            for (File object : objects) {
+                if (referenced.contains(object.getName())) {
+                    continue;
+                }
+                long size = object.length();
+                // leftovers of an interrupted snapshot are removed as well
+                if (object.delete()) {
+                    stats.files++;
+                    stats.bytes += size;
+                }
+            }
+            // only succeeds for an empty bucket
+            //noinspection ResultOfMethodCallIgnored
+            bucket.delete();
+        }
+        stats.elapsedMs = SystemClock.elapsedRealtime() - startTime;
+        Log.i(TAG, "collected " + stats.files + " objects, " + (stats.bytes >> 20) + " MB in " + stats.elapsedMs + "ms");
+        return stats;
+    }
+
+    // ---- index files
+
+    private static void writeIndex(File file, Index index) throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            Snapshot snapshot = index.snapshot;
+            out.write(MAGIC);
+            out.writeLong(snapshot.created);
+            out.writeInt(snapshot.files);
+            out.writeLong(snapshot.bytes);
+            out.writeInt(snapshot.storedFiles);
+            out.writeLong(snapshot.storedBytes);
+
+            out.writeInt(index.settings.size());
+            for (Map.Entry<String, Object> setting : index.settings.entrySet()) {
+                writeSetting(out, setting.getKey(), setting.getValue());
+            }
+
+            out.writeInt(index.entries.size());
+            for (Entry entry : index.entries) {
+                out.writeByte(entry.type);
+                out.writeUTF(entry.path);
+                out.writeInt(entry.mode);
+                out.writeLong(entry.mtime);
+                if (entry.type == TYPE_FILE) {
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.ctime);
+                    out.writeLong(entry.ino);
+                    out.write(entry.hash);
+                } else if (entry.type == TYPE_SYMLINK) {
+                    out.writeUTF(entry.link);
+                }
+            }
+        }
+        try {
+            Os.rename(tmp.getPath(), file.getPath());
+        } catch (ErrnoException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("write " + file + " failed", e);
+        }
+    }
+
+    private static void writeSetting(DataOutputStream out, String key, Object value) throws IOException {
+        out.writeUTF(key);
+        if (value instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) value);
+        } else {
+            // strings, and string sets are not used by the profile settings
+            out.writeByte('S');
+            out.writeUTF(String.valueOf(value));
+        }
+    }
+
+    /**
+     * @param entries false to only read the header and the settings
+     */
+    private static Index readIndex(File file, boolean entries) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a snapshot index");
+            }
+
+            Index index = new Index();
+            String name = file.getName();
+            String id = name.substring(0, name.length() - INDEX_SUFFIX.length());
+            index.snapshot = new Snapshot(id, in.readLong(), in.readInt(), in.readLong(), in.readInt(), in.readLong());
+
+            int settings = in.readInt();
+            index.settings = new LinkedHashMap<>();
+            for (int i = 0; i < settings; i++) {
+                String key = in.readUTF();
+                byte type = in.readByte();
+                switch (type) {
+                    case 'Z':
+                        index.settings.put(key, in.readBoolean());
+                        break;
+                    case 'I':
+                        index.settings.put(key, in.readInt());
+                        break;
+                    case 'J':
+                        index.settings.put(key, in.readLong());
+                        break;
+                    case 'F':
+                        index.settings.put(key, in.readFloat());
+                        break;
+                    case 'S':
+                        index.settings.put(key, in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("unknown setting type " + type);
+                }
+            }
+            if (!entries) {
+                return index;
+            }
+
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad entry count " + count);
+            }
+            // the count is not trusted for the allocation, a truncated file ends with an EOFException
+            index.entries = new ArrayList<>(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.type = in.readByte();
+                entry.path = in.readUTF();
+                entry.mode = in.readInt();
+                entry.mtime = in.readLong();
+                if (entry.type == TYPE_FILE) {
+                    entry.size = in.readLong();
+                    entry.ctime = in.readLong();
+                    entry.ino = in.readLong();
+                    entry.hash = new byte[HASH_LENGTH];
+                    in.readFully(entry.hash);
+                } else if (entry.type == TYPE_SYMLINK) {
+                    entry.link = in.readUTF();
+                } else if (entry.type != TYPE_DIR) {
+                    throw new IOException("unknown entry type " + entry.type);
+                }
+                index.entries.add(entry);
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decoder for the binary trace files written by the debug renderer.
+ *
+ * The native side (renderer_new/trace.rs) appends fixed-header records to
+ * rotating {@code trace_<n>.bin} files in the debug log directory. Each file
+ * starts with the magic {@code TYTRACE1}, a version and the header length;
+ * every record is a u64 timestamp (monotonic ns), u32 original payload length,
+ * u32 channel, u16 kind and u16 stored length followed by the payload padded
+ * to 4 bytes. A record of kind 0 marks the end of the file.
+ */
+public final class RendererTrace {
+
+    public static final String DIR_NAME = "twoyi_renderer_debug";
+
+    private static final byte[] MAGIC = "TYTRACE1".getBytes(StandardCharsets.US_ASCII);
+    private static final int RECORD_HEADER_LEN = 20;
+
+    public static final int KIND_CHANNEL = 1;
+    public static final int KIND_PIPE_WRITE = 2;
+    public static final int KIND_PIPE_READ = 3;
+    public static final int KIND_GRALLOC_BUFFER = 4;
+    public static final int KIND_GRALLOC_EVENT = 5;
+    public static final int KIND_SOCKET_READ = 6;
+    public static final int KIND_GL_COMMAND = 7;
+    public static final int KIND_DROPPED = 8;
+
+    /** Bytes of payload shown per record in the text dump */
+    private static final int MAX_HEX_BYTES = 64;
+
+    private RendererTrace() {
+    }
+
+    public static File getTraceDir(Context context) {
+        return new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    public static boolean isTraceFile(File file) {
+        String name = file.getName();
+        return name.startsWith("trace_") && name.endsWith(".bin");
+    }
+
+    /**
+     * Trace files in the directory, oldest first
+     */
+    public static List<File> listTraceFiles(File dir) {
+        List<File> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            if (file.isFile() && isTraceFile(file)) {
+                result.add(file);
+            }
+        }
+        result.sort((a, b) -> Integer.compare(traceIndex(a), traceIndex(b)));
+        return result;
+    }
+
+    private static int traceIndex(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring("trace_".length(), name.length() - ".bin".length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Decode every trace file of the directory into a text file.
+     *
+     * @param maxRecords decode at most this many records, the newest are kept:
+     *                   files are counted from the newest one and the older
+     *                   records of the first file decoded are skipped
+     * @return number of records written
+     */
+    public static int decode(File dir, File output, int maxRecords) throws IOException {
+        List<File> files = listTraceFiles(dir);
+        int first = files.size();
+        int[] counts = new int[files.size()];
+        long total = 0;
+        while (first > 0 && total < maxRecords) {
+            first--;
+            counts[first] = decodeFile(files.get(first), null, 0);
+            total += counts[first];
+        }
+        long skip = Math.max(0, total - maxRecords);
+
+        int written = 0;
+        try (PrintWriter pw = new PrintWriter(new FileWriter(output))) {
+            if (first > 0 || skip > 0) {
+                pw.println("... older records skipped");
+            }
+            for (int i = first; i < files.size(); i++) {
+                pw.println("== " + files.get(i).getName());
+                written += decodeFile(files.get(i), pw, skip);
+                skip = Math.max(0, skip - counts[i]);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Decode the records of a file after the first {@code skip} ones; channel
+     * names are read from the skipped part too
+     *
+     * @param pw where to print, null to only count the records
+     * @return number of records printed (or counted)
+     */
+    private static int decodeFile(File file, PrintWriter pw, long skip) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] magic = new byte[MAGIC.length];
+            if (map.remaining() < 16) {
+                println(pw, "truncated header");
+                return 0;
+            }
+            map.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                println(pw, "bad magic");
+                return 0;
+            }
+            int version = map.getInt();
+            int headerLen = map.getInt();
+            println(pw, "version " + version);
+            map.position(headerLen);
+
+            Map<Integer, String> channels = new HashMap<>();
+            long seen = 0;
+            int count = 0;
+            while (map.remaining() >= RECORD_HEADER_LEN) {
+                long timestamp = map.getLong();
+                int origLen = map.getInt();
+                int channelId = map.getInt();
+                int kind = map.getShort() & 0xffff;
+                int len = map.getShort() & 0xffff;
+                if (kind == 0) {
+                    break;
+                }
+                int padded = (len + 3) & ~3;
+                if (map.remaining() < padded) {
+                    println(pw, "truncated record");
+                    break;
+                }
+                if (kind != KIND_CHANNEL && (pw == null || seen++ < skip)) {
+                    map.position(map.position() + padded);
+                    if (pw == null) {
+                        count++;
+                    }
+                    continue;
+                }
+                byte[] payload = new byte[len];
+                map.get(payload);
+                map.position(map.position() + padded - len);
+
+                if (kind == KIND_CHANNEL) {
+                    channels.put(channelId, new String(payload, StandardCharsets.UTF_8));
+                    continue;
+                }
+
+                String name = channels.get(channelId);
+                pw.println(String.format(Locale.US, "[%d.%09d] %s %s %d bytes%s",
+                        timestamp / 1_000_000_000L, timestamp % 1_000_000_000L,
+                        kindName(kind), name == null ? "#" + channelId : name, origLen,
+                        describe(kind, payload)));
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static void println(PrintWriter pw, String line) {
+        if (pw != null) {
+            pw.println(line);
+        }
+    }
+
+    private static String kindName(int kind) {
+        switch (kind) {
+            case KIND_PIPE_WRITE:
+                return "PIPE_WRITE";
+            case KIND_PIPE_READ:
+                return "PIPE_READ";
+            case KIND_GRALLOC_BUFFER:
+                return "GRALLOC_BUFFER";
+            case KIND_GRALLOC_EVENT:
+                return "GRALLOC_EVENT";
+            case KIND_SOCKET_READ:
+                return "SOCKET_READ";
+            case KIND_GL_COMMAND:
+                return "GL_COMMAND";
+            case KIND_DROPPED:
+                return "DROPPED";
+            default:
+                return "KIND_" + kind;
+        }
+    }
+
+    private static String describe(int kind, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        switch (kind) {
+            case KIND_GRALLOC_EVENT:
+                return ": " + new String(payload, StandardCharsets.UTF_8);
+            case KIND_GRALLOC_BUFFER:
+                if (payload.length >= 16) {
+                    return String.format(Locale.US, ": %dx%d stride=%d format=%d",
+                            buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt());
+                }
+                break;
+            case KIND_GL_COMMAND:
+                if (payload.length >= 4) {
+                    StringBuilder sb = new StringBuilder(String.format(Locale.US, ": 0x%04x", buf.getInt()));
+                    while (buf.remaining() >= 4) {
+                        sb.append(' ').append(buf.getInt());
+                    }
+                    return sb.toString();
+                }
+                break;
+            case KIND_DROPPED:
+                if (payload.length >= 8) {
+                    return ": " + buf.getLong() + " records";
+                }
+                break;
+            default:
+                break;
+        }
+        return ": " + hex(payload);
+    }
+
+    private static String hex(byte[] payload) {
+        int n = Math.min(payload.length, MAX_HEX_BYTES);
+        StringBuilder sb = new StringBuilder(n * 3);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format(Locale.US, "%02x", payload[i]));
+        }
+        if (payload.length > n) {
+            sb.append(" ...");
+        }
+        return sb.toString();
+    }
+}
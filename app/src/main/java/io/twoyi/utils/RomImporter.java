@@ -0,0 +1,288 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Crash safe ROM import into the active profile.
+ *
+ * The archive is extracted into {@code rootfs.staging} next to the profile's
+ * rootfs while a journal ({@code rootfs.import}) records the source uri and
+ * how many entries are on disk. After process death the import resumes from
+ * the journal: the archive is read again but the completed files are not
+ * rewritten. Only a complete tree with an {@code init} is renamed into
+ * place, so the current rootfs is untouched until then.
+ *
+ * There is no checksum verification: the md5 in rom.ini is the one of the
+ * original rootfs.7z asset (an archive can not carry its own checksum) and a
+ * document picked through SAF has no sidecar the app could read. The tar
+ * headers are checksummed and a truncated archive fails the extraction.
+ */
+public final class RomImporter {
+
+    private static final String TAG = "RomImporter";
+
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String OLD_SUFFIX = ".old";
+    private static final String TRASH_SUFFIX = ".trash.";
+    private static final String JOURNAL_FILE = "rootfs.import";
+
+    private static final String KEY_URI = "uri";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_ENTRIES = "entries";
+    private static final String KEY_STATE = "state";
+
+    private static final String STATE_EXTRACTING = "extracting";
+    private static final String STATE_COMPLETE = "complete";
+
+    /** Entries between two journal updates */
+    private static final int CHECKPOINT_ENTRIES = 512;
+    /** Bytes of small files read ahead of the parallel writers */
+    private static final int WRITE_BUDGET = 32 * 1024 * 1024;
+
+    private RomImporter() {
+    }
+
+    private static File getRootfsDir(Context context) {
+        return ProfileManager.getProfileRootfsDir(context, ProfileManager.getActiveProfile(context));
+    }
+
+    private static File getStagingDir(File rootfsDir) {
+        return new File(rootfsDir.getPath() + STAGING_SUFFIX);
+    }
+
+    private static File getJournalFile(File rootfsDir) {
+        return new File(rootfsDir.getParentFile(), JOURNAL_FILE);
+    }
+
+    /**
+     * Uri of an interrupted import of the active profile, null if there is none
+     */
+    public static Uri getPendingImport(Context context) {
+        Properties journal = loadJournal(getJournalFile(getRootfsDir(context)));
+        if (journal == null || !STATE_EXTRACTING.equals(journal.getProperty(KEY_STATE))) {
+            return null;
+        }
+        return Uri.parse(journal.getProperty(KEY_URI));
+    }
+
+    /**
+     * Extract the archive behind {@code uri} and replace the rootfs of the
+     * active profile with it, resuming an interrupted import of the same uri
+     */
+    public static TarExtractor.Stats importRootfs(Context context, Uri uri,
+                                                  TarExtractor.ProgressListener listener) throws IOException {
+        File rootfsDir = getRootfsDir(context);
+        File stagingDir = getStagingDir(rootfsDir);
+        File journalFile = getJournalFile(rootfsDir);
+        long length = IOUtils.getContentLength(context, uri);
+
+        Properties journal = loadJournal(journalFile);
+        int resumeEntries = 0;
+        if (journal != null && uri.toString().equals(journal.getProperty(KEY_URI))
+                && String.valueOf(length).equals(journal.getProperty(KEY_LENGTH)) && stagingDir.isDirectory()) {
+            resumeEntries = parseEntries(journal);
+        }
+        if (resumeEntries > 0) {
+            Log.i(TAG, "resuming import of " + uri + " after " + resumeEntries + " entries");
+        } else {
+            discard(stagingDir, journalFile);
+            journal = new Properties();
+            journal.setProperty(KEY_URI, uri.toString());
+            journal.setProperty(KEY_LENGTH, String.valueOf(length));
+        }
+        journal.setProperty(KEY_STATE, STATE_EXTRACTING);
+        journal.setProperty(KEY_ENTRIES, String.valueOf(resumeEntries));
+        saveJournal(journalFile, journal);
+
+        // keep read access after process death, so the import can resume
+        try {
+            context.getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException ignored) {
+        }
+
+        TarExtractor.Stats stats;
+        Properties checkpoint = journal;
+        try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+            if (inputStream == null) {
+                throw new FileNotFoundException("can not open " + uri);
+            }
+            stats = new TarExtractor(stagingDir)
+                    .setProgressListener(listener, length)
+                    .setWriteExecutor(TwoyiExecutors.cpu(), WRITE_BUDGET)
+                    .setResumePoint(resumeEntries)
+                    .setCheckpointListener(entries -> {
+                        checkpoint.setProperty(KEY_ENTRIES, String.valueOf(entries));
+                        saveJournal(journalFile, checkpoint);
+                    }, CHECKPOINT_ENTRIES)
+                    .extract(inputStream);
+        } catch (FileNotFoundException | SecurityException e) {
+            // the uri is gone for good, a later resume would fail the same way
+            discard(stagingDir, journalFile);
+            throw e;
+        }
+
+        verify(rootfsDir, stagingDir);
+
+        journal.setProperty(KEY_STATE, STATE_COMPLETE);
+        saveJournal(journalFile, journal);
+        swap(rootfsDir, stagingDir, journalFile);
+
+        try {
+            context.getContentResolver().releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException ignored) {
+        }
+
+        RomManager.initRootfs(context);
+        Log.i(TAG, "imported " + uri + ": " + stats);
+        return stats;
+    }
+
+    /**
+     * Entries of the journal known to be on disk, 0 (no journal) for a
+     * missing or damaged value
+     */
+    private static int parseEntries(Properties journal) {
+        try {
+            return Math.max(0, Integer.parseInt(journal.getProperty(KEY_ENTRIES, "0")));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "bad entries in import journal: " + journal.getProperty(KEY_ENTRIES));
+            return 0;
+        }
+    }
+
+    private static void verify(File rootfsDir, File stagingDir) throws IOException {
+        if (!new File(stagingDir, "init").exists()) {
+            // not something a resume could fix
+            discard(stagingDir, getJournalFile(rootfsDir));
+            throw new IOException("not a rootfs archive, init is missing");
+        }
+    }
+
+    /**
+     * Put the staged tree in place of the rootfs; each rename is atomic and
+     * {@link #recover} completes a swap that was interrupted between them
+     */
+    private static void swap(File rootfsDir, File stagingDir, File journalFile) throws IOException {
+        File oldDir = new File(rootfsDir.getPath() + OLD_SUFFIX);
+        try {
+            if (oldDir.exists()) {
+                deleteLater(oldDir);
+            }
+            if (rootfsDir.exists()) {
+                Os.rename(rootfsDir.getPath(), oldDir.getPath());
+            }
+            Os.rename(stagingDir.getPath(), rootfsDir.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("swap rootfs failed", e);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.delete();
+
+        if (oldDir.exists()) {
+            deleteLater(oldDir);
+        }
+    }
+
+    /**
+     * Move a previous rootfs out of the way and delete it on the background
+     * pool: it can be gigabytes and {@link #recover} runs on the main thread
+     */
+    private static void deleteLater(File dir) throws ErrnoException {
+        File trash = new File(dir.getPath() + TRASH_SUFFIX + System.nanoTime());
+        Os.rename(dir.getPath(), trash.getPath());
+        TwoyiExecutors.background().execute(() -> IOUtils.forceDelete(trash));
+    }
+
+    /**
+     * Finish or undo a swap the process died in, called before the rootfs is used
+     */
+    public static void recover(Context context) {
+        File rootfsDir = getRootfsDir(context);
+        File stagingDir = getStagingDir(rootfsDir);
+        File oldDir = new File(rootfsDir.getPath() + OLD_SUFFIX);
+        File journalFile = getJournalFile(rootfsDir);
+
+        Properties journal = loadJournal(journalFile);
+        try {
+            if (journal != null && STATE_COMPLETE.equals(journal.getProperty(KEY_STATE)) && stagingDir.isDirectory()) {
+                Log.i(TAG, "completing interrupted rootfs swap");
+                swap(rootfsDir, stagingDir, journalFile);
+            } else if (!rootfsDir.exists() && oldDir.isDirectory()) {
+                Log.i(TAG, "restoring previous rootfs");
+                Os.rename(oldDir.getPath(), rootfsDir.getPath());
+            } else if (oldDir.exists()) {
+                deleteLater(oldDir);
+            }
+        } catch (IOException | ErrnoException e) {
+            Log.e(TAG, "recover rootfs failed", e);
+        }
+
+        // the process died before the background delete finished
+        String trashPrefix = oldDir.getName() + TRASH_SUFFIX;
+        File[] siblings = rootfsDir.getParentFile().listFiles((dir, name) -> name.startsWith(trashPrefix));
+        if (siblings != null) {
+            for (File trash : siblings) {
+                TwoyiExecutors.background().execute(() -> IOUtils.forceDelete(trash));
+            }
+        }
+    }
+
+    private static void discard(File stagingDir, File journalFile) {
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.delete();
+        if (stagingDir.exists()) {
+            IOUtils.forceDelete(stagingDir);
+        }
+    }
+
+    private static Properties loadJournal(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            return properties.getProperty(KEY_URI) == null ? null : properties;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void saveJournal(File file, Properties journal) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            journal.store(out, null);
+            // the checkpoint promises the entries are on disk, so must the journal be
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("write import journal failed");
+        }
+    }
+}
@@ -9,8 +9,12 @@ package io.twoyi.utils;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
@@ -22,6 +26,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -66,23 +71,32 @@ public final class RomManager {
 
         properties.setProperty("ro.sf.lcd_density", String.valueOf(DisplayMetrics.DENSITY_DEVICE_STABLE));
 
+        try {
+            // vendor is shared with the other profiles of the ROM
+            RootfsStore.detach(propFile);
+        } catch (IOException e) {
+            Log.w(TAG, "detach " + propFile + " failed", e);
+            return;
+        }
         try (Writer writer = new FileWriter(propFile)) {
             properties.store(writer, null);
         } catch (IOException ignored) {
         }
     }
 
+    /**
+     * Prepare the rootfs for a boot. The steps are public so
+     * {@link io.twoyi.StartupPipeline} can run the independent ones in parallel.
+     */
     public static void ensureBootFiles(Context context) {
 
         // Kill orphan container processes FIRST so they cannot recreate dalvik-cache
         // entries after we delete them below.
-        killOrphanProcess();
+        killOrphanProcesses();
 
-        // Clear the guest Android's dalvik-cache on every startup.
-        // Use shell rm -rf: Java's File.delete() silently fails on files owned by
-        // root (container Zygote runs as root), leaving the stale OAT entries that
+        // Drop the dalvik-cache entries whose sources changed; stale OAT entries
         // cause "No original dex files found" crashes on the next boot.
-        clearDalvikCache(context);
+        DalvikCacheValidator.validate(context);
 
         // Ensure /data/local/tmp exists with world-writable permissions.
         // twoyi's init.rc omits the mkdir for /data/local/tmp that AOSP includes,
@@ -92,6 +106,12 @@ public final class RomManager {
         // chmod 777 ensures adbd can write regardless of which UID it runs as.
         ensureDataLocalTmp(context);
 
+        ensureDeviceDirs(context);
+
+        saveLastKmsg(context);
+    }
+
+    public static void ensureDeviceDirs(Context context) {
         // <rootdir>/dev/
         File devDir = new File(getRootfsDir(context), "dev");
         ensureDir(new File(devDir, "input"));
@@ -101,8 +121,6 @@ public final class RomManager {
         ensureDir(new File(context.getDataDir(), "socket"));
 
         createLoaderSymlink(context);
-
-        saveLastKmsg(context);
     }
 
     private static void createLoaderSymlink(Context context) {
@@ -116,12 +134,56 @@ public final class RomManager {
         }
     }
 
-    private static void killOrphanProcess() {
+    /**
+     * Kill the container processes left over from a previous run, they were
+     * re-parented to init when the app process died
+     */
+    public static void killOrphanProcesses() {
+        // only processes of our own uid are visible and killable, like with ps
+        File[] entries = new File("/proc").listFiles();
+        if (entries == null) {
+            killOrphanProcessesByShell();
+            return;
+        }
+
+        int killed = 0;
+        for (File entry : entries) {
+            int pid;
+            try {
+                pid = Integer.parseInt(entry.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (pid == Process.myPid() || readParentPid(pid) != 1) {
+                continue;
+            }
+            try {
+                Os.kill(pid, OsConstants.SIGKILL);
+                killed++;
+            } catch (ErrnoException ignored) {
+            }
+        }
+        Log.i(TAG, "killed " + killed + " orphan processes");
+    }
+
+    private static void killOrphanProcessesByShell() {
         Shell shell = ShellUtil.newSh();
         shell.newJob().add("ps -ef | awk '{if($3==1) print $2}' | xargs kill -9").exec();
     }
 
-    private static void saveLastKmsg(Context context) {
+    // /proc/<pid>/stat is "pid (comm) state ppid ...", comm may contain spaces
+    private static int readParentPid(int pid) {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "stat")),
+                    StandardCharsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Integer.parseInt(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    public static void saveLastKmsg(Context context) {
         // Save global last kmsg
         File lastKmsgFile = LogEvents.getLastKmsgFile(context);
         File kmsgFile = LogEvents.getKmsgFile(context);
@@ -176,7 +238,11 @@ public final class RomManager {
     }
 
     public static RomInfo getCurrentRomInfo(Context context) {
-        File infoFile = new File(getRootfsDir(context), ROM_INFO_FILE);
+        return getRomInfo(getRootfsDir(context));
+    }
+
+    public static RomInfo getRomInfo(File rootfsDir) {
+        File infoFile = new File(rootfsDir, ROM_INFO_FILE);
         try (FileInputStream inputStream = new FileInputStream(infoFile)) {
             return getRomInfo(inputStream);
         } catch (Throwable e) {
@@ -191,6 +257,15 @@ public final class RomManager {
 
 
 
+    /**
+     * Replace the rootfs of the active profile with a tar archive, streamed
+     * from the uri without a temp copy; see {@link RomImporter} for staging and resume
+     */
+    public static TarExtractor.Stats importRootfs(Context context, Uri uri,
+                                                  TarExtractor.ProgressListener listener) throws IOException {
+        return RomImporter.importRootfs(context, uri, listener);
+    }
+
     public static void extractRootfs(Context context, boolean romExist, boolean needsUpgrade, boolean forceInstall, boolean use3rdRom) {
         // This method is now deprecated - ROM extraction is handled through Import Rootfs UI
         // Just ensure system/vendor partitions are cleaned up
@@ -249,17 +324,37 @@ public final class RomManager {
         removePartition(context, "vendor");
     }
 
-    private static void clearDalvikCache(Context context) {
-        String path = new File(getRootfsDir(context), "data/dalvik-cache").getAbsolutePath();
-        Shell.Result result = ShellUtil.newSh().newJob().add("rm -rf '" + path + "'").exec();
-        if (!result.isSuccess()) {
-            Log.w(TAG, "rm -rf dalvik-cache failed: " + Arrays.toString(result.getErr().toArray(new String[0])));
+    /**
+     * Wipe the guest's whole dalvik-cache, see {@link DalvikCacheValidator} for when it is needed
+     */
+    public static void clearDalvikCache(Context context) {
+        File dir = DalvikCacheValidator.getCacheDir(context);
+        String path = dir.getAbsolutePath();
+
+        // in process first; Java cannot remove the files the container created
+        // as root, those need the shell
+        if (!IOUtils.forceDelete(dir)) {
+            Shell.Result result = ShellUtil.newSh().newJob().add("rm -rf '" + path + "'").exec();
+            if (!result.isSuccess()) {
+                Log.w(TAG, "rm -rf dalvik-cache failed: " + Arrays.toString(result.getErr().toArray(new String[0])));
+            }
         }
         Log.i(TAG, "dalvik-cache cleared: " + path);
     }
 
-    private static void ensureDataLocalTmp(Context context) {
-        String path = new File(getRootfsDir(context), "data/local/tmp").getAbsolutePath();
+    public static void ensureDataLocalTmp(Context context) {
+        File dir = new File(getRootfsDir(context), "data/local/tmp");
+        String path = dir.getAbsolutePath();
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new ErrnoException("mkdir", OsConstants.EACCES);
+            }
+            Os.chmod(path, 0777);
+            return;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "ensureDataLocalTmp in process failed: " + e.getMessage());
+        }
+
         Shell.Result result = ShellUtil.newSh().newJob()
                 .add("mkdir -p '" + path + "'")
                 .add("chmod 777 '" + path + "'")
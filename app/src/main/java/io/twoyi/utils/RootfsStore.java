@@ -0,0 +1,142 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Undoes the hardlink store that profiles of the same ROM used to share
+ * their {@code system} and {@code vendor} files through.
+ *
+ * A hardlink is only safe while nobody writes to it in place, and nothing
+ * can guarantee that here: the container creates and modifies files as root
+ * (see {@link RomManager#clearDalvikCache}), so taking the write bits away
+ * does not stop it, and a read only bind or overlay mount needs root the app
+ * does not have. Every profile therefore has private inodes again;
+ * {@link ProfileCloner} still avoids the data copy with a reflink where the
+ * filesystem supports it.
+ */
+public final class RootfsStore {
+
+    private static final String TAG = "RootfsStore";
+
+    private static final String STORE_DIR = ".store";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Partitions of the rootfs the store used to link */
+    private static final String[] SHARED_PARTITIONS = {"system", "vendor"};
+
+    private RootfsStore() {
+    }
+
+    private static StructStat lstatOrNull(File file) {
+        try {
+            return Os.lstat(file.getPath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Break the link of a shared file so it can be modified without touching
+     * the other profiles, the copy is writable by the owner
+     */
+    public static void detach(File file) throws IOException {
+        StructStat st = lstatOrNull(file);
+        if (st == null || !OsConstants.S_ISREG(st.st_mode)) {
+            // nothing to detach
+            return;
+        }
+        int mode = (int) st.st_mode & 07777 | OsConstants.S_IWUSR;
+        if (st.st_nlink <= 1) {
+            // not shared anymore, but still read only if it was
+            try {
+                Os.chmod(file.getPath(), mode);
+            } catch (ErrnoException e) {
+                throw new IOException("chmod " + file + " failed", e);
+            }
+            return;
+        }
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        IOUtils.copyFile(file, tmp);
+        try {
+            Os.chmod(tmp.getPath(), mode);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.setLastModified(file.lastModified());
+            Os.rename(tmp.getPath(), file.getPath());
+        } catch (ErrnoException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("detach " + file + " failed", e);
+        }
+    }
+
+    private static int detachDir(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return 0;
+        }
+        int detached = 0;
+        for (String name : names) {
+            File file = new File(dir, name);
+            StructStat st = lstatOrNull(file);
+            if (st == null) {
+                continue;
+            }
+            if (OsConstants.S_ISDIR(st.st_mode)) {
+                detached += detachDir(file);
+            } else if (OsConstants.S_ISREG(st.st_mode) && st.st_nlink > 1) {
+                try {
+                    detach(file);
+                    detached++;
+                } catch (IOException e) {
+                    Log.w(TAG, "can not detach " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return detached;
+    }
+
+    /**
+     * Give every profile its own copy of the files it still links with the
+     * store or another profile, then remove the store. Cheap once done, as
+     * only the metadata of the partitions is read.
+     */
+    public static void maintain(Context context) {
+        for (String profile : ProfileManager.getProfiles(context)) {
+            File rootfsDir = ProfileManager.getProfileRootfsDir(context, profile);
+            int detached = 0;
+            for (String partition : SHARED_PARTITIONS) {
+                detached += detachDir(new File(rootfsDir, partition));
+            }
+            if (detached > 0) {
+                Log.i(TAG, "detached " + detached + " files of " + profile);
+            }
+        }
+
+        File storeDir = new File(ProfileManager.getProfilesDir(context), STORE_DIR);
+        if (storeDir.exists() && !IOUtils.deleteDirectory(storeDir)) {
+            Log.w(TAG, "can not remove " + storeDir);
+        }
+    }
+}
@@ -0,0 +1,1001 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process, streaming tar extractor.
+ *
+ * Reads ustar, GNU and PAX archives straight from a stream, without a temp
+ * copy and without forking {@code tar}. Symlinks, hardlinks, fifos, modes
+ * and mtimes are restored; GNU sparse files (old GNU, PAX 0.0, 0.1 and 1.0)
+ * are written with holes. Device nodes and ownership are skipped, the app
+ * has no permission for them. gzip and xz streams are decompressed on the fly.
+ *
+ * Entries are confined to the destination: absolute paths are made relative,
+ * ".." is rejected and so is any parent that resolves outside through a symlink.
+ *
+ * With a write executor, small files are read into memory and written by the
+ * pool while the stream is decoded, bounded by a budget of buffered bytes.
+ * Checkpoints report how many entries are on disk, and a resume point skips
+ * the writes of files an earlier, interrupted run already completed.
+ */
+public final class TarExtractor {
+
+    private static final String TAG = "TarExtractor";
+
+    private static final int BLOCK = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Largest PAX header or GNU long name we accept */
+    private static final int MAX_META_SIZE = 1024 * 1024;
+    /** Progress is reported at most every this many bytes of input */
+    private static final long PROGRESS_STEP = 1024 * 1024;
+    /** Larger files are written by the extracting thread, they are bound by the stream anyway */
+    private static final long MAX_PARALLEL_FILE_SIZE = 1024 * 1024;
+
+    // typeflags
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_FILE_OLD = 0;
+    private static final byte TYPE_HARDLINK = '1';
+    private static final byte TYPE_SYMLINK = '2';
+    private static final byte TYPE_CHAR = '3';
+    private static final byte TYPE_BLOCK = '4';
+    private static final byte TYPE_DIR = '5';
+    private static final byte TYPE_FIFO = '6';
+    private static final byte TYPE_CONTIGUOUS = '7';
+    private static final byte TYPE_PAX = 'x';
+    private static final byte TYPE_PAX_GLOBAL = 'g';
+    private static final byte TYPE_GNU_LONGNAME = 'L';
+    private static final byte TYPE_GNU_LONGLINK = 'K';
+    private static final byte TYPE_GNU_SPARSE = 'S';
+    private static final byte TYPE_GNU_VOLUME = 'V';
+
+    public interface ProgressListener {
+        /**
+         * @param bytesRead  bytes consumed from the source stream, compressed if it is compressed
+         * @param totalBytes size of the source stream, -1 if unknown
+         */
+        void onProgress(long bytesRead, long totalBytes);
+    }
+
+    public interface CheckpointListener {
+        /**
+         * Called on the extracting thread when every write before it is on disk
+         *
+         * @param entries number of archive entries completed, a valid resume point
+         */
+        void onCheckpoint(int entries) throws IOException;
+    }
+
+    /**
+     * Takes regular files out of the extraction, e.g. metadata stored next to the tree
+     */
+    public interface EntryInterceptor {
+        /**
+         * @param name path relative to the archive root
+         * @return true to receive the entry in {@link #onEntry} instead of writing it
+         */
+        boolean intercept(String name);
+
+        /**
+         * Called on the extracting thread with the content of an intercepted entry, at most 1MB
+         */
+        void onEntry(String name, byte[] data) throws IOException;
+    }
+
+    /**
+     * What an extraction produced
+     */
+    public static final class Stats {
+        public int files;
+        public int directories;
+        public int symlinks;
+        public int hardlinks;
+        public int skipped;
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return "files=" + files + " dirs=" + directories + " symlinks=" + symlinks
+                    + " hardlinks=" + hardlinks + " skipped=" + skipped + " bytes=" + bytes;
+        }
+    }
+
+    private final File mDestDir;
+    private final String mDestPath;
+    private ProgressListener mListener;
+    private long mTotalBytes = -1;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mHeader = new byte[BLOCK];
+    private CountingInputStream mSource;
+    private InputStream mIn;
+    private long mLastReport;
+    private File mLastParent;
+
+    // directory modes and mtimes are applied last, a read-only directory would stop the extraction
+    private final List<DirAttrs> mDirAttrs = new ArrayList<>();
+
+    private Executor mWriteExecutor;
+    private Semaphore mWriteBudget;
+    // files queued on the write executor, guarded by itself
+    private final Set<File> mPendingWrites = new HashSet<>();
+    private volatile Throwable mWriteError;
+
+    private int mEntries;
+    private int mResumeEntries;
+    private CheckpointListener mCheckpointListener;
+    private EntryInterceptor mInterceptor;
+    private int mCheckpointInterval;
+    private int mLastCheckpoint;
+
+    public TarExtractor(File destDir) throws IOException {
+        mDestDir = destDir;
+        mDestPath = destDir.getCanonicalPath();
+    }
+
+    public TarExtractor setProgressListener(ProgressListener listener, long totalBytes) {
+        mListener = listener;
+        mTotalBytes = totalBytes;
+        return this;
+    }
+
+    /**
+     * Write small files on {@code executor}, with at most {@code maxBufferedBytes} read ahead
+     */
+    public TarExtractor setWriteExecutor(Executor executor, int maxBufferedBytes) {
+        mWriteExecutor = executor;
+        // permits are KB so a budget of GBs still fits an int
+        mWriteBudget = new Semaphore(Math.max(1, maxBufferedBytes / 1024));
+        return this;
+    }
+
+    /**
+     * Skip the writes of the first {@code entries} entries when their files
+     * already exist with the right size, see {@link CheckpointListener}
+     */
+    public TarExtractor setResumePoint(int entries) {
+        mResumeEntries = entries;
+        return this;
+    }
+
+    public TarExtractor setCheckpointListener(CheckpointListener listener, int everyEntries) {
+        mCheckpointListener = listener;
+        mCheckpointInterval = Math.max(1, everyEntries);
+        return this;
+    }
+
+    public TarExtractor setEntryInterceptor(EntryInterceptor interceptor) {
+        mInterceptor = interceptor;
+        return this;
+    }
+
+    /**
+     * Extract a tar stream, plain, gzip or xz compressed. The stream is not closed.
+     */
+    public Stats extract(InputStream source) throws IOException {
+        try {
+            return extractEntries(source);
+        } finally {
+            // never leave a write running behind the caller's back
+            awaitWrites();
+        }
+    }
+
+    private Stats extractEntries(InputStream source) throws IOException {
+        mSource = new CountingInputStream(source);
+        mIn = decompress(new BufferedInputStream(mSource, BUFFER_SIZE));
+        if (!mDestDir.isDirectory() && !mDestDir.mkdirs()) {
+            throw new IOException("can not create " + mDestDir);
+        }
+
+        Stats stats = new Stats();
+        Map<String, String> pax = new HashMap<>();
+        List<long[]> paxSparse = new ArrayList<>();
+        String longName = null;
+        String longLink = null;
+
+        while (true) {
+            if (!readBlock(mHeader, true)) {
+                break;
+            }
+            if (isZeroBlock(mHeader)) {
+                // end of archive, a second zero block may follow
+                break;
+            }
+            verifyChecksum(mHeader);
+
+            byte type = mHeader[156];
+            long size = parseNumber(mHeader, 124, 12);
+
+            if (type == TYPE_PAX) {
+                parsePax(readMeta(size), pax, paxSparse);
+                continue;
+            } else if (type == TYPE_PAX_GLOBAL) {
+                readMeta(size);
+                continue;
+            } else if (type == TYPE_GNU_LONGNAME) {
+                longName = cString(readMeta(size), 0, (int) size);
+                continue;
+            } else if (type == TYPE_GNU_LONGLINK) {
+                longLink = cString(readMeta(size), 0, (int) size);
+                continue;
+            }
+
+            String name = longName != null ? longName : pax.containsKey("path") ? pax.get("path") : headerName(mHeader);
+            String link = longLink != null ? longLink : pax.containsKey("linkpath") ? pax.get("linkpath")
+                    : cString(mHeader, 157, 100);
+            if (pax.containsKey("size")) {
+                size = Long.parseLong(pax.get("size"));
+            }
+            int mode = (int) parseNumber(mHeader, 100, 8) & 07777;
+            long mtime = pax.containsKey("mtime") ? (long) (Double.parseDouble(pax.get("mtime")) * 1000)
+                    : parseNumber(mHeader, 136, 12) * 1000;
+
+            Sparse sparse = null;
+            if (type == TYPE_GNU_SPARSE) {
+                sparse = readOldGnuSparse(mHeader);
+            } else if (pax.containsKey("GNU.sparse.major") || pax.containsKey("GNU.sparse.map") || !paxSparse.isEmpty()) {
+                if (pax.containsKey("GNU.sparse.name")) {
+                    name = pax.get("GNU.sparse.name");
+                }
+                sparse = paxSparse(pax, paxSparse);
+            }
+
+            longName = null;
+            longLink = null;
+            pax.clear();
+            paxSparse.clear();
+
+            int index = mEntries++;
+            if (mInterceptor != null && sparse == null
+                    && (type == TYPE_FILE || type == TYPE_FILE_OLD || type == TYPE_CONTIGUOUS)) {
+                String path = normalize(name);
+                if (path != null && mInterceptor.intercept(path)) {
+                    mInterceptor.onEntry(path, readMeta(size));
+                    reportProgress(false);
+                    checkpoint(false);
+                    continue;
+                }
+            }
+            File target = resolve(name);
+            if (target == null) {
+                skipData(size);
+                continue;
+            }
+            if (hasPendingWrites(target, type != TYPE_DIR)) {
+                // the archive has this path twice and the last one wins, or
+                // replaces a directory (with a symlink maybe) that queued
+                // writes still open by path
+                drainWrites();
+            }
+
+            switch (type) {
+                case TYPE_FILE:
+                case TYPE_FILE_OLD:
+                case TYPE_CONTIGUOUS:
+                case TYPE_GNU_SPARSE:
+                    long realSize = sparse != null ? sparse.realSize : size;
+                    if (index < mResumeEntries && target.isFile() && target.length() == realSize) {
+                        // written by the interrupted run
+                        skipData(size);
+                    } else if (sparse != null) {
+                        if (sparse.mapInData) {
+                            size -= readSparseMap(sparse);
+                        }
+                        writeSparse(target, sparse, size);
+                        setAttributes(target, mode, mtime);
+                    } else if (mWriteExecutor != null && size <= MAX_PARALLEL_FILE_SIZE) {
+                        writeFileAsync(target, size, mode, mtime);
+                    } else {
+                        writeFile(target, size);
+                        setAttributes(target, mode, mtime);
+                    }
+                    stats.files++;
+                    stats.bytes += size;
+                    break;
+                case TYPE_DIR:
+                    makeDirectory(target, mode, mtime);
+                    skipData(size);
+                    stats.directories++;
+                    break;
+                case TYPE_SYMLINK:
+                    makeSymlink(target, link);
+                    skipData(size);
+                    stats.symlinks++;
+                    break;
+                case TYPE_HARDLINK:
+                    makeHardlink(target, link);
+                    skipData(size);
+                    stats.hardlinks++;
+                    break;
+                case TYPE_FIFO:
+                    makeFifo(target, mode);
+                    skipData(size);
+                    break;
+                case TYPE_CHAR:
+                case TYPE_BLOCK:
+                case TYPE_GNU_VOLUME:
+                default:
+                    Log.w(TAG, "skip " + name + " of type " + (char) type);
+                    skipData(size);
+                    stats.skipped++;
+                    break;
+            }
+            reportProgress(false);
+            checkpoint(false);
+        }
+
+        drainWrites();
+        // deepest first, so a read-only parent does not stop its children
+        for (int i = mDirAttrs.size() - 1; i >= 0; i--) {
+            DirAttrs attrs = mDirAttrs.get(i);
+            setAttributes(attrs.dir, attrs.mode, attrs.mtime);
+        }
+        mDirAttrs.clear();
+
+        checkpoint(true);
+        reportProgress(true);
+        Log.i(TAG, "extracted " + mDestDir + ": " + stats);
+        return stats;
+    }
+
+    private static InputStream decompress(BufferedInputStream in) throws IOException {
+        byte[] magic = new byte[6];
+        in.mark(magic.length);
+        int n = 0;
+        while (n < magic.length) {
+            int read = in.read(magic, n, magic.length - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        in.reset();
+
+        if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if (n >= 6 && (magic[0] & 0xff) == 0xfd && magic[1] == '7' && magic[2] == 'z'
+                && magic[3] == 'X' && magic[4] == 'Z' && magic[5] == 0) {
+            return new XZInputStream(in);
+        }
+        if (n >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5
+                && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            throw new IOException("zstd compressed archives are not supported, use gzip or xz");
+        }
+        return in;
+    }
+
+    // ---- entries
+
+    /**
+     * Path relative to the archive root, null for the root itself and for paths with ".."
+     */
+    private static String normalize(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : name.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                Log.w(TAG, "skip entry outside of the destination: " + name);
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        // empty for the archive root itself
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private File resolve(String name) throws IOException {
+        String path = normalize(name);
+        if (path == null) {
+            return null;
+        }
+
+        File target = new File(mDestDir, path);
+        File parent = target.getParentFile();
+        if (!parent.equals(mLastParent)) {
+            // canonicalize before mkdirs, a symlinked parent must not let us create anything outside
+            String canonical = parent.getCanonicalPath();
+            if (!canonical.equals(mDestPath) && !canonical.startsWith(mDestPath + "/")) {
+                Log.w(TAG, "skip entry through a symlink outside of the destination: " + name);
+                return null;
+            }
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("can not create " + parent);
+            }
+            mLastParent = parent;
+        }
+        return target;
+    }
+
+    private void writeFile(File target, long size) throws IOException {
+        removeExisting(target);
+        try (OutputStream out = new FileOutputStream(target)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int n = (int) Math.min(remaining, mBuffer.length);
+                readFully(mBuffer, 0, n);
+                out.write(mBuffer, 0, n);
+                remaining -= n;
+                reportProgress(false);
+            }
+        }
+        skipPadding(size);
+    }
+
+    // ---- parallel writes
+
+    private void writeFileAsync(File target, long size, int mode, long mtime) throws IOException {
+        byte[] data = new byte[(int) size];
+        readFully(data, 0, data.length);
+        skipPadding(size);
+
+        int permits = Math.max(1, data.length / 1024);
+        try {
+            mWriteBudget.acquire(permits);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("extraction interrupted");
+        }
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(target);
+        }
+
+        mWriteExecutor.execute(() -> {
+            try {
+                removeExisting(target);
+                try (OutputStream out = new FileOutputStream(target)) {
+                    out.write(data);
+                }
+                setAttributes(target, mode, mtime);
+            } catch (Throwable e) {
+                if (mWriteError == null) {
+                    mWriteError = e;
+                }
+            } finally {
+                mWriteBudget.release(permits);
+                synchronized (mPendingWrites) {
+                    mPendingWrites.remove(target);
+                    mPendingWrites.notifyAll();
+                }
+            }
+        });
+
+        Throwable error = mWriteError;
+        if (error != null) {
+            throw new IOException("write failed", error);
+        }
+    }
+
+    /**
+     * Whether a queued write targets {@code target} or, when the entry
+     * replaces a directory, anything below it
+     */
+    private boolean hasPendingWrites(File target, boolean replacesDirectory) {
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return false;
+            }
+            if (mPendingWrites.contains(target)) {
+                return true;
+            }
+        }
+        // queued writes only go to existing directories, resolve creates them
+        if (!replacesDirectory || !Files.isDirectory(target.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        String prefix = target.getPath() + "/";
+        synchronized (mPendingWrites) {
+            for (File pending : mPendingWrites) {
+                if (pending.getPath().startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void awaitWrites() {
+        synchronized (mPendingWrites) {
+            while (!mPendingWrites.isEmpty()) {
+                try {
+                    mPendingWrites.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the queued writes and rethrow the first one that failed
+     */
+    private void drainWrites() throws IOException {
+        awaitWrites();
+        Throwable error = mWriteError;
+        if (error != null) {
+            throw new IOException("write failed", error);
+        }
+    }
+
+    private void checkpoint(boolean force) throws IOException {
+        if (mCheckpointListener == null) {
+            return;
+        }
+        if (force || mEntries - mLastCheckpoint >= mCheckpointInterval) {
+            drainWrites();
+            mLastCheckpoint = mEntries;
+            mCheckpointListener.onCheckpoint(mEntries);
+        }
+    }
+
+    private void makeDirectory(File target, int mode, long mtime) throws IOException {
+        if (!Files.isDirectory(target.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            removeExisting(target);
+            if (!target.mkdirs()) {
+                throw new IOException("can not create " + target);
+            }
+        }
+        chmod(target, 0700);
+        mDirAttrs.add(new DirAttrs(target, mode, mtime));
+    }
+
+    private static final class DirAttrs {
+        final File dir;
+        final int mode;
+        final long mtime;
+
+        DirAttrs(File dir, int mode, long mtime) {
+            this.dir = dir;
+            this.mode = mode;
+            this.mtime = mtime;
+        }
+    }
+
+    private void makeSymlink(File target, String link) throws IOException {
+        removeExisting(target);
+        try {
+            Os.symlink(link, target.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("symlink " + target + " -> " + link + " failed", e);
+        }
+    }
+
+    private void makeHardlink(File target, String link) throws IOException {
+        // the source may still be queued
+        drainWrites();
+        File source = resolve(link);
+        StructStat st;
+        try {
+            st = source == null ? null : Os.lstat(source.getPath());
+        } catch (ErrnoException e) {
+            st = null;
+        }
+        if (st == null) {
+            throw new IOException("hardlink " + target + " to missing " + link);
+        }
+        // the copy would follow a symlink out of the destination
+        if (!OsConstants.S_ISREG(st.st_mode)) {
+            throw new IOException("hardlink " + target + " to non regular file " + link);
+        }
+        removeExisting(target);
+        try {
+            Os.link(source.getPath(), target.getPath());
+        } catch (ErrnoException e) {
+            // e.g. a filesystem without hardlinks, a copy keeps the content
+            IOUtils.copyFile(source, target);
+        }
+    }
+
+    private void makeFifo(File target, int mode) throws IOException {
+        removeExisting(target);
+        try {
+            Os.mkfifo(target.getPath(), mode);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "mkfifo " + target + " failed: " + e.getMessage());
+        }
+    }
+
+    private static void removeExisting(File target) throws IOException {
+        // never follows a symlink, writing through one could land outside of the destination
+        if (Files.isDirectory(target.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            IOUtils.forceDelete(target);
+        } else {
+            Files.deleteIfExists(target.toPath());
+        }
+    }
+
+    private static void setAttributes(File target, int mode, long mtime) {
+        chmod(target, mode);
+        if (mtime > 0) {
+            //noinspection ResultOfMethodCallIgnored
+            target.setLastModified(mtime);
+        }
+    }
+
+    private static void chmod(File target, int mode) {
+        try {
+            Os.chmod(target.getPath(), mode);
+        } catch (ErrnoException e) {
+            // setuid/setgid bits may be refused, keep the permission bits
+            try {
+                Os.chmod(target.getPath(), mode & 0777);
+            } catch (ErrnoException ignored) {
+            }
+        }
+    }
+
+    // ---- sparse files
+
+    private static final class Sparse {
+        final List<long[]> segments = new ArrayList<>();
+        long realSize;
+        /** PAX 1.0 stores the map at the start of the data */
+        boolean mapInData;
+    }
+
+    private Sparse readOldGnuSparse(byte[] header) throws IOException {
+        Sparse sparse = new Sparse();
+        sparse.realSize = parseNumber(header, 483, 12);
+        addSparseEntries(sparse, header, 386, 4);
+        boolean extended = header[482] != 0;
+        byte[] block = new byte[BLOCK];
+        while (extended) {
+            readBlock(block, false);
+            addSparseEntries(sparse, block, 0, 21);
+            extended = block[504] != 0;
+        }
+        return sparse;
+    }
+
+    private static void addSparseEntries(Sparse sparse, byte[] block, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int base = offset + i * 24;
+            if (block[base] == 0) {
+                break;
+            }
+            sparse.segments.add(new long[]{parseNumber(block, base, 12), parseNumber(block, base + 12, 12)});
+        }
+    }
+
+    private static Sparse paxSparse(Map<String, String> pax, List<long[]> paxSparse) throws IOException {
+        Sparse sparse = new Sparse();
+        String realSize = pax.containsKey("GNU.sparse.realsize") ? pax.get("GNU.sparse.realsize")
+                : pax.get("GNU.sparse.size");
+        if (realSize == null) {
+            throw new IOException("sparse entry without real size");
+        }
+        sparse.realSize = Long.parseLong(realSize);
+
+        if ("1".equals(pax.get("GNU.sparse.major"))) {
+            sparse.mapInData = true;
+        } else if (pax.containsKey("GNU.sparse.map")) {
+            // 0.1: "offset,size,offset,size..."
+            String[] values = pax.get("GNU.sparse.map").split(",");
+            for (int i = 0; i + 1 < values.length; i += 2) {
+                sparse.segments.add(new long[]{Long.parseLong(values[i]), Long.parseLong(values[i + 1])});
+            }
+        } else {
+            // 0.0: repeated GNU.sparse.offset / GNU.sparse.numbytes records
+            sparse.segments.addAll(paxSparse);
+        }
+        return sparse;
+    }
+
+    /**
+     * Read the PAX 1.0 sparse map: decimal numbers one per line, the count
+     * then offset/size pairs, padded to whole blocks
+     *
+     * @return bytes of entry data the map used
+     */
+    private long readSparseMap(Sparse sparse) throws IOException {
+        byte[] block = new byte[BLOCK];
+        long used = 0;
+        int pos = BLOCK;
+        long count = -1;
+        long pending = -1;
+        StringBuilder number = new StringBuilder();
+        while (count < 0 || sparse.segments.size() < count) {
+            if (pos == BLOCK) {
+                readBlock(block, false);
+                used += BLOCK;
+                pos = 0;
+            }
+            byte b = block[pos++];
+            if (b != '\n') {
+                number.append((char) b);
+                continue;
+            }
+            long value = Long.parseLong(number.toString());
+            number.setLength(0);
+            if (count < 0) {
+                count = value;
+            } else if (pending < 0) {
+                pending = value;
+            } else {
+                sparse.segments.add(new long[]{pending, value});
+                pending = -1;
+            }
+        }
+        return used;
+    }
+
+    private void writeSparse(File target, Sparse sparse, long size) throws IOException {
+        removeExisting(target);
+        long written = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            for (long[] segment : sparse.segments) {
+                raf.seek(segment[0]);
+                long remaining = segment[1];
+                while (remaining > 0) {
+                    int n = (int) Math.min(remaining, mBuffer.length);
+                    readFully(mBuffer, 0, n);
+                    raf.write(mBuffer, 0, n);
+                    remaining -= n;
+                }
+                written += segment[1];
+                reportProgress(false);
+            }
+            // the tail after the last segment is a hole too
+            raf.setLength(sparse.realSize);
+        }
+        if (written != size) {
+            throw new IOException("sparse map of " + target + " does not match its data");
+        }
+        skipPadding(size);
+    }
+
+    // ---- headers
+
+    private static String headerName(byte[] header) {
+        String name = cString(header, 0, 100);
+        // POSIX ustar splits long names into prefix and name, GNU uses the prefix field for other data
+        boolean posix = header[257] == 'u' && header[262] == 0;
+        if (posix && header[345] != 0) {
+            return cString(header, 345, 155) + "/" + name;
+        }
+        return name;
+    }
+
+    private static void verifyChecksum(byte[] header) throws IOException {
+        long expected = parseNumber(header, 148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        if (sum != expected) {
+            throw new IOException("bad tar header checksum, not a tar archive or corrupted");
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Octal field, or base-256 when the high bit of the first byte is set (GNU, for large values)
+     */
+    private static long parseNumber(byte[] buf, int offset, int length) {
+        long value = 0;
+        if ((buf[offset] & 0x80) != 0) {
+            value = buf[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (buf[offset + i] & 0xff);
+            }
+            return value;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buf[offset + i];
+            if (b == 0) {
+                break;
+            }
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) + (b - '0');
+            }
+        }
+        return value;
+    }
+
+    private static String cString(byte[] buf, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buf[end] != 0) {
+            end++;
+        }
+        return new String(buf, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * PAX records are "<length> <key>=<value>\n"
+     */
+    private static void parsePax(byte[] data, Map<String, String> pax, List<long[]> sparse) throws IOException {
+        int pos = 0;
+        long pendingOffset = -1;
+        while (pos < data.length && data[pos] != 0) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad pax header");
+            }
+            if (length <= 0 || pos + length > data.length) {
+                throw new IOException("bad pax record length");
+            }
+            String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            pos += length;
+
+            int eq = record.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String key = record.substring(0, eq);
+            String value = record.substring(eq + 1);
+            if (key.equals("GNU.sparse.offset")) {
+                pendingOffset = Long.parseLong(value);
+            } else if (key.equals("GNU.sparse.numbytes") && pendingOffset >= 0) {
+                sparse.add(new long[]{pendingOffset, Long.parseLong(value)});
+                pendingOffset = -1;
+            } else {
+                pax.put(key, value);
+            }
+        }
+    }
+
+    // ---- stream
+
+    private byte[] readMeta(long size) throws IOException {
+        if (size < 0 || size > MAX_META_SIZE) {
+            throw new IOException("tar metadata too large: " + size);
+        }
+        byte[] data = new byte[(int) size];
+        readFully(data, 0, data.length);
+        skipPadding(size);
+        return data;
+    }
+
+    /**
+     * @return false at the end of the stream, only allowed when {@code eofAllowed}
+     */
+    private boolean readBlock(byte[] block, boolean eofAllowed) throws IOException {
+        int n = 0;
+        while (n < BLOCK) {
+            int read = mIn.read(block, n, BLOCK - n);
+            if (read < 0) {
+                if (n == 0 && eofAllowed) {
+                    return false;
+                }
+                throw new EOFException("truncated tar archive");
+            }
+            n += read;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] buf, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = mIn.read(buf, offset, length);
+            if (read < 0) {
+                throw new EOFException("truncated tar archive");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private void skipData(long size) throws IOException {
+        // InputStream.skip is unreliable on inflating streams, read through instead
+        long remaining = size;
+        while (remaining > 0) {
+            int n = (int) Math.min(remaining, mBuffer.length);
+            readFully(mBuffer, 0, n);
+            remaining -= n;
+        }
+        skipPadding(size);
+    }
+
+    private void skipPadding(long size) throws IOException {
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        if (padding > 0) {
+            readFully(mBuffer, 0, padding);
+        }
+    }
+
+    private void reportProgress(boolean force) {
+        if (mListener == null) {
+            return;
+        }
+        long read = mSource.count;
+        if (force || read - mLastReport >= PROGRESS_STEP) {
+            mLastReport = read;
+            mListener.onProgress(read, mTotalBytes);
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
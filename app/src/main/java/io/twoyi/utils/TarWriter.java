@@ -0,0 +1,431 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.os.CancellationSignal;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process, streaming tar writer, the counterpart of {@link TarExtractor}.
+ *
+ * Writes ustar entries straight into a stream, with PAX headers for long
+ * names and large files. Trees are read with a single lstat per entry:
+ * symlinks are stored as links, files linked more than once inside the tree
+ * as hardlinks, and sockets, fifos and devices of a running container are
+ * skipped. The output can be gzip or xz compressed on the fly.
+ *
+ * A file is opened before its header is written, so one the app may not
+ * read is skipped instead of breaking the archive. A file that shrinks while
+ * it is read is padded with zeros to the size in its header.
+ */
+public final class TarWriter implements Closeable {
+
+    private static final String TAG = "TarWriter";
+
+    private static final int BLOCK = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_STEP = 1024 * 1024;
+
+    /** Largest size the 12 byte octal field holds */
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final int NAME_LENGTH = 100;
+
+    // xz above preset 3 costs more time than it saves on a phone
+    private static final int XZ_PRESET = 3;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_HARDLINK = '1';
+    private static final byte TYPE_SYMLINK = '2';
+    private static final byte TYPE_DIR = '5';
+    private static final byte TYPE_PAX = 'x';
+
+    public enum Compression {
+        NONE(".tar", "application/x-tar"),
+        GZIP(".tar.gz", "application/gzip"),
+        XZ(".tar.xz", "application/x-xz");
+
+        public final String extension;
+        public final String mimeType;
+
+        Compression(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+    }
+
+    public interface ProgressListener {
+        /**
+         * @param bytesWritten file data written so far, before compression
+         * @param totalBytes   the total passed to {@link #setProgressListener}, -1 if unknown
+         */
+        void onProgress(long bytesWritten, long totalBytes);
+    }
+
+    /**
+     * What was archived
+     */
+    public static final class Stats {
+        public int files;
+        public int directories;
+        public int symlinks;
+        public int hardlinks;
+        public int skipped;
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return "files=" + files + " dirs=" + directories + " symlinks=" + symlinks
+                    + " hardlinks=" + hardlinks + " skipped=" + skipped + " bytes=" + bytes;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mHeader = new byte[BLOCK];
+    private final Stats mStats = new Stats();
+    // first name of every inode linked more than once, for hardlink entries
+    private final Map<Long, String> mLinks = new HashMap<>();
+
+    private ProgressListener mListener;
+    private long mTotalBytes = -1;
+    private long mLastReport;
+    private CancellationSignal mCancellationSignal;
+    private boolean mFinished;
+
+    public TarWriter(OutputStream out, Compression compression) throws IOException {
+        OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+        switch (compression) {
+            case GZIP:
+                mOut = new GZIPOutputStream(buffered, BUFFER_SIZE);
+                break;
+            case XZ:
+                mOut = new XZOutputStream(buffered, new LZMA2Options(XZ_PRESET));
+                break;
+            case NONE:
+            default:
+                mOut = buffered;
+                break;
+        }
+    }
+
+    public TarWriter setProgressListener(ProgressListener listener, long totalBytes) {
+        mListener = listener;
+        mTotalBytes = totalBytes;
+        return this;
+    }
+
+    /**
+     * Abort the archive from another thread, the writing thread then throws
+     * {@link android.os.OperationCanceledException}
+     */
+    public TarWriter setCancellationSignal(CancellationSignal signal) {
+        mCancellationSignal = signal;
+        return this;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Add a regular file generated in memory
+     */
+    public void addEntry(String name, byte[] data, int mode, long mtime) throws IOException {
+        writeHeader(name, TYPE_FILE, mode, data.length, mtime, null);
+        mOut.write(data);
+        pad(data.length);
+        mStats.files++;
+        mStats.bytes += data.length;
+    }
+
+    /**
+     * Add the contents of {@code dir}, with {@code prefix} prepended to every
+     * name; the directory itself gets no entry
+     */
+    public void addTree(File dir, String prefix) throws IOException {
+        String[] names = dir.list();
+        if (names == null) {
+            Log.w(TAG, "can not list " + dir + ", skipping");
+            mStats.skipped++;
+            return;
+        }
+        Arrays.sort(names);
+
+        for (String name : names) {
+            checkCancelled();
+            File file = new File(dir, name);
+            String entryName = prefix + name;
+
+            StructStat st;
+            try {
+                st = Os.lstat(file.getPath());
+            } catch (ErrnoException e) {
+                Log.w(TAG, "can not stat " + file + ": " + e.getMessage() + ", skipping");
+                mStats.skipped++;
+                continue;
+            }
+            int mode = st.st_mode & 07777;
+            long mtime = st.st_mtime * 1000;
+
+            if (OsConstants.S_ISDIR(st.st_mode)) {
+                writeHeader(entryName + "/", TYPE_DIR, mode, 0, mtime, null);
+                mStats.directories++;
+                addTree(file, entryName + "/");
+            } else if (OsConstants.S_ISLNK(st.st_mode)) {
+                String link;
+                try {
+                    link = Os.readlink(file.getPath());
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "can not read link " + file + ": " + e.getMessage() + ", skipping");
+                    mStats.skipped++;
+                    continue;
+                }
+                writeHeader(entryName, TYPE_SYMLINK, mode, 0, mtime, link);
+                mStats.symlinks++;
+            } else if (OsConstants.S_ISREG(st.st_mode)) {
+                addFile(file, entryName, st, mode, mtime);
+            } else {
+                // sockets, fifos and devices of the running container
+                mStats.skipped++;
+            }
+        }
+    }
+
+    private void addFile(File file, String entryName, StructStat st, int mode, long mtime) throws IOException {
+        if (st.st_nlink > 1) {
+            String first = mLinks.get(st.st_ino);
+            if (first != null) {
+                writeHeader(entryName, TYPE_HARDLINK, mode, 0, mtime, first);
+                mStats.hardlinks++;
+                return;
+            }
+            mLinks.put(st.st_ino, entryName);
+        }
+
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            // e.g. created by the container as root, nothing is written yet
+            Log.w(TAG, "can not read " + file + ": " + e.getMessage() + ", skipping");
+            mLinks.remove(st.st_ino);
+            mStats.skipped++;
+            return;
+        }
+
+        long size = st.st_size;
+        try {
+            writeHeader(entryName, TYPE_FILE, mode, size, mtime, null);
+            long remaining = size;
+            while (remaining > 0) {
+                checkCancelled();
+                int n = in.read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+                if (n < 0) {
+                    Log.w(TAG, file + " shrank while archived, padding " + remaining + " bytes");
+                    Arrays.fill(mBuffer, (byte) 0);
+                    while (remaining > 0) {
+                        int zeros = (int) Math.min(mBuffer.length, remaining);
+                        mOut.write(mBuffer, 0, zeros);
+                        remaining -= zeros;
+                    }
+                    break;
+                }
+                mOut.write(mBuffer, 0, n);
+                remaining -= n;
+                mStats.bytes += n;
+                reportProgress(false);
+            }
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+        pad(size);
+        mStats.files++;
+    }
+
+    /**
+     * Write the end of archive marker and finish the compression, the
+     * underlying stream is left open
+     */
+    public Stats finish() throws IOException {
+        if (!mFinished) {
+            mFinished = true;
+            Arrays.fill(mHeader, (byte) 0);
+            mOut.write(mHeader);
+            mOut.write(mHeader);
+            if (mOut instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) mOut).finish();
+            } else if (mOut instanceof XZOutputStream) {
+                ((XZOutputStream) mOut).finish();
+            }
+            mOut.flush();
+            reportProgress(true);
+            Log.i(TAG, "archived " + mStats);
+        }
+        return mStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Total size of the regular files below {@code dir}, for the progress
+     */
+    public static long sizeOf(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return 0;
+        }
+        long size = 0;
+        for (String name : names) {
+            File file = new File(dir, name);
+            try {
+                StructStat st = Os.lstat(file.getPath());
+                if (OsConstants.S_ISDIR(st.st_mode)) {
+                    size += sizeOf(file);
+                } else if (OsConstants.S_ISREG(st.st_mode)) {
+                    size += st.st_size;
+                }
+            } catch (ErrnoException ignored) {
+            }
+        }
+        return size;
+    }
+
+    private void writeHeader(String name, byte type, int mode, long size, long mtime, String link) throws IOException {
+        Map<String, String> pax = new LinkedHashMap<>();
+        if (utf8(name).length > NAME_LENGTH) {
+            pax.put("path", name);
+        }
+        if (link != null && utf8(link).length > NAME_LENGTH) {
+            pax.put("linkpath", link);
+        }
+        if (size > MAX_OCTAL_SIZE) {
+            pax.put("size", String.valueOf(size));
+        }
+        if (!pax.isEmpty()) {
+            byte[] records = paxRecords(pax);
+            fillHeader(truncate("PaxHeaders/" + name), TYPE_PAX, 0644, records.length, mtime, null);
+            mOut.write(mHeader);
+            mOut.write(records);
+            pad(records.length);
+        }
+
+        fillHeader(truncate(name), type, mode, size > MAX_OCTAL_SIZE ? 0 : size, mtime,
+                link == null ? null : truncate(link));
+        mOut.write(mHeader);
+    }
+
+    private void fillHeader(byte[] name, byte type, int mode, long size, long mtime, byte[] link) {
+        Arrays.fill(mHeader, (byte) 0);
+        System.arraycopy(name, 0, mHeader, 0, name.length);
+        octal(mode, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(size, 124, 12);
+        octal(Math.max(0, mtime / 1000), 136, 12);
+        mHeader[156] = type;
+        if (link != null) {
+            System.arraycopy(link, 0, mHeader, 157, link.length);
+        }
+        System.arraycopy(utf8("ustar\0"), 0, mHeader, 257, 6);
+        mHeader[263] = '0';
+        mHeader[264] = '0';
+
+        // the checksum is computed with its own field as spaces
+        Arrays.fill(mHeader, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : mHeader) {
+            sum += b & 0xff;
+        }
+        byte[] checksum = utf8(String.format(Locale.US, "%06o", sum));
+        System.arraycopy(checksum, 0, mHeader, 148, 6);
+        mHeader[154] = 0;
+        mHeader[155] = ' ';
+    }
+
+    private void octal(long value, int offset, int length) {
+        byte[] digits = utf8(String.format(Locale.US, "%0" + (length - 1) + "o", value));
+        System.arraycopy(digits, 0, mHeader, offset, length - 1);
+        mHeader[offset + length - 1] = 0;
+    }
+
+    /**
+     * PAX records, each {@code "<length> <key>=<value>\n"} where the length counts itself
+     */
+    private static byte[] paxRecords(Map<String, String> pax) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : pax.entrySet()) {
+            int body = utf8(" " + entry.getKey() + "=" + entry.getValue() + "\n").length;
+            int length = body + String.valueOf(body).length();
+            if (String.valueOf(length).length() != String.valueOf(body).length()) {
+                length++;
+            }
+            sb.append(length).append(' ').append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return utf8(sb.toString());
+    }
+
+    private static byte[] truncate(String name) {
+        byte[] bytes = utf8(name);
+        return bytes.length <= NAME_LENGTH ? bytes : Arrays.copyOf(bytes, NAME_LENGTH);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK);
+        if (remainder != 0) {
+            mOut.write(new byte[BLOCK - remainder]);
+        }
+    }
+
+    private void checkCancelled() {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.throwIfCanceled();
+        }
+    }
+
+    private void reportProgress(boolean force) {
+        if (mListener != null && (force || mStats.bytes - mLastReport >= PROGRESS_STEP)) {
+            mLastReport = mStats.bytes;
+            mListener.onProgress(mStats.bytes, mTotalBytes);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+// Copyright Disclaimer: AI-Generated Content
+// This file was created by GitHub Copilot, an AI coding assistant.
+// AI-generated content is not subject to copyright protection and is provided
+// without any warranty, express or implied, including warranties of merchantability,
+// fitness for a particular purpose, or non-infringement.
+// Use at your own risk.
+
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package io.twoyi.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared thread pools of the app.
+ *
+ * Every pool has a fixed thread priority and counters for queue wait and
+ * run time, so background work cannot starve the container of CPU during
+ * boot. The work pools have a bounded queue and park a task in an overflow
+ * queue when it is full, a task never runs on the caller: the UI thread
+ * submits to {@link #io()} through {@link UIHelper}. The control pool never
+ * queues, its tasks block for their whole life and each one gets its own
+ * thread, up to a fixed maximum.
+ *
+ * <ul>
+ *     <li>{@link #io()}: file and process work (extraction, installs, shell)</li>
+ *     <li>{@link #cpu()}: short computations, sized to the number of cores</li>
+ *     <li>{@link #control()}: long lived control socket loops and boot waits</li>
+ *     <li>{@link #background()}: maintenance that can always wait (cache sizes, cleanup)</li>
+ * </ul>
+ */
+public final class TwoyiExecutors {
+
+    private static final String TAG = "TwoyiExecutors";
+
+    private static final int CPU_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final int CONTROL_THREADS = 32;
+
+    // a full queue parks the task until a worker is done, neither the caller
+    // (maybe the UI thread) runs it nor is it dropped
+    private static final RejectedExecutionHandler OVERFLOW = (r, executor) -> {
+        Pool pool = (Pool) executor;
+        if (executor.isShutdown()) {
+            return;
+        }
+        if (pool.mRejected.incrementAndGet() % 64 == 1) {
+            Log.w(TAG, "pool " + pool.mName + " saturated, " + pool.mOverflow.size() + " tasks overflowed");
+        }
+        pool.mOverflow.addLast(r);
+        // the workers may have emptied the queue since the task was refused
+        pool.drainOverflow();
+    };
+
+    private static final RejectedExecutionHandler ABORT = (r, executor) -> {
+        Pool pool = (Pool) executor;
+        pool.mRejected.incrementAndGet();
+        throw new RejectedExecutionException("pool " + pool.mName + " has no thread left");
+    };
+
+    // a pool only grows past its core threads once the queue is full, so core is the parallelism
+    private static final Pool IO = new Pool("io", 6, 256, Process.THREAD_PRIORITY_BACKGROUND);
+    private static final Pool CPU = new Pool("cpu", CPU_COUNT, 128,
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+    // accept loops, connections and boot waits never finish early: a queued
+    // one would never start and running one on the caller would block it;
+    // past CONTROL_THREADS a task is refused instead of growing without bound
+    private static final Pool CONTROL = new Pool("control", 0, CONTROL_THREADS, new SynchronousQueue<>(), 0,
+            Process.THREAD_PRIORITY_DEFAULT, ABORT);
+    private static final Pool BACKGROUND = new Pool("background", 1, 64, Process.THREAD_PRIORITY_LOWEST);
+
+    private static final Pool[] POOLS = {IO, CPU, CONTROL, BACKGROUND};
+
+    private TwoyiExecutors() {
+    }
+
+    public static Pool io() {
+        return IO;
+    }
+
+    public static Pool cpu() {
+        return CPU;
+    }
+
+    public static Pool control() {
+        return CONTROL;
+    }
+
+    public static Pool background() {
+        return BACKGROUND;
+    }
+
+    /**
+     * A pool that measures how long tasks wait and run
+     */
+    public static final class Pool extends ThreadPoolExecutor {
+
+        private final String mName;
+        private final int mCapacity;
+
+        private final AtomicLong mSubmitted = new AtomicLong();
+        private final AtomicLong mRejected = new AtomicLong();
+        private final AtomicLong mFinished = new AtomicLong();
+        private final AtomicLong mWaitNanos = new AtomicLong();
+        private final AtomicLong mMaxWaitNanos = new AtomicLong();
+        private final AtomicLong mRunNanos = new AtomicLong();
+        private final AtomicInteger mMaxQueued = new AtomicInteger();
+
+        // tasks refused by the full queue, moved into it as workers take tasks
+        private final Deque<Runnable> mOverflow = new ConcurrentLinkedDeque<>();
+
+        Pool(String name, int threads, int capacity, int priority) {
+            this(name, threads, threads, new LinkedBlockingQueue<>(capacity), capacity, priority, OVERFLOW);
+        }
+
+        Pool(String name, int coreThreads, int maxThreads, BlockingQueue<Runnable> queue, int capacity,
+             int priority, RejectedExecutionHandler handler) {
+            super(coreThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    queue, new NamedThreadFactory(name, priority), handler);
+            mName = name;
+            mCapacity = capacity;
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mSubmitted.incrementAndGet();
+            super.execute(new TimedTask(command));
+
+            int queued = getQueue().size();
+            int max = mMaxQueued.get();
+            while (queued > max && !mMaxQueued.compareAndSet(max, queued)) {
+                max = mMaxQueued.get();
+            }
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            if (r instanceof TimedTask) {
+                TimedTask task = (TimedTask) r;
+                task.startNanos = System.nanoTime();
+                long wait = task.startNanos - task.queuedNanos;
+                mWaitNanos.addAndGet(wait);
+                long max = mMaxWaitNanos.get();
+                while (wait > max && !mMaxWaitNanos.compareAndSet(max, wait)) {
+                    max = mMaxWaitNanos.get();
+                }
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            if (r instanceof TimedTask) {
+                mRunNanos.addAndGet(System.nanoTime() - ((TimedTask) r).startNanos);
+                mFinished.incrementAndGet();
+            }
+            if (t != null) {
+                Log.e(TAG, "task failed in pool " + mName, t);
+            }
+            drainOverflow();
+        }
+
+        private void drainOverflow() {
+            Runnable task;
+            while ((task = mOverflow.pollFirst()) != null) {
+                if (!getQueue().offer(task)) {
+                    mOverflow.offerFirst(task);
+                    break;
+                }
+            }
+            // a parked task with no worker left would never run
+            if (!getQueue().isEmpty() && getPoolSize() == 0) {
+                prestartCoreThread();
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * One line of counters: threads, queue depth, tasks and mean/max latencies
+         */
+        public String dump() {
+            long finished = mFinished.get();
+            return String.format(Locale.US,
+                    "%-10s threads=%d/%d active=%d queued=%d/%d (max %d) overflow=%d submitted=%d finished=%d rejected=%d "
+                            + "wait avg=%.1fms max=%.1fms run avg=%.1fms",
+                    mName, getPoolSize(), getMaximumPoolSize(), getActiveCount(),
+                    getQueue().size(), mCapacity, mMaxQueued.get(), mOverflow.size(),
+                    mSubmitted.get(), finished, mRejected.get(),
+                    finished > 0 ? mWaitNanos.get() / 1e6 / finished : 0.0,
+                    mMaxWaitNanos.get() / 1e6,
+                    finished > 0 ? mRunNanos.get() / 1e6 / finished : 0.0);
+        }
+    }
+
+    /**
+     * Remembers when a task was queued
+     */
+    private static final class TimedTask implements Runnable {
+        final Runnable task;
+        final long queuedNanos = System.nanoTime();
+        long startNanos;
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(mPriority);
+                r.run();
+            }, "twoyi-" + mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Counters of every pool, one line each
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Pool pool : POOLS) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(pool.dump());
+        }
+        return sb.toString();
+    }
+}
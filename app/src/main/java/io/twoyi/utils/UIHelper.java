@@ -43,7 +43,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -55,9 +54,9 @@ import moe.feng.alipay.zerosdk.AlipayZeroSdk;
  * @date 2018/7/21.
  */
 public class UIHelper {
-    private static final AndroidDeferredManager gDM = new AndroidDeferredManager();
+    private static final AndroidDeferredManager gDM = new AndroidDeferredManager(TwoyiExecutors.io());
 
-    public static ExecutorService GLOBAL_EXECUTOR = Executors.newCachedThreadPool();
+    public static ExecutorService GLOBAL_EXECUTOR = TwoyiExecutors.io();
 
     public static AndroidDeferredManager defer() {
         return gDM;
@@ -134,6 +133,18 @@ public class UIHelper {
         return dialog;
     }
 
+    /**
+     * Show the progress of an extraction as the message of a progress dialog
+     */
+    public static TarExtractor.ProgressListener progressMessage(Activity activity, ProgressDialog dialog) {
+        return (bytesRead, totalBytes) -> {
+            String message = totalBytes > 0
+                    ? activity.getString(R.string.rom_import_progress, (int) (bytesRead * 100 / totalBytes))
+                    : activity.getString(R.string.rom_import_progress_bytes, bytesRead / (1024 * 1024));
+            activity.runOnUiThread(() -> dialog.setMessage(message));
+        };
+    }
+
     public static MaterialDialog getNumberProgressDialog(Context context) {
         return new MaterialDialog.Builder(context)
                 .title(R.string.progress_dialog_title)